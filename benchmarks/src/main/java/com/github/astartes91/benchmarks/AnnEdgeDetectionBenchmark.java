@@ -0,0 +1,114 @@
+package com.github.astartes91.benchmarks;
+
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per stage benchmarks of ANN_Edge_Detection_By_Mehrara_And_Zahedinejad
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AnnEdgeDetectionBenchmark {
+    private static final String PLUGIN = "ANN_Edge_Detection_By_Mehrara_And_Zahedinejad";
+    private static final Method GET_NETWORK = Plugins.method(PLUGIN, "getNetwork");
+    private static final Method GET_EDGE_LOOKUP_TABLE = Plugins.method(PLUGIN, "getEdgeLookupTable",
+            FeedforwardNetwork.class);
+    private static final Method GET_THRESHOLD_VALUE = Plugins.method(PLUGIN, "getThresholdValue", int[].class,
+            long.class);
+    private static final Method GET_BINARY_IMAGE = Plugins.method(PLUGIN, "getBinaryImage", ImageProcessor.class,
+            int.class);
+    private static final Method GET_OTSU_BINARY_IMAGE = Plugins.method(PLUGIN, "getBinaryImage",
+            ImageProcessor.class);
+    private static final Class<?> PACKED_BINARY_IMAGE = Plugins.type("PackedBinaryImage");
+    private static final Method GET_EDGE_IMAGE = Plugins.method(PLUGIN, "getEdgeImage", PACKED_BINARY_IMAGE);
+    private static final Method GET_FINAL_IMAGE = Plugins.method(PLUGIN, "getFinalImage", PACKED_BINARY_IMAGE);
+    private static final Method GET_PERCEPTRON = Plugins.method(PLUGIN, "getPerceptron");
+    private static final Class<?> MULTILAYER_PERCEPTRON = Plugins.type("MultilayerPerceptron");
+    private static final Method GET_GREYSCALE_EDGE_IMAGE = Plugins.method(PLUGIN, "getGreyscaleEdgeImage",
+            ImageProcessor.class, MULTILAYER_PERCEPTRON);
+
+    @Param({"512", "2048", "8192", "16384"})
+    public int size;
+
+    private Object plugin;
+    private ImageProcessor sourceImageProcessor;
+    private int[] histogram;
+    private int threshold;
+    private Object binaryImage;
+    private Object edgeImage;
+    private Object perceptron;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plugin = Plugins.newInstance(PLUGIN);
+        Plugins.setField(plugin, "edgeLookupTable", Plugins.invoke(GET_EDGE_LOOKUP_TABLE, plugin,
+                Plugins.<FeedforwardNetwork>invoke(GET_NETWORK, plugin)));
+
+        sourceImageProcessor = SyntheticImages.createByteProcessor(size, size);
+        histogram = sourceImageProcessor.getHistogram();
+        threshold = Plugins.<Integer>invoke(GET_THRESHOLD_VALUE, plugin, histogram, (long) size * size);
+        binaryImage = Plugins.invoke(GET_BINARY_IMAGE, plugin, sourceImageProcessor, threshold);
+        edgeImage = Plugins.invoke(GET_EDGE_IMAGE, plugin, binaryImage);
+        perceptron = Plugins.invoke(GET_PERCEPTRON, plugin);
+    }
+
+    @Benchmark
+    public int[] histogram() {
+        return sourceImageProcessor.getHistogram();
+    }
+
+    @Benchmark
+    public Object thresholdValue() {
+        return Plugins.invoke(GET_THRESHOLD_VALUE, plugin, histogram, (long) size * size);
+    }
+
+    @Benchmark
+    public Object binaryImage() {
+        return Plugins.invoke(GET_BINARY_IMAGE, plugin, sourceImageProcessor, threshold);
+    }
+
+    /**
+     * Histogram, threshold and binarisation fused in parallel passes on all processors
+     */
+    @Benchmark
+    public Object otsuBinaryImage() {
+        return Plugins.invoke(GET_OTSU_BINARY_IMAGE, plugin, sourceImageProcessor);
+    }
+
+    @Benchmark
+    public Object edgeImage() {
+        return Plugins.invoke(GET_EDGE_IMAGE, plugin, binaryImage);
+    }
+
+    @Benchmark
+    public Object finalImage() {
+        return Plugins.invoke(GET_FINAL_IMAGE, plugin, edgeImage);
+    }
+
+    /**
+     * Network evaluated on every greyscale window of the source image on all processors, no binarisation
+     */
+    @Benchmark
+    public Object greyscaleEdgeImage() {
+        return Plugins.invoke(GET_GREYSCALE_EDGE_IMAGE, plugin, sourceImageProcessor, perceptron);
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.astartes91.benchmarks;
+
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole plugin runs on a stream of same-sized images with the working arrays pooled or allocated for every image,
+ * run with -prof gc to compare the allocation rates
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BufferPoolBenchmark {
+    private static final String ANN_PLUGIN = "ANN_Edge_Detection_By_Mehrara_And_Zahedinejad";
+    private static final Method GET_NETWORK = Plugins.method(ANN_PLUGIN, "getNetwork");
+    private static final Method GET_EDGE_LOOKUP_TABLE = Plugins.method(ANN_PLUGIN, "getEdgeLookupTable",
+            FeedforwardNetwork.class);
+    private static final Method ANN_PROCESS = Plugins.method(ANN_PLUGIN, "process", ImageProcessor.class);
+    private static final String SULIMAN_PLUGIN = "Fuzzy_Edge_Detection_By_Suliman_And_Others";
+    private static final Method GET_CENTERS_OF_CLASSES = Plugins.method(SULIMAN_PLUGIN, "getCentersOfClasses",
+            int.class, int.class);
+    private static final Method SULIMAN_PROCESS = Plugins.method(SULIMAN_PLUGIN, "process", ImageProcessor.class,
+            int[][].class, int.class, boolean.class);
+    private static final String CONTRAST_PLUGIN = "Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization";
+    private static final Method CONTRAST_PROCESS = Plugins.method(CONTRAST_PLUGIN, "process", ImageProcessor.class,
+            double.class);
+    private static final Method SHARED_POOL = Plugins.method("BufferPool", "shared");
+    private static final Method SET_MAX_RETAINED_BYTES = Plugins.method("BufferPool", "setMaxRetainedBytes",
+            long.class);
+
+    @Param({"512", "2048"})
+    public int size;
+
+    /** false sets the pool's retention to 0, so every run allocates its working arrays **/
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private Object annPlugin;
+    private Object sulimanPlugin;
+    private Object contrastPlugin;
+    private int[][] centersOfClasses;
+    private ImageProcessor sourceImageProcessor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Plugins.invoke(SET_MAX_RETAINED_BYTES, Plugins.invoke(SHARED_POOL, null),
+                pooled ? Runtime.getRuntime().maxMemory() / 8 : 0L);
+
+        annPlugin = Plugins.newInstance(ANN_PLUGIN);
+        Plugins.setField(annPlugin, "edgeLookupTable", Plugins.invoke(GET_EDGE_LOOKUP_TABLE, annPlugin,
+                Plugins.<FeedforwardNetwork>invoke(GET_NETWORK, annPlugin)));
+        sulimanPlugin = Plugins.newInstance(SULIMAN_PLUGIN);
+        centersOfClasses = Plugins.invoke(GET_CENTERS_OF_CLASSES, sulimanPlugin, 4, 48);
+        contrastPlugin = Plugins.newInstance(CONTRAST_PLUGIN);
+
+        sourceImageProcessor = SyntheticImages.createByteProcessor(size, size);
+    }
+
+    @Benchmark
+    public Object annProcess() {
+        return Plugins.invoke(ANN_PROCESS, annPlugin, sourceImageProcessor);
+    }
+
+    @Benchmark
+    public Object sulimanProcess() {
+        return Plugins.invoke(SULIMAN_PROCESS, sulimanPlugin, sourceImageProcessor, centersOfClasses, 240, false);
+    }
+
+    @Benchmark
+    public Object contrastProcess() {
+        return Plugins.invoke(CONTRAST_PROCESS, contrastPlugin, sourceImageProcessor, 2.0);
+    }
+}
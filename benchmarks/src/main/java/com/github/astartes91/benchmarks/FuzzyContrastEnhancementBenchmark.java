@@ -0,0 +1,77 @@
+package com.github.astartes91.benchmarks;
+
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per stage benchmarks of Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization with the plugin's default fuzzy
+ * exponent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FuzzyContrastEnhancementBenchmark {
+    private static final String PLUGIN = "Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization";
+    private static final Method GET_MIN_AND_MAX = Plugins.method(PLUGIN, "getMinAndMax", ImageProcessor.class);
+    private static final Method GET_LOOKUP_TABLE = Plugins.method(PLUGIN, "getLookupTable", int.class, int.class,
+            double.class, int.class);
+    private static final Method GET_ENHANCED_IMAGE = Plugins.method(PLUGIN, "getEnhancedImage", ImageProcessor.class,
+            int[].class);
+
+    private static final double FUZZY_EXPONENT = 2;
+
+    @Param({"512", "2048", "8192", "16384"})
+    public int size;
+
+    private Object plugin;
+    private ImageProcessor sourceImageProcessor;
+    private int min;
+    private int max;
+    private int[] lookupTable;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plugin = Plugins.newInstance(PLUGIN);
+        sourceImageProcessor = SyntheticImages.createByteProcessor(size, size);
+
+        double[] minAndMax = Plugins.invoke(GET_MIN_AND_MAX, plugin, sourceImageProcessor);
+        min = (int) minAndMax[0];
+        max = (int) minAndMax[1];
+        lookupTable = lookupTable();
+    }
+
+    @Benchmark
+    public Object minAndMax() {
+        return Plugins.invoke(GET_MIN_AND_MAX, plugin, sourceImageProcessor);
+    }
+
+    /**
+     * Fuzzification, intensification and defuzzification of all 256 grey levels
+     */
+    @Benchmark
+    public int[] lookupTable() {
+        return Plugins.invoke(GET_LOOKUP_TABLE, plugin, min, max, FUZZY_EXPONENT, 256);
+    }
+
+    @Benchmark
+    public Object enhancedImage() {
+        return Plugins.invoke(GET_ENHANCED_IMAGE, plugin, sourceImageProcessor, lookupTable);
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.astartes91.benchmarks;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per stage benchmarks of Fuzzy_Edge_Detection_By_Suliman_And_Others with the plugin's default settings
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FuzzyEdgeDetectionBenchmark {
+    private static final String PLUGIN = "Fuzzy_Edge_Detection_By_Suliman_And_Others";
+    private static final Method GET_CENTERS_OF_CLASSES = Plugins.method(PLUGIN, "getCentersOfClasses", int.class,
+            int.class);
+    private static final Method PIXEL_CLASSIFICATION = Plugins.method(PLUGIN, "pixelClassification",
+            ImageProcessor.class, int[][][].class, int[][].class, int[][].class, int.class);
+    private static final Method GET_EDGE_IMAGE = Plugins.method(PLUGIN, "getEdgeImage", int[][][].class,
+            int[][].class, int.class, int.class);
+    private static final Method GET_FINAL_IMAGE = Plugins.method(PLUGIN, "getFinalImage", ImageProcessor.class);
+    private static final Method GET_STREAMED_FINAL_IMAGE = Plugins.method(PLUGIN, "getStreamedFinalImage",
+            ImageProcessor.class, int[][].class, int.class);
+    private static final Method SWEEP = Plugins.method(PLUGIN, "sweep", ImageProcessor.class, int[][].class);
+
+    private static final int LOW_VALUE = 4;
+    private static final int HIGH_VALUE = 48;
+    private static final int WEIGHT = 240;
+    /** 2x2x2 grid around the default settings **/
+    private static final int[][] PARAMETER_TUPLES = {{2, 40, 200}, {2, 40, 280}, {2, 56, 200}, {2, 56, 280},
+            {6, 40, 200}, {6, 40, 280}, {6, 56, 200}, {6, 56, 280}};
+
+    @Param({"512", "2048", "8192", "16384"})
+    public int size;
+
+    @Param({"1", "8", "32"})
+    public int threads;
+
+    private Object plugin;
+    private ImageProcessor sourceImageProcessor;
+    private int[][] centersOfClasses;
+    private int[][][] inputVector;
+    private int[][] classes;
+    private ImageProcessor edgeImageProcessor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plugin = Plugins.newInstance(PLUGIN);
+        Plugins.setField(plugin, "threads", threads);
+        sourceImageProcessor = SyntheticImages.createByteProcessor(size, size);
+        centersOfClasses = Plugins.invoke(GET_CENTERS_OF_CLASSES, plugin, LOW_VALUE, HIGH_VALUE);
+
+        inputVector = new int[size][size][4];
+        classes = new int[size][size];
+        Plugins.invoke(PIXEL_CLASSIFICATION, plugin, sourceImageProcessor, inputVector, classes, centersOfClasses,
+                WEIGHT);
+        edgeImageProcessor = Plugins.<ImagePlus>invoke(GET_EDGE_IMAGE, plugin, inputVector, classes, size, size)
+                .getProcessor();
+    }
+
+    @Benchmark
+    public int[][] pixelClassification() {
+        Plugins.invoke(PIXEL_CLASSIFICATION, plugin, sourceImageProcessor, inputVector, classes, centersOfClasses,
+                WEIGHT);
+        return classes;
+    }
+
+    @Benchmark
+    public Object edgeImage() {
+        return Plugins.invoke(GET_EDGE_IMAGE, plugin, inputVector, classes, size, size);
+    }
+
+    @Benchmark
+    public Object finalImage() {
+        return Plugins.invoke(GET_FINAL_IMAGE, plugin, edgeImageProcessor);
+    }
+
+    @Benchmark
+    public Object streamedFinalImage() {
+        return Plugins.invoke(GET_STREAMED_FINAL_IMAGE, plugin, sourceImageProcessor, centersOfClasses, WEIGHT);
+    }
+
+    @Benchmark
+    public Object sweep() {
+        return Plugins.invoke(SWEEP, plugin, sourceImageProcessor, PARAMETER_TUPLES);
+    }
+}
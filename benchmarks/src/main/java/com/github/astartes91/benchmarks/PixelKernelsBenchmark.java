@@ -0,0 +1,107 @@
+package com.github.astartes91.benchmarks;
+
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar and Vector API pixel kernels over whole images, row by row on a single thread. Needs Java 17 or later, the
+ * forked JVM gets the jdk.incubator.vector module.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PixelKernelsBenchmark {
+    private static final Method THRESHOLD_ROW = Plugins.method("PixelKernels", "thresholdRow", byte[].class,
+            int.class, int.class, int.class, long[].class, int.class);
+    private static final Method CLASSIFY_ROW = Plugins.method("PixelKernels", "classifyRow", int[].class,
+            int[].class, int[].class, int.class, int[][].class, long.class, int[].class);
+    private static final Method MAP_PIXELS = Plugins.method("PixelKernels", "mapPixels", byte[].class, int[].class,
+            byte[].class);
+    private static final Method GET_CENTERS_OF_CLASSES = Plugins.method("Fuzzy_Edge_Detection_By_Suliman_And_Others",
+            "getCentersOfClasses", int.class, int.class);
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"PixelKernels", "VectorPixelKernels"})
+    public String kernels;
+
+    private Object pixelKernels;
+    /** row kernels bound to the kernels, a reflective call per row would be measured too **/
+    private MethodHandle thresholdRow;
+    private MethodHandle classifyRow;
+    private byte[] pixels;
+    private long[] words;
+    private int[][] levelRows;
+    private int[] classesRow;
+    private int[][] centersOfClasses;
+    private int[] lookupTable;
+    private byte[] mappedPixels;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pixelKernels = Plugins.newInstance(kernels);
+        thresholdRow = Plugins.handle(THRESHOLD_ROW, pixelKernels);
+        classifyRow = Plugins.handle(CLASSIFY_ROW, pixelKernels);
+
+        ImageProcessor sourceImageProcessor = SyntheticImages.createByteProcessor(size, size);
+        pixels = (byte[]) sourceImageProcessor.getPixels();
+        words = new long[((size + 63) >>> 6) * size];
+        levelRows = new int[size][size];
+        for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < size; columnIndex++) {
+                levelRows[rowIndex][columnIndex] = pixels[rowIndex * size + columnIndex] & 0xff;
+            }
+        }
+        classesRow = new int[size];
+        centersOfClasses = Plugins.invoke(GET_CENTERS_OF_CLASSES,
+                Plugins.newInstance("Fuzzy_Edge_Detection_By_Suliman_And_Others"), 4, 48);
+        lookupTable = new int[256];
+        for (int level = 0; level < lookupTable.length; level++) {
+            lookupTable[level] = 255 - level;
+        }
+        mappedPixels = new byte[pixels.length];
+    }
+
+    @Benchmark
+    public long[] threshold() throws Throwable {
+        int wordsPerRow = (size + 63) >>> 6;
+        for (int rowIndex = 0; rowIndex < size; rowIndex++) {
+            thresholdRow.invokeExact(pixels, rowIndex * size, size, 128, words, rowIndex * wordsPerRow);
+        }
+        return words;
+    }
+
+    @Benchmark
+    public int[] classify() throws Throwable {
+        for (int rowIndex = 1; rowIndex < size - 1; rowIndex++) {
+            classifyRow.invokeExact(levelRows[rowIndex - 1], levelRows[rowIndex], levelRows[rowIndex + 1], size,
+                    centersOfClasses, 240L * 240, classesRow);
+        }
+        return classesRow;
+    }
+
+    @Benchmark
+    public byte[] map() {
+        Plugins.invoke(MAP_PIXELS, pixelKernels, pixels, lookupTable, mappedPixels);
+        return mappedPixels;
+    }
+}
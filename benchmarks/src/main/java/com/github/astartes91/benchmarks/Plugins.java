@@ -0,0 +1,79 @@
+package com.github.astartes91.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The plugins live in the default package, as ImageJ expects, and JMH refuses benchmarks in the default package,
+ * so the benchmarks reach the plugins' stage methods through reflection. Lookups are done once per benchmark
+ * class, the cost of a reflective call is negligible compared to a whole image pass. Methods called for every row are
+ * bound to method handles instead, see handle.
+ */
+final class Plugins {
+    private Plugins() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Can't find " + className, e);
+        }
+    }
+
+    static Object newInstance(String className) {
+        try {
+            Constructor<?> constructor = Class.forName(className).getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't instantiate " + className, e);
+        }
+    }
+
+    static Method method(String className, String methodName, Class<?>... parameterTypes) {
+        try {
+            Method method = Class.forName(className).getDeclaredMethod(methodName, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't find " + className + "." + methodName, e);
+        }
+    }
+
+    /**
+     * @return handle of the method bound to the plugin, called by invokeExact without boxing the arguments
+     */
+    static MethodHandle handle(Method method, Object plugin) {
+        try {
+            return MethodHandles.lookup().unreflect(method).bindTo(plugin);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T invoke(Method method, Object plugin, Object... arguments) {
+        try {
+            return (T) method.invoke(plugin, arguments);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(method.getName() + " failed", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void setField(Object plugin, String fieldName, Object value) {
+        try {
+            Field field = plugin.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(plugin, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't set " + fieldName, e);
+        }
+    }
+}
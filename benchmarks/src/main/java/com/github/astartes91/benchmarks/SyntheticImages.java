@@ -0,0 +1,50 @@
+package com.github.astartes91.benchmarks;
+
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic 8-bit images for the benchmarks: a smooth gradient background with bright and dark
+ * rectangles on top of it and some uniform noise, so that every stage has both flat regions and edges to work on.
+ */
+final class SyntheticImages {
+    private static final long SEED = 91L;
+
+    private SyntheticImages() {
+    }
+
+    static ByteProcessor createByteProcessor(int width, int height) {
+        Random random = new Random(SEED);
+        byte[] pixels = new byte[width * height];
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                int value = 40 + (int) (100L * (columnIndex + rowIndex) / (width + height));
+                pixels[rowIndex * width + columnIndex] = (byte) value;
+            }
+        }
+
+        int rectanglesCount = Math.max(16, (int) ((long) width * height / (64 * 64)));
+        for (int rectangleIndex = 0; rectangleIndex < rectanglesCount; rectangleIndex++) {
+            int rectangleWidth = 4 + random.nextInt(60);
+            int rectangleHeight = 4 + random.nextInt(60);
+            int left = random.nextInt(Math.max(1, width - rectangleWidth));
+            int top = random.nextInt(Math.max(1, height - rectangleHeight));
+            int value = random.nextBoolean() ? 200 + random.nextInt(56) : random.nextInt(30);
+
+            for (int rowIndex = top; rowIndex < Math.min(height, top + rectangleHeight); rowIndex++) {
+                for (int columnIndex = left; columnIndex < Math.min(width, left + rectangleWidth); columnIndex++) {
+                    pixels[rowIndex * width + columnIndex] = (byte) value;
+                }
+            }
+        }
+
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            int value = (pixels[pixelIndex] & 0xff) + random.nextInt(9) - 4;
+            pixels[pixelIndex] = (byte) Math.max(0, Math.min(255, value));
+        }
+
+        return new ByteProcessor(width, height, pixels);
+    }
+}
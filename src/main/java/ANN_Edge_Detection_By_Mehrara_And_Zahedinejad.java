@@ -1,17 +1,14 @@
-import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardLayer;
 import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
-import com.heatonresearch.book.introneuralnet.neural.matrix.Matrix;
+import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.NewImage;
-import ij.plugin.filter.PlugInFilter;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import org.apache.commons.lang3.StringUtils;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * @author Vladimir Nizamutdinov (astartes91@gmail.com)
@@ -19,18 +16,73 @@ import java.util.ArrayList;
  * Implemented on the basis of Mehrara and Zahedinejad algorithm (2011)
  * http://www.sid.ir/EN/VEWSSID/J_pdf/1035220110202.pdf
  */
-public class ANN_Edge_Detection_By_Mehrara_And_Zahedinejad implements PlugInFilter{
-    private FeedforwardNetwork network;
+public class ANN_Edge_Detection_By_Mehrara_And_Zahedinejad implements ExtendedPlugInFilter{
+    /** weights of the binarised windows mode, binary weights load faster, the text ones are the fallback **/
+    static final String[] WEIGHTS = {"weights.bin", "weights.txt"};
+    /**
+     * weights of the greyscale windows mode, trained by NetworkTrainer with greyscale=true, the ones of the binarised
+     * mode are used until such weights are packaged
+     **/
+    static final String[] GREYSCALE_WEIGHTS = {"greyscale_weights.bin", "greyscale_weights.txt", "weights.bin",
+            "weights.txt"};
+    /** edge pixels of the 2x2 output window for every possible binary 2x2 input window, see getEdgeLookupTable **/
+    int[] edgeLookupTable;
+    /** network evaluating greyscale windows, null if the image is binarised first, see getGreyscaleEdgeImage **/
+    MultilayerPerceptron perceptron;
+    /** number of threads processing row bands of greyscale windows, 1 means sequential processing **/
+    int threads = Prefs.getThreads();
+    /** whether unchanged tiles are copied from the previous result of the slice, see RegionProcessor **/
+    boolean incremental;
+    /** whether tiles unchanged since the previous slice are copied from its result, see processNextSlice **/
+    boolean temporal;
+    /** whether results of whole images are looked up in and stored to the result cache, see ResultCache **/
+    boolean cached;
+    /**
+     * filters only the tiles of whole images which may contain edges with greyscale windows, null to filter every
+     * pixel, see process. Binarised images are filtered 64 pixels per word already, faster than the coarse pass itself.
+     **/
+    PyramidProcessor pyramid;
+    /** result of the previous slice in the temporal mode **/
+    private RegionProcessor.Result previousSliceResult;
+    /** tiles of the slices processed in the temporal mode and the ones of them copied from the previous slices **/
+    int tiles;
+    int reusedTiles;
+    /** results of the processed slices, they are shown together when all of them are done **/
+    private SliceResults sliceResults;
+    private ImagePlus imagePlus;
     /*private final String WHITE_EDGES_CHOICE = "White edges, black background";
     private final String BLACK_EDGES_CHOICE = "Black edges, white background";*/
 
     @Override
     public int setup(String s, ImagePlus imagePlus) {
-        return DOES_8G + NO_CHANGES;
+        if ("final".equals(s)) {
+            ImagePlus finalImagePlus = sliceResults.getImagePlus("ANN Edge Detection");
+            if (finalImagePlus != null) {
+                finalImagePlus.show();
+            }
+            if (temporal) {
+                IJ.log(String.format("ANN Edge Detection: %d of %d tiles reused from the previous slices",
+                        reusedTiles, tiles));
+            }
+            if (cached) {
+                IJ.log("ANN Edge Detection: result cache " + ResultCache.shared().getStatistics());
+            }
+            if (pyramid != null) {
+                IJ.log("ANN Edge Detection: pyramid " + pyramid.getStatistics());
+            }
+            //stage totals of all the runs since ImageJ was started
+            if (Instrumentation.isEnabled()) {
+                IJ.log(Instrumentation.getSummary());
+            }
+            return DONE;
+        }
+        this.imagePlus = imagePlus;
+        return DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
     }
 
     @Override
-    public void run(ImageProcessor imageProcessor) {
+    public int showDialog(ImagePlus imagePlus, String command, PlugInFilterRunner pfr) {
         /*GenericDialog gd = new GenericDialog("Algorithm settings");
         gd.addRadioButtonGroup(
                 "",
@@ -50,255 +102,364 @@ public class ANN_Edge_Detection_By_Mehrara_And_Zahedinejad implements PlugInFilt
         }*/
 
         //String choice = gd.getNextRadioButton();
-        network = getNetwork(/*choice*/);
+        GenericDialog gd = new GenericDialog("Algorithm settings");
+        gd.addCheckbox("Greyscale windows (no binarisation)", false);
+        gd.addCheckbox("Incremental re-processing of changed tiles", false);
+        gd.addCheckbox("Time-lapse stack, skip tiles unchanged since the previous slice", false);
+        gd.addCheckbox("Cache results of repeated runs", ResultCache.isEnabledByDefault());
+        gd.addCheckbox("Coarse-to-fine pyramid, skip flat tiles (greyscale windows)", false);
+        gd.addNumericField("Pyramid contrast:", 32, 0);
+        gd.addNumericField("Recall sample:", 0.1, 2);
+        gd.addNumericField("Minimum recall:", 0.95, 2);
 
-        int width = imageProcessor.getWidth();
-        int height = imageProcessor.getHeight();
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            IJ.error("Plugin run cancelled!");
+            return DONE;
+        }
 
-        //long startTime = System.nanoTime();
-        int[] histogram = imageProcessor.getHistogram();
-        int threshold = getThresholdValue(histogram, width * height);
+        //the network is the same for all slices of a stack
+        if (gd.getNextBoolean()) {
+            perceptron = getPerceptron();
+        } else {
+            edgeLookupTable = getEdgeLookupTable(getNetwork(/*choice*/));
+        }
+        incremental = gd.getNextBoolean();
+        temporal = gd.getNextBoolean();
+        cached = gd.getNextBoolean();
+        if (gd.getNextBoolean() && perceptron != null) {
+            try {
+                pyramid = new PyramidProcessor((int) gd.getNextNumber(), gd.getNextNumber(), gd.getNextNumber());
+            } catch (IllegalArgumentException e) {
+                IJ.error(e.getMessage());
+                return DONE;
+            }
+        }
 
-        ImagePlus binaryImagePlus = getBinaryImage(imageProcessor, threshold);
-        ImageProcessor binaryImageProcessor = binaryImagePlus.getProcessor();
-        //binaryImagePlus.show();
+        int flags = DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
+        //every slice is compared with the previous one in the temporal mode, so slices are processed in order
+        return temporal ? flags - PARALLELIZE_STACKS : flags;
+    }
 
-        ImagePlus edgeImagePlus = getEdgeImage(binaryImageProcessor);
-        ImageProcessor edgeImageProcessor = edgeImagePlus.getProcessor();
-        //edgeImagePlus.show();
+    @Override
+    public void setNPasses(int nPasses) {
+        sliceResults = new SliceResults(imagePlus, nPasses);
+        //slices of a stack are processed in parallel already, the threads are shared between them
+        if (nPasses > 1 && !temporal) {
+            threads = Math.max(1, threads / Math.min(nPasses, Prefs.getThreads()));
+        }
+    }
 
-        ImagePlus finalImagePlus = getFinalImage(edgeImageProcessor/*, choice*/);
+    @Override
+    public void run(ImageProcessor imageProcessor) {
+        if (temporal) {
+            sliceResults.set(imageProcessor, processNextSlice(imageProcessor));
+            return;
+        }
+        if (incremental || RegionProcessor.hasRegion(imageProcessor)) {
+            sliceResults.set(imageProcessor, processRegion(imageProcessor, incremental ?
+                    RegionProcessor.getIncrementalKey(this, imagePlus, sliceResults.getSliceNumber(imageProcessor)) :
+                    null));
+            return;
+        }
+        sliceResults.set(imageProcessor, cached ? ResultCache.shared().process(imageProcessor, getCacheKey(),
+                this::process) : process(imageProcessor));
+    }
 
-        //long endTime = System.nanoTime();
+    /**
+     * Detects edges of a single image, either perceptron or edgeLookupTable should be set already. With greyscale
+     * windows and pyramid set, only in the tiles which may contain edges.
+     * @return 8-bit image of the edges
+     */
+    ImageProcessor process(ImageProcessor imageProcessor) {
+        if (pyramid != null && perceptron != null) {
+            double[] range = GreyLevels.getRange(imageProcessor.getPixels());
+            return pyramid.process(imageProcessor, range, getImageFilter(imageProcessor, range), threads);
+        }
+        if (perceptron != null) {
+            PackedBinaryImage greyscaleEdgeImage = getGreyscaleEdgeImage(imageProcessor, perceptron);
+            ImagePlus finalImagePlus = getFinalImage(greyscaleEdgeImage);
+            greyscaleEdgeImage.release();
+            return finalImagePlus.getProcessor();
+        }
 
-        finalImagePlus.show();
-        //IJ.log(Double.valueOf((endTime - startTime) / 1000000000.0).toString());
-    }
+        PackedBinaryImage binaryImage = getBinaryImage(imageProcessor);
+        //binaryImage.toImagePlus("Binary").show();
 
-    private ImagePlus getBinaryImage(ImageProcessor sourceImageProcessor, int threshold){
-        int width = sourceImageProcessor.getWidth();
-        int height = sourceImageProcessor.getHeight();
+        PackedBinaryImage edgeImage = getEdgeImage(binaryImage);
+        //edgeImage.toImagePlus("Edges").show();
+        //the working images of same-sized images are reused, see BufferPool
+        binaryImage.release();
 
-        ImagePlus binaryImagePlus = NewImage.createByteImage("Binary", width, height, 1,
-                NewImage.FILL_BLACK);
-        ImageProcessor binaryImageProcessor = binaryImagePlus.getProcessor();
+        ImagePlus finalImagePlus = getFinalImage(edgeImage/*, choice*/);
+        edgeImage.release();
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                int originalColor = sourceImageProcessor.get(i, j);
+        return finalImagePlus.getProcessor();
+    }
 
-                if (originalColor >= threshold) {
-                    //set the new image's pixel
-                    binaryImageProcessor.set(i, j, 255);
-                }
-            }
-        }
+    /**
+     * Detects edges inside the ROI of the image only, see RegionProcessor. The threshold and the grey levels are the
+     * whole image's ones, so the edges inside the ROI are the same as the ones of process.
+     * @param incrementalKey see RegionProcessor.process
+     * @return 8-bit image of the edges, black outside the ROI
+     */
+    ImageProcessor processRegion(ImageProcessor imageProcessor, String incrementalKey) {
+        return RegionProcessor.process(imageProcessor, getImageFilter(imageProcessor),
+                new ByteProcessor(imageProcessor.getWidth(), imageProcessor.getHeight()), threads, incrementalKey);
+    }
 
-        return binaryImagePlus;
+    /**
+     * Detects edges of the next slice of a time-lapse stack, the tiles whose pixels are the same as in the previous
+     * slice are copied from its result, see RegionProcessor.processReusing. Slices should be passed in order by a
+     * single thread.
+     * @return 8-bit image of the edges, the same as the one of processRegion
+     */
+    ImageProcessor processNextSlice(ImageProcessor imageProcessor) {
+        previousSliceResult = RegionProcessor.processReusing(imageProcessor, getImageFilter(imageProcessor),
+                new ByteProcessor(imageProcessor.getWidth(), imageProcessor.getHeight()), threads,
+                previousSliceResult);
+        tiles += previousSliceResult.getTiles();
+        reusedTiles += previousSliceResult.getReusedTiles();
+        return previousSliceResult.getImageProcessor();
     }
 
-    private ImagePlus getEdgeImage(ImageProcessor binaryImageProcessor) {
-        int width = binaryImageProcessor.getWidth();
-        int height = binaryImageProcessor.getHeight();
+    /**
+     * @return tiled filter with the threshold and the grey levels of the whole image
+     */
+    private TiledFilter getImageFilter(ImageProcessor imageProcessor) {
+        return getImageFilter(imageProcessor, GreyLevels.getRange(imageProcessor.getPixels()));
+    }
 
-        ImagePlus edgeImagePlus = NewImage.createByteImage("Edges", width, height, 1,
-                NewImage.FILL_BLACK);
-        ImageProcessor edgeImageProcessor = edgeImagePlus.getProcessor();
+    /**
+     * @param range range of the image, see GreyLevels.getRange
+     */
+    private TiledFilter getImageFilter(ImageProcessor imageProcessor, double[] range) {
+        return perceptron != null ? getGreyscaleTiledFilter(range) : getTiledFilter(range,
+                GreyLevels.of(imageProcessor, range).getHistogram(new RowBandScheduler(threads), null));
+    }
 
-        for (int y = 0; y < height - 1; y += 1) {
-            for (int x = 0; x < width - 1; x += 1) {
-                double[] values = {
-                        (binaryImageProcessor.get(x, y)) / 255.0,
-                        (binaryImageProcessor.get(x + 1, y)) / 255.0,
-                        (binaryImageProcessor.get(x, y + 1)) / 255.0,
-                        (binaryImageProcessor.get(x + 1, y + 1)) / 255.0
-                };
+    /**
+     * Filter of tiles binarised by the Otsu threshold of the whole image, see TiledFilter. The 2x2 windows and the
+     * isolated pixels removal around them need a halo of 2 pixels.
+     * @param range range of the whole image 16 and 32-bit tiles are binned in, see GreyLevels.getRange
+     * @param histogram histogram of the whole image binned in the range
+     */
+    TiledFilter getTiledFilter(double[] range, long[] histogram) {
+        int threshold = OtsuThreshold.getThreshold(histogram);
+        //tiles are processed in parallel already
+        ANN_Edge_Detection_By_Mehrara_And_Zahedinejad tilePlugin =
+                new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+        tilePlugin.threads = 1;
+        tilePlugin.edgeLookupTable = edgeLookupTable;
+
+        return new TiledFilter(2, 8, "ANN " + Arrays.toString(edgeLookupTable) + " threshold " + threshold +
+                " range " + Arrays.toString(range), tile -> {
+            PackedBinaryImage binaryImage = PackedBinaryImage.threshold(GreyLevels.of(tile, range), threshold);
+            PackedBinaryImage edgeImage = tilePlugin.getEdgeImage(binaryImage);
+            binaryImage.release();
+            ImagePlus finalImagePlus = tilePlugin.getFinalImage(edgeImage);
+            edgeImage.release();
+            return finalImagePlus.getProcessor();
+        });
+    }
 
-                double[] output = network.computeOutputs(values);
+    /**
+     * Filter of tiles by greyscale windows of the perceptron, see TiledFilter. NxN windows and the isolated pixels
+     * removal around them need a halo of N pixels.
+     * @param range range of the whole image 16 and 32-bit tiles are binned in, see GreyLevels.getRange
+     */
+    TiledFilter getGreyscaleTiledFilter(double[] range) {
+        int windowSize = (int) Math.round(Math.sqrt(perceptron.getInputSize()));
+        ANN_Edge_Detection_By_Mehrara_And_Zahedinejad tilePlugin =
+                new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+        tilePlugin.threads = 1;
+        tilePlugin.perceptron = perceptron;
+
+        //the perceptron is the one of the packaged greyscale weights, see getPerceptron
+        return new TiledFilter(windowSize, 8, "ANN greyscale weights " +
+                Long.toHexString(NetworkCache.getChecksum(GREYSCALE_WEIGHTS)) + " range " +
+                Arrays.toString(range), tile -> {
+            PackedBinaryImage edgeImage = tilePlugin.getGreyscaleEdgeImage(GreyLevels.of(tile, range), perceptron);
+            ImagePlus finalImagePlus = tilePlugin.getFinalImage(edgeImage);
+            edgeImage.release();
+            return finalImagePlus.getProcessor();
+        });
+    }
 
-                double[][] outputValues = {
-                        {
-                                output[0], output[1]
-                        },
-                        {
-                                output[2], output[3]
-                        }
-                };
+    /**
+     * Binarises the image by its Otsu threshold, see OtsuThreshold.binarise, 16 and 32-bit pixels are binned in 256
+     * levels between the image minimum and maximum first
+     */
+    PackedBinaryImage getBinaryImage(ImageProcessor sourceImageProcessor) {
+        return OtsuThreshold.binarise(GreyLevels.of(sourceImageProcessor), new RowBandScheduler(threads));
+    }
 
-                for (int y1 = 0; y1 < 2; y1++) {
-                    for (int x1 = 0; x1 < 2; x1++) {
-                        double value = outputValues[y1][x1];
+    PackedBinaryImage getBinaryImage(ImageProcessor sourceImageProcessor, int threshold){
+        return PackedBinaryImage.threshold(GreyLevels.of(sourceImageProcessor), threshold);
+    }
 
-                        int pixelValue = (int)(Math.round(value) * 255);
-                        if (pixelValue == 255) {
-                            edgeImageProcessor.set(x + x1, y + y1, pixelValue);
-                        }
-                    }
-                }
-            }
-        }
+    PackedBinaryImage getEdgeImage(PackedBinaryImage binaryImage) {
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.NETWORK,
+                (long) binaryImage.getWidth() * binaryImage.getHeight());
+        PackedBinaryImage edgeImage = binaryImage.mapWindows(edgeLookupTable);
+        Instrumentation.stop(span);
+        return edgeImage;
+    }
 
-        return edgeImagePlus;
+    /**
+     * Evaluates the network on every NxN window of grey levels scaled to 0..1 instead of the binarised image, N * N
+     * being the number of the network's inputs and outputs. Windows of a row are evaluated as one batch, and an output
+     * of 0.5 or more marks the corresponding pixel of the window as an edge, like the rounding in getEdgeLookupTable.
+     * A row band recomputes the N - 1 rows of windows overlapping it from above, so it writes its own rows only.
+     */
+    PackedBinaryImage getGreyscaleEdgeImage(ImageProcessor sourceImageProcessor, MultilayerPerceptron perceptron) {
+        return getGreyscaleEdgeImage(GreyLevels.of(sourceImageProcessor), perceptron);
     }
 
-    private ImagePlus getFinalImage(ImageProcessor edgeImageProcessor/*, String choice*/) {
-        int width = edgeImageProcessor.getWidth();
-        int height = edgeImageProcessor.getHeight();
-
-        ImagePlus finalImagePlus = NewImage.createByteImage("ANN Edge Detection", width, height, 1,
-                NewImage.FILL_BLACK);
-        ImageProcessor finalImageProcessor = finalImagePlus.getProcessor();
-
-        for (int rowIndex = 0; rowIndex < height; rowIndex++){
-            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
-                int pixelValue = edgeImageProcessor.get(columnIndex, rowIndex);
-                if (pixelValue == 255){
-                    boolean isNeighbourWhite = false;
-                    for (int relativeRowIndex = -1; relativeRowIndex < 2; relativeRowIndex++) {
-                        for (int relativeColumnIndex = -1; relativeColumnIndex < 2; relativeColumnIndex++) {
-                            if (relativeRowIndex == 0 && relativeColumnIndex == 0){
-                                continue;
-                            }
+    PackedBinaryImage getGreyscaleEdgeImage(GreyLevels greyLevels, MultilayerPerceptron perceptron) {
+        int windowSize = (int) Math.round(Math.sqrt(perceptron.getInputSize()));
+        if (windowSize * windowSize != perceptron.getInputSize() ||
+                perceptron.getOutputSize() != perceptron.getInputSize()) {
+            throw new IllegalArgumentException("Network should have N * N inputs and N * N outputs");
+        }
+        int windowPixels = windowSize * windowSize;
+
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+        PackedBinaryImage edgeImage = new PackedBinaryImage(width, height);
+        int windowsPerRow = width - windowSize + 1;
+        if (windowsPerRow < 1 || height < windowSize) {
+            return edgeImage;
+        }
 
-                            int xCoordinate = columnIndex + relativeColumnIndex;
-                            int yCoordinate = rowIndex + relativeRowIndex;
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.NETWORK, (long) width * height);
+        new RowBandScheduler(threads).process(height, (fromRow, toRow) -> {
+            int[][] windowRows = new int[windowSize][width];
+            double[] inputs = new double[windowsPerRow * windowPixels];
+            double[] outputs = new double[windowsPerRow * windowPixels];
 
-                            if (xCoordinate < 0){
-                                continue;
-                            }
-                            if (xCoordinate > width - 1){
-                                continue;
-                            }
-                            if (yCoordinate < 0){
-                                continue;
-                            }
-                            if (yCoordinate > height - 1){
-                                continue;
-                            }
+            for (int windowRowIndex = Math.max(0, fromRow - windowSize + 1);
+                 windowRowIndex < Math.min(toRow, height - windowSize + 1); windowRowIndex++) {
+                for (int relativeRowIndex = 0; relativeRowIndex < windowSize; relativeRowIndex++) {
+                    greyLevels.getRow(windowRowIndex + relativeRowIndex, windowRows[relativeRowIndex]);
+                }
 
-                            int currentNeighbourPixelValue = edgeImageProcessor.get(xCoordinate, yCoordinate);
-                            if (currentNeighbourPixelValue == 255){
-                                isNeighbourWhite = true;
-                                break;
-                            }
+                for (int columnIndex = 0; columnIndex < windowsPerRow; columnIndex++) {
+                    int windowOffset = columnIndex * windowPixels;
+                    for (int relativeRowIndex = 0; relativeRowIndex < windowSize; relativeRowIndex++) {
+                        for (int relativeColumnIndex = 0; relativeColumnIndex < windowSize; relativeColumnIndex++) {
+                            inputs[windowOffset + relativeRowIndex * windowSize + relativeColumnIndex] =
+                                    windowRows[relativeRowIndex][columnIndex + relativeColumnIndex] / 255.0;
                         }
                     }
+                }
+
+                perceptron.compute(inputs, outputs, windowsPerRow);
 
-                    if (!isNeighbourWhite){
-                        finalImageProcessor.set(columnIndex, rowIndex, 0);
-                    }else{
-                        finalImageProcessor.set(columnIndex, rowIndex, 255);
+                for (int relativeRowIndex = 0; relativeRowIndex < windowSize; relativeRowIndex++) {
+                    int rowIndex = windowRowIndex + relativeRowIndex;
+                    if (rowIndex < fromRow || rowIndex >= toRow) {
+                        continue;
+                    }
+                    for (int columnIndex = 0; columnIndex < windowsPerRow; columnIndex++) {
+                        int windowOffset = columnIndex * windowPixels + relativeRowIndex * windowSize;
+                        for (int relativeColumnIndex = 0; relativeColumnIndex < windowSize; relativeColumnIndex++) {
+                            if (outputs[windowOffset + relativeColumnIndex] >= 0.5) {
+                                edgeImage.set(columnIndex + relativeColumnIndex, rowIndex);
+                            }
+                        }
                     }
-                } else {
-                    finalImageProcessor.set(columnIndex, rowIndex, 0);
                 }
             }
-        }
+        });
+        Instrumentation.stop(span);
 
-        return finalImagePlus;
+        return edgeImage;
     }
 
-    private FeedforwardNetwork getNetwork(/*String choice*/) {
-        ArrayList<String> lines = new ArrayList<String>();
-        try {
-            /*String filename;
-            if(choice.equals(WHITE_EDGES_CHOICE)){
-                filename = "white_edges_weights.txt";
-            } else {
-                filename = "black_edges_weights.txt";
-            }*/
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(getClass().getClassLoader()
-                    .getResourceAsStream("weights.txt")));
-            String fileLine;
-            while ((fileLine = br.readLine()) != null) {
-                lines.add(fileLine);
-            }
+    /**
+     * The network input is always a binary 2x2 window, so there are only 16 distinct inputs. The network is
+     * evaluated once for each of them and the rounded outputs are stored as 4-bit masks indexed by the input window,
+     * top left pixel being the most significant bit and bottom right pixel the least significant one.
+     */
+    int[] getEdgeLookupTable(FeedforwardNetwork network) {
+        int[] edgeLookupTable = new int[16];
+        //the network may be shared with other runs of the plugin
+        synchronized (network) {
+            for (int index = 0; index < edgeLookupTable.length; index++) {
+                double[] values = {
+                        (index >> 3) & 1,
+                        (index >> 2) & 1,
+                        (index >> 1) & 1,
+                        index & 1
+                };
 
-            double[][] inputLayerWeights = new double[5][12];
-            double[][] hiddenLayerWeights = new double[13][4];
-            boolean forInput = true;
-
-            int counter = 0;
-            for (String line: lines) {
-                if (StringUtils.isBlank(line)) {
-                    forInput = false;
-                    counter = 0;
-                } else {
-                    if (forInput) {
-                        String[] strings = line.split(" ");
-                        for (int i = 0; i < strings.length; i++) {
-                            inputLayerWeights[counter][i] = Double.parseDouble(strings[i].replace(',', '.'));
-                        }
-                    } else {
-                        String[] strings = line.split(" ");
-                        for (int i = 0; i < strings.length; i++) {
-                            hiddenLayerWeights[counter][i] = Double.parseDouble(strings[i].replace(',', '.'));
-                        }
+                double[] output = network.computeOutputs(values);
+
+                int edges = 0;
+                for (int outputIndex = 0; outputIndex < 4; outputIndex++) {
+                    int pixelValue = (int)(Math.round(output[outputIndex]) * 255);
+                    if (pixelValue == 255) {
+                        edges |= 8 >> outputIndex;
                     }
-                    counter++;
                 }
+                edgeLookupTable[index] = edges;
             }
+        }
 
-            Matrix inputLayerMatrix = new Matrix(inputLayerWeights);
-            Matrix hiddenLayermatrix = new Matrix(hiddenLayerWeights);
-
-            FeedforwardNetwork network = new FeedforwardNetwork();
-            network.addLayer(new FeedforwardLayer(4));
-            network.addLayer(new FeedforwardLayer(12));
-            network.addLayer(new FeedforwardLayer(4));
-            network.reset();
-
-            FeedforwardLayer inputLayer = network.getInputLayer();
-            inputLayer.setMatrix(inputLayerMatrix);
+        return edgeLookupTable;
+    }
 
-            FeedforwardLayer hiddenLayer = (FeedforwardLayer) network.getHiddenLayers().toArray()[0];
-            hiddenLayer.setMatrix(hiddenLayermatrix);
+    ImagePlus getFinalImage(PackedBinaryImage edgeImage/*, String choice*/) {
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.ISOLATION_FILTER,
+                (long) edgeImage.getWidth() * edgeImage.getHeight());
+        PackedBinaryImage finalImage = edgeImage.removeIsolatedPixels();
+        ImagePlus finalImagePlus = finalImage.toImagePlus("ANN Edge Detection");
+        finalImage.release();
+        Instrumentation.stop(span);
+        return finalImagePlus;
+    }
 
-            return network;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * @return network shared by all runs of the plugin in the process, see NetworkCache
+     */
+    FeedforwardNetwork getNetwork(/*String choice*/) {
+        /*String filename;
+        if(choice.equals(WHITE_EDGES_CHOICE)){
+            filename = "white_edges_weights.txt";
+        } else {
+            filename = "black_edges_weights.txt";
+        }*/
 
-        return null;
+        return NetworkCache.getNetwork(WEIGHTS);
     }
 
-    private int getThresholdValue(int[] histogram, long total) {
-        int sum = 0;
-        for (int i = 1; i < 256; ++i) {
-            sum += i * histogram[i];
-        }
-
-        int sumB = 0;
-        int wB = 0;
-        double max = 0.0;
-        int threshold1 = 0;
-        int threshold2 = 0;
-        for (int i = 0; i < 256; ++i) {
-            wB += histogram[i];
-            if (wB == 0) {
-                continue;
-            }
+    /**
+     * @return network of the greyscale windows mode shared by all runs of the plugin in the process, see
+     * GREYSCALE_WEIGHTS
+     */
+    MultilayerPerceptron getPerceptron() {
+        return NetworkCache.getPerceptron(GREYSCALE_WEIGHTS);
+    }
 
-            long wF = total - wB;
-            if (wF == 0) {
-                break;
-            }
+    /**
+     * @return key of the results of process in ResultCache, they depend on the mode and the weights
+     */
+    String getCacheKey() {
+        return "ann " + (perceptron != null ? "greyscale" : "binary") + " weights " +
+                Long.toHexString(NetworkCache.getChecksum(perceptron != null ? GREYSCALE_WEIGHTS : WEIGHTS)) +
+                (pyramid != null ? " " + pyramid.getKey() : "");
+    }
 
-            sumB += i * histogram[i];
-            double mB = (double)sumB / wB;
-            double mF = (double)(sum - sumB) / wF;
-            double between = wB * wF * Math.pow(mB - mF, 2);
-            if (between >= max) {
-                threshold1 = i;
-                if (between > max) {
-                    threshold2 = i;
-                }
-                max = between;
-            }
+    /**
+     * @see OtsuThreshold#getThreshold(long[], long)
+     */
+    int getThresholdValue(int[] histogram, long total) {
+        long[] longHistogram = new long[histogram.length];
+        for (int i = 0; i < histogram.length; ++i) {
+            longHistogram[i] = histogram[i];
         }
-        return (threshold1 + threshold2) / 2;
+        return OtsuThreshold.getThreshold(longHistogram, total);
     }
-}
\ No newline at end of file
+}
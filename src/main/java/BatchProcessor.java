@@ -0,0 +1,379 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line entry point running the plugins over a directory of images without any dialog or window, e.g.
+ * java -cp Neural_Fuzzy_Plugins.jar:ij.jar:... BatchProcessor suliman "/data/in/*.tif" /data/out low=4 high=48
+ * Images are decoded by a reader thread, processed by worker threads and written by a writer thread, the stages are
+ * connected by bounded queues, so reading and writing files overlaps processing and memory use stays bounded.
+ */
+public class BatchProcessor {
+    private static final String USAGE = "Usage: BatchProcessor <ann|suliman|contrast> <input directory or glob> " +
+            "<output directory> [name=value ...]\n" +
+            "  ann:      greyscale=false threads=1\n" +
+            "  suliman:  low=4 high=48 weight=240 threads=1 streaming=false\n" +
+            "  contrast: exponent=2\n" +
+            "  all:      workers=<number of processors> queue=<2 * workers> stats=<JSON file of stage timings>\n" +
+            "            cache=false, true caches the results of the images, see ResultCache\n" +
+            "  suliman and greyscale ann: pyramid=false, true filters only the tiles which may contain edges, " +
+            "see PyramidProcessor\n" +
+            "            pyramidContrast=32 recallSample=0.1 minimumRecall=0.95";
+
+    /** marks the end of a queue **/
+    private static final BatchImage END = new BatchImage(null, null, null);
+
+    private static class BatchImage {
+        private final Path path;
+        private final Path outputPath;
+        private final ImagePlus imagePlus;
+
+        BatchImage(Path path, Path outputPath, ImagePlus imagePlus) {
+            this.path = path;
+            this.outputPath = outputPath;
+            this.imagePlus = imagePlus;
+        }
+    }
+
+    private final SliceFilter filter;
+    private final Path outputDirectory;
+    private final int workers;
+    private final BlockingQueue<BatchImage> decodedImages;
+    private final BlockingQueue<BatchImage> processedImages;
+
+    BatchProcessor(SliceFilter filter, Path outputDirectory, int workers, int queueCapacity) {
+        this.filter = filter;
+        this.outputDirectory = outputDirectory;
+        this.workers = Math.max(1, workers);
+        this.decodedImages = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.processedImages = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Map<String, String> parameters = new HashMap<>();
+        for (int argIndex = 3; argIndex < args.length; argIndex++) {
+            String[] parameter = args[argIndex].split("=", 2);
+            if (parameter.length != 2) {
+                System.err.println("Parameter should be name=value: " + args[argIndex] + "\n" + USAGE);
+                System.exit(1);
+            }
+            parameters.put(parameter[0], parameter[1]);
+        }
+
+        SliceFilter filter;
+        PyramidProcessor pyramid;
+        try {
+            pyramid = getPyramid(parameters);
+            filter = getFilter(args[0], parameters, pyramid);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            System.exit(1);
+            return;
+        }
+
+        List<Path> inputPaths = getInputPaths(args[1]);
+        Path outputDirectory = Paths.get(args[2]);
+        Files.createDirectories(outputDirectory);
+
+        int workers = Integer.parseInt(parameters.getOrDefault("workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int queueCapacity = Integer.parseInt(parameters.getOrDefault("queue", String.valueOf(2 * workers)));
+        if (parameters.containsKey("stats")) {
+            Instrumentation.setEnabled(true);
+        }
+
+        long startTime = System.nanoTime();
+        BatchProcessor batchProcessor = new BatchProcessor(filter, outputDirectory, workers, queueCapacity);
+        int processed = batchProcessor.process(inputPaths);
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+
+        System.out.println(String.format("Processed %d of %d images in %.2f s, %.2f images/s", processed,
+                inputPaths.size(), seconds, processed / seconds));
+        if (parameters.containsKey("stats")) {
+            Files.write(Paths.get(parameters.get("stats")),
+                    Instrumentation.getSummary().getBytes(StandardCharsets.UTF_8));
+        }
+        if (Boolean.parseBoolean(parameters.getOrDefault("cache", String.valueOf(ResultCache.isEnabledByDefault())))) {
+            System.out.println("Result cache " + ResultCache.shared().getStatistics());
+        }
+        if (pyramid != null) {
+            System.out.println("Pyramid " + pyramid.getStatistics());
+        }
+        if (processed != inputPaths.size()) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @param parameters with cache=true, which is the default with -Dneuralfuzzy.cache=true, results are looked up in
+     *                   and stored to ResultCache
+     */
+    static SliceFilter getFilter(String algorithm, Map<String, String> parameters) {
+        return getFilter(algorithm, parameters, getPyramid(parameters));
+    }
+
+    /**
+     * @return coarse-to-fine processor of the edge detection plugins given by pyramid=true and its settings, null by
+     * default
+     */
+    static PyramidProcessor getPyramid(Map<String, String> parameters) {
+        if (!Boolean.parseBoolean(parameters.getOrDefault("pyramid", "false"))) {
+            return null;
+        }
+        return new PyramidProcessor(Integer.parseInt(parameters.getOrDefault("pyramidContrast", "32")),
+                Double.parseDouble(parameters.getOrDefault("recallSample", "0.1")),
+                Double.parseDouble(parameters.getOrDefault("minimumRecall", "0.95")));
+    }
+
+    /**
+     * @param pyramid processor the edge detection plugins filter the images by, see getPyramid
+     */
+    static SliceFilter getFilter(String algorithm, Map<String, String> parameters, PyramidProcessor pyramid) {
+        SliceFilter filter;
+        String cacheKey;
+        switch (algorithm) {
+            case "ann": {
+                ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                        new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                if (Boolean.parseBoolean(parameters.getOrDefault("greyscale", "false"))) {
+                    plugin.perceptron = plugin.getPerceptron();
+                } else {
+                    plugin.edgeLookupTable = plugin.getEdgeLookupTable(plugin.getNetwork());
+                }
+                //images are processed in parallel already
+                plugin.threads = Integer.parseInt(parameters.getOrDefault("threads", "1"));
+                plugin.pyramid = plugin.perceptron != null ? pyramid : null;
+                filter = plugin::process;
+                cacheKey = plugin.getCacheKey();
+                break;
+            }
+            case "suliman": {
+                Fuzzy_Edge_Detection_By_Suliman_And_Others plugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+                //images are processed in parallel already
+                plugin.threads = Integer.parseInt(parameters.getOrDefault("threads", "1"));
+                plugin.pyramid = pyramid;
+                int[][] centersOfClasses = plugin.getCentersOfClasses(
+                        Integer.parseInt(parameters.getOrDefault("low", "4")),
+                        Integer.parseInt(parameters.getOrDefault("high", "48")));
+                int weight = Integer.parseInt(parameters.getOrDefault("weight", "240"));
+                boolean streaming = Boolean.parseBoolean(parameters.getOrDefault("streaming", "false"));
+                filter = imageProcessor -> plugin.process(imageProcessor, centersOfClasses, weight, streaming);
+                cacheKey = plugin.getCacheKey(centersOfClasses, weight);
+                break;
+            }
+            case "contrast": {
+                Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization plugin =
+                        new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+                double fuzzyExponent = Double.parseDouble(parameters.getOrDefault("exponent", "2"));
+                filter = imageProcessor -> plugin.process(imageProcessor, fuzzyExponent);
+                cacheKey = plugin.getCacheKey(fuzzyExponent);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        }
+
+        if (!Boolean.parseBoolean(parameters.getOrDefault("cache", String.valueOf(ResultCache.isEnabledByDefault())))) {
+            return filter;
+        }
+        SliceFilter uncachedFilter = filter;
+        return imageProcessor -> ResultCache.shared().process(imageProcessor, cacheKey, uncachedFilter::process);
+    }
+
+    /**
+     * @param input directory, all files of which are taken, or glob of file names, e.g. /data/*.tif
+     */
+    static List<Path> getInputPaths(String input) throws IOException {
+        Path inputPath = Paths.get(input);
+        Path directory;
+        String glob;
+        if (Files.isDirectory(inputPath)) {
+            directory = inputPath;
+            glob = "*";
+        } else {
+            directory = inputPath.toAbsolutePath().getParent();
+            glob = inputPath.getFileName().toString();
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        List<Path> inputPaths = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+            for (Path path : paths) {
+                if (Files.isRegularFile(path) && matcher.matches(path.getFileName())) {
+                    inputPaths.add(path);
+                }
+            }
+        }
+        Collections.sort(inputPaths);
+        return inputPaths;
+    }
+
+    /**
+     * @return name of the result of the image in the output directory, the source file name with .tif appended unless
+     * it's a TIFF file already, so that e.g. a.png and a.jpg don't overwrite each other's results
+     */
+    static String getOutputFileName(Path path) {
+        String fileName = path.getFileName().toString();
+        String lowerCaseFileName = fileName.toLowerCase(Locale.ROOT);
+        return lowerCaseFileName.endsWith(".tif") || lowerCaseFileName.endsWith(".tiff") ? fileName :
+                fileName + ".tif";
+    }
+
+    /**
+     * An image whose result would overwrite the one of an earlier image, e.g. a and a.tif, fails without being read
+     * @return number of images processed and written successfully
+     */
+    int process(List<Path> inputPaths) throws InterruptedException {
+        Map<Path, Path> outputPaths = new LinkedHashMap<>();
+        //compared ignoring case, like on the file systems of Windows and macOS
+        Map<String, Path> outputFileNames = new HashMap<>();
+        for (Path path : inputPaths) {
+            String outputFileName = getOutputFileName(path);
+            Path earlierPath = outputFileNames.putIfAbsent(outputFileName.toLowerCase(Locale.ROOT), path);
+            if (earlierPath != null) {
+                fail(path, "has the same output file " + outputFileName + " as " + earlierPath);
+                continue;
+            }
+            outputPaths.put(path, outputDirectory.resolve(outputFileName));
+        }
+
+        Thread reader = new Thread(() -> read(outputPaths), "BatchProcessor reader");
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int workerIndex = 0; workerIndex < workers; workerIndex++) {
+            workerThreads.add(new Thread(this::work, "BatchProcessor worker " + workerIndex));
+        }
+        AtomicInteger written = new AtomicInteger();
+        Thread writer = new Thread(() -> write(written), "BatchProcessor writer");
+
+        reader.start();
+        for (Thread workerThread : workerThreads) {
+            workerThread.start();
+        }
+        writer.start();
+
+        reader.join();
+        for (Thread workerThread : workerThreads) {
+            workerThread.join();
+        }
+        processedImages.put(END);
+        writer.join();
+
+        return written.get();
+    }
+
+    private void read(Map<Path, Path> outputPaths) {
+        try {
+            try {
+                for (Map.Entry<Path, Path> entry : outputPaths.entrySet()) {
+                    Path path = entry.getKey();
+                    ImagePlus imagePlus;
+                    try {
+                        imagePlus = IJ.openImage(path.toString());
+                    } catch (Throwable e) {
+                        fail(path, e.toString());
+                        continue;
+                    }
+                    if (imagePlus == null) {
+                        fail(path, "can't be opened");
+                        continue;
+                    }
+                    decodedImages.put(new BatchImage(path, entry.getValue(), imagePlus));
+                }
+            } finally {
+                //every worker stops at its own end mark, even if the reader stops early, so process always returns
+                for (int workerIndex = 0; workerIndex < workers; workerIndex++) {
+                    decodedImages.put(END);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        try {
+            for (BatchImage image = decodedImages.take(); image != END; image = decodedImages.take()) {
+                try {
+                    processedImages.put(new BatchImage(image.path, image.outputPath, process(image.imagePlus)));
+                } catch (Throwable e) {
+                    //errors such as OutOfMemoryError fail the image only, a dead worker would never take its end mark
+                    fail(image.path, e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(AtomicInteger written) {
+        try {
+            for (BatchImage image = processedImages.take(); image != END; image = processedImages.take()) {
+                try {
+                    write(image, written);
+                } catch (Throwable e) {
+                    //a dead writer would leave the workers blocked on the full queue
+                    fail(image.path, e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(BatchImage image, AtomicInteger written) {
+        File outputFile = image.outputPath.toFile();
+        FileSaver fileSaver = new FileSaver(image.imagePlus);
+        boolean saved = image.imagePlus.getStackSize() > 1 ?
+                fileSaver.saveAsTiffStack(outputFile.getPath()) : fileSaver.saveAsTiff(outputFile.getPath());
+        if (saved) {
+            written.incrementAndGet();
+        } else {
+            fail(image.path, "can't be written to " + outputFile);
+        }
+    }
+
+    /**
+     * Processes every slice of a stack, results are put to a stack of the same dimensions
+     */
+    private ImagePlus process(ImagePlus imagePlus) {
+        ImageStack stack = imagePlus.getStack();
+        SliceResults sliceResults = new SliceResults(imagePlus, stack.getSize());
+        for (int sliceNumber = 1; sliceNumber <= stack.getSize(); sliceNumber++) {
+            ImageProcessor imageProcessor = stack.getProcessor(sliceNumber);
+            imageProcessor.setSliceNumber(sliceNumber);
+            sliceResults.set(imageProcessor, filter.process(imageProcessor));
+        }
+        return sliceResults.getImagePlus(imagePlus.getTitle());
+    }
+
+    private void fail(Path path, String message) {
+        System.err.println(path + ": " + message);
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of the working arrays of the plugins keyed by their type and size, so that processing a stream of images of
+ * the same size reuses the arrays of the previous images instead of allocating new ones for every image. Arrays are
+ * taken by get and given back by release when they are not needed anymore, arrays which are not given back are simply
+ * garbage collected.
+ *
+ * The pool retains up to maxRetainedBytes, when a released array doesn't fit the arrays of the least recently used
+ * sizes are dropped first. Arrays are returned as they were released, callers which need zeros clear them.
+ */
+final class BufferPool {
+    /** pool shared by all plugin runs in the process **/
+    private static final BufferPool SHARED = new BufferPool(Runtime.getRuntime().maxMemory() / 8);
+
+    private static final class Key {
+        private final Class<?> type;
+        private final int length;
+        private final int rowLength;
+
+        Key(Class<?> type, int length, int rowLength) {
+            this.type = type;
+            this.length = length;
+            this.rowLength = rowLength;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+            return type == key.type && length == key.length && rowLength == key.rowLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + length) * 31 + rowLength;
+        }
+    }
+
+    /** released arrays by their key, in the order the keys were used, the least recently used first **/
+    private final LinkedHashMap<Key, ArrayDeque<Object>> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxRetainedBytes;
+    private long retainedBytes;
+
+    BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param maxRetainedBytes 0 disables the pool, every get allocates a new array then
+     */
+    synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        evict(0);
+    }
+
+    synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    byte[] getBytes(int length) {
+        byte[] buffer = (byte[]) take(new Key(byte[].class, length, 0));
+        return buffer != null ? buffer : new byte[length];
+    }
+
+    int[] getInts(int length) {
+        int[] buffer = (int[]) take(new Key(int[].class, length, 0));
+        return buffer != null ? buffer : new int[length];
+    }
+
+    /**
+     * @return array of zeros, pooled arrays are cleared
+     */
+    int[] getZeroedInts(int length) {
+        int[] buffer = (int[]) take(new Key(int[].class, length, 0));
+        if (buffer == null) {
+            return new int[length];
+        }
+        Arrays.fill(buffer, 0);
+        return buffer;
+    }
+
+    long[] getLongs(int length) {
+        long[] buffer = (long[]) take(new Key(long[].class, length, 0));
+        return buffer != null ? buffer : new long[length];
+    }
+
+    /**
+     * @return array of zeros, pooled arrays are cleared
+     */
+    long[] getZeroedLongs(int length) {
+        long[] buffer = (long[]) take(new Key(long[].class, length, 0));
+        if (buffer == null) {
+            return new long[length];
+        }
+        Arrays.fill(buffer, 0);
+        return buffer;
+    }
+
+    double[] getDoubles(int length) {
+        double[] buffer = (double[]) take(new Key(double[].class, length, 0));
+        return buffer != null ? buffer : new double[length];
+    }
+
+    /**
+     * @return rows * rowLength matrix
+     */
+    int[][] getInts(int rows, int rowLength) {
+        int[][] buffer = (int[][]) take(new Key(int[][].class, rows, rowLength));
+        return buffer != null ? buffer : new int[rows][rowLength];
+    }
+
+    /**
+     * @return rows * rowLength matrix of vectors of 4 ints, e.g. the input vectors of the Suliman plugin
+     */
+    int[][][] getIntVectors(int rows, int rowLength) {
+        int[][][] buffer = (int[][][]) take(new Key(int[][][].class, rows, rowLength));
+        return buffer != null ? buffer : new int[rows][rowLength][4];
+    }
+
+    /**
+     * Gives an array taken by one of the get methods back to the pool, the caller shouldn't use it anymore
+     * @throws IllegalStateException if the array is in the pool already, it would be given to two callers otherwise
+     */
+    void release(Object buffer) {
+        Key key = getKey(buffer);
+        put(key, buffer, getBytes(key));
+    }
+
+    private static Key getKey(Object buffer) {
+        if (buffer instanceof byte[]) {
+            return new Key(byte[].class, ((byte[]) buffer).length, 0);
+        } else if (buffer instanceof int[]) {
+            return new Key(int[].class, ((int[]) buffer).length, 0);
+        } else if (buffer instanceof long[]) {
+            return new Key(long[].class, ((long[]) buffer).length, 0);
+        } else if (buffer instanceof double[]) {
+            return new Key(double[].class, ((double[]) buffer).length, 0);
+        } else if (buffer instanceof int[][]) {
+            int[][] matrix = (int[][]) buffer;
+            return new Key(int[][].class, matrix.length, matrix.length > 0 ? matrix[0].length : 0);
+        } else if (buffer instanceof int[][][]) {
+            int[][][] matrix = (int[][][]) buffer;
+            return new Key(int[][][].class, matrix.length, matrix.length > 0 ? matrix[0].length : 0);
+        }
+        throw new IllegalArgumentException("Arrays of this type are not pooled: " + buffer.getClass());
+    }
+
+    private synchronized Object take(Key key) {
+        ArrayDeque<Object> keyBuffers = buffers.get(key);
+        if (keyBuffers == null || keyBuffers.isEmpty()) {
+            return null;
+        }
+        Object buffer = keyBuffers.pop();
+        retainedBytes -= getBytes(key);
+        if (keyBuffers.isEmpty()) {
+            buffers.remove(key);
+        }
+        return buffer;
+    }
+
+    private synchronized void put(Key key, Object buffer, long bytes) {
+        if (bytes > maxRetainedBytes) {
+            return;
+        }
+        ArrayDeque<Object> keyBuffers = buffers.get(key);
+        if (keyBuffers != null) {
+            //few arrays of a size are released at once, so the check is cheap
+            for (Object pooledBuffer : keyBuffers) {
+                if (pooledBuffer == buffer) {
+                    throw new IllegalStateException("Array was released twice");
+                }
+            }
+        }
+        evict(bytes);
+        buffers.computeIfAbsent(key, newKey -> new ArrayDeque<>()).push(buffer);
+        retainedBytes += bytes;
+    }
+
+    /**
+     * Drops the arrays of the least recently used sizes until the given number of bytes fits
+     */
+    private void evict(long bytes) {
+        Iterator<Map.Entry<Key, ArrayDeque<Object>>> iterator = buffers.entrySet().iterator();
+        while (retainedBytes + bytes > maxRetainedBytes && iterator.hasNext()) {
+            Map.Entry<Key, ArrayDeque<Object>> entry = iterator.next();
+            retainedBytes -= entry.getValue().size() * getBytes(entry.getKey());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return approximate heap size of an array, object headers included
+     */
+    private static long getBytes(Key key) {
+        if (key.type == byte[].class) {
+            return key.length;
+        } else if (key.type == int[].class) {
+            return 4L * key.length;
+        } else if (key.type == long[].class || key.type == double[].class) {
+            return 8L * key.length;
+        } else if (key.type == int[][].class) {
+            return (long) key.length * (16 + 4L * key.rowLength);
+        }
+        //every vector is an array of its own
+        return (long) key.length * (16 + key.rowLength * (4L + 16 + 4 * 4));
+    }
+}
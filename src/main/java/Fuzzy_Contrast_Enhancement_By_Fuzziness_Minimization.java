@@ -2,7 +2,9 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.gui.NewImage;
-import ij.plugin.filter.PlugInFilter;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 /**
@@ -11,92 +13,282 @@ import ij.process.ImageProcessor;
  * Implemented on the basis of fuzziness minimization algorithm:
  * http://www.ijstm.com/images/short_pdf/1419414679_P154-160.pdf
  */
-public class Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization implements PlugInFilter {
+public class Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization implements ExtendedPlugInFilter {
+    /** number of points the transfer function of 32-bit images is sampled at **/
+    private static final int FLOAT_SAMPLES = 65536;
+
+    /** results of the processed slices, they are shown together when all of them are done **/
+    private SliceResults sliceResults;
+    private ImagePlus imagePlus;
+    private double fuzzyExponent;
+    /** whether unchanged tiles are copied from the previous result of the slice, see RegionProcessor **/
+    private boolean incremental;
+    /** whether results of whole images are looked up in and stored to the result cache, see ResultCache **/
+    private boolean cached;
+
     @Override
     public int setup(String s, ImagePlus imagePlus) {
-        return DOES_8G + NO_CHANGES;
+        if ("final".equals(s)) {
+            ImagePlus enhancedImagePlus = sliceResults.getImagePlus("Enhanced image");
+            if (enhancedImagePlus != null) {
+                enhancedImagePlus.show();
+            }
+            if (cached) {
+                IJ.log("Enhanced image: result cache " + ResultCache.shared().getStatistics());
+            }
+            //stage totals of all the runs since ImageJ was started
+            if (Instrumentation.isEnabled()) {
+                IJ.log(Instrumentation.getSummary());
+            }
+            return DONE;
+        }
+        this.imagePlus = imagePlus;
+        return DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
     }
 
     @Override
-    public void run(ImageProcessor imageProcessor) {
+    public int showDialog(ImagePlus imagePlus, String command, PlugInFilterRunner pfr) {
         GenericDialog gd = new GenericDialog("Algorithm settings");
         gd.addNumericField("Fuzzy exponent:", 2, 0);
+        gd.addCheckbox("Incremental re-processing of changed tiles", false);
+        gd.addCheckbox("Cache results of repeated runs", ResultCache.isEnabledByDefault());
 
         gd.showDialog();
         if (gd.wasCanceled()) {
             IJ.error("Plugin run cancelled!");
+            return DONE;
+        }
+
+        fuzzyExponent = gd.getNextNumber();
+        incremental = gd.getNextBoolean();
+        cached = gd.getNextBoolean();
+
+        return DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
+    }
+
+    @Override
+    public void setNPasses(int nPasses) {
+        sliceResults = new SliceResults(imagePlus, nPasses);
+    }
+
+    /**
+     * Every slice of a stack is enhanced between its own minimum and maximum
+     */
+    @Override
+    public void run(ImageProcessor imageProcessor) {
+        if (incremental || RegionProcessor.hasRegion(imageProcessor)) {
+            sliceResults.set(imageProcessor, processRegion(imageProcessor, fuzzyExponent, incremental ?
+                    RegionProcessor.getIncrementalKey(this, imagePlus, sliceResults.getSliceNumber(imageProcessor)) :
+                    null));
             return;
         }
+        sliceResults.set(imageProcessor, cached ? ResultCache.shared().process(imageProcessor,
+                getCacheKey(fuzzyExponent), source -> process(source, fuzzyExponent)) :
+                process(imageProcessor, fuzzyExponent));
+    }
+
+    /**
+     * @return key of the results of process in ResultCache
+     */
+    String getCacheKey(double fuzzyExponent) {
+        return "contrast exponent " + fuzzyExponent;
+    }
+
+    /**
+     * Enhances contrast of a single image
+     * @return enhanced image of the same bit depth
+     */
+    ImageProcessor process(ImageProcessor imageProcessor, double fuzzyExponent) {
+        double[] minAndMax = getMinAndMax(imageProcessor);
+        double min = minAndMax[0], max = minAndMax[1];
+
+        ImagePlus enhancedImagePlus;
+        if (imageProcessor instanceof FloatProcessor) {
+            enhancedImagePlus = getEnhancedFloatImage(imageProcessor, min, max, fuzzyExponent);
+        } else {
+            int[] lookupTable = getLookupTable((int) min, (int) max, fuzzyExponent,
+                    imageProcessor.getBitDepth() == 16 ? 65536 : 256);
+            enhancedImagePlus = getEnhancedImage(imageProcessor, lookupTable);
+            //lookup tables of the same bit depth are reused, see BufferPool
+            BufferPool.shared().release(lookupTable);
+        }
+
+        return enhancedImagePlus.getProcessor();
+    }
+
+    /**
+     * Enhances contrast inside the ROI of the image only, see RegionProcessor. The minimum and the maximum are the
+     * whole image's ones, so the pixels inside the ROI are the same as the ones of process.
+     * @param incrementalKey see RegionProcessor.process
+     * @return enhanced image of the same bit depth, the source pixels outside the ROI
+     */
+    ImageProcessor processRegion(ImageProcessor imageProcessor, double fuzzyExponent, String incrementalKey) {
+        double[] minAndMax = getMinAndMax(imageProcessor);
+        TiledFilter filter = getTiledFilter(minAndMax[0], minAndMax[1], imageProcessor.getBitDepth(), fuzzyExponent);
+        ImageProcessor enhancedImageProcessor = RegionProcessor.process(imageProcessor, filter,
+                imageProcessor.duplicate(), 1, incrementalKey);
+        enhancedImageProcessor.resetMinAndMax();
+        return enhancedImageProcessor;
+    }
+
+    /**
+     * Filter of tiles enhanced between the minimum and the maximum of the whole image, see TiledFilter. Pixels are
+     * enhanced one by one, so there is no halo.
+     */
+    TiledFilter getTiledFilter(double min, double max, int bitDepth, double fuzzyExponent) {
+        String key = "contrast " + min + "-" + max + " exponent " + fuzzyExponent;
+        if (bitDepth == 32) {
+            return new TiledFilter(0, 32, key, tile -> getEnhancedFloatImage(tile, min, max, fuzzyExponent)
+                    .getProcessor());
+        }
+        int[] lookupTable = getLookupTable((int) min, (int) max, fuzzyExponent, bitDepth == 16 ? 65536 : 256);
+        return new TiledFilter(0, bitDepth, key, tile -> getEnhancedImage(tile, lookupTable).getProcessor());
+    }
+
+    /**
+     * NaN and infinite pixels of 32-bit images are ignored, see GreyLevels.getRange
+     */
+    double[] getMinAndMax(ImageProcessor imageProcessor) {
+        Object pixels = imageProcessor.getPixels();
+        if (!(pixels instanceof byte[])) {
+            return GreyLevels.getRange(pixels);
+        }
 
-        int width = imageProcessor.getWidth(), height =imageProcessor.getHeight();
         int max = Integer.MIN_VALUE, min = Integer.MAX_VALUE;
-        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
-            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
-                int value = imageProcessor.get(columnIndex, rowIndex);
-
-                if (value > max) {
-                    max = value;
-                }
-                if (value < min) {
-                    min = value;
-                }
+        for (byte pixel : (byte[]) pixels) {
+            int value = pixel & 0xff;
+            if (value > max) {
+                max = value;
+            }
+            if (value < min) {
+                min = value;
             }
         }
 
-        double fuzzyExponent = gd.getNextNumber();
+        return new double[]{min, max};
+    }
+
+    /**
+     * Every enhanced pixel depends on the grey level of the source pixel only, so fuzzification, intensification
+     * and defuzzification are done once per grey level
+     * @param levels 256 for 8-bit images, 65536 for 16-bit ones
+     * @return enhanced grey level for every source grey level from min to max
+     */
+    int[] getLookupTable(int min, int max, double fuzzyExponent, int levels) {
         double crossoverPoint = min + ((max-min+1)/2);
         double fuzzyDenominator = (max - crossoverPoint) / (Math.pow(2, (1 / fuzzyExponent)) - 1);
         //minimum allowed membership value
         double alpha = Math.pow(1.0 + (max - min) / fuzzyDenominator, -fuzzyExponent);
 
-        /********************************************** Fuzzification *********************************************/
-        double[][] membershipValuesMatrix = new double[height][width];
-        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
-            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
-                int value = imageProcessor.get(columnIndex, rowIndex);
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.LUT_BUILD,
+                Math.max(0, max - min + 1));
+        int[] lookupTable = BufferPool.shared().getZeroedInts(levels);
+        for (int value = min; value <= max; value++) {
+            double membershipValue = fuzzify(value, max, fuzzyDenominator, fuzzyExponent);
+            membershipValue = intensify(membershipValue, alpha);
+            //values out of range wrap around, as they did with ByteProcessor.set
+            lookupTable[value] = (int) defuzzify(membershipValue, max, fuzzyDenominator, fuzzyExponent) & (levels - 1);
+        }
+        Instrumentation.stop(span);
+
+        return lookupTable;
+    }
+
+    ImagePlus getEnhancedImage(ImageProcessor imageProcessor, int[] lookupTable) {
+        int width = imageProcessor.getWidth(), height =imageProcessor.getHeight();
+
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.LUT_MAP, (long) width * height);
+        ImagePlus enhancedImagePlus;
+        if (imageProcessor.getBitDepth() == 16) {
+            enhancedImagePlus = NewImage.createShortImage("Enhanced image", width, height, 1, NewImage.FILL_BLACK);
+            short[] pixels = (short[]) imageProcessor.getPixels();
+            short[] enhancedPixels = (short[]) enhancedImagePlus.getProcessor().getPixels();
 
-                membershipValuesMatrix[rowIndex][columnIndex] = (Math.pow((1 + ((max - value) / fuzzyDenominator)),
-                        -fuzzyExponent));
+            for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+                enhancedPixels[pixelIndex] = (short) lookupTable[pixels[pixelIndex] & 0xffff];
             }
+        } else {
+            enhancedImagePlus = NewImage.createByteImage("Enhanced image", width, height, 1, NewImage.FILL_BLACK);
+            byte[] pixels = (byte[]) imageProcessor.getPixels();
+            byte[] enhancedPixels = (byte[]) enhancedImagePlus.getProcessor().getPixels();
+
+            PixelKernels.get().mapPixels(pixels, lookupTable, enhancedPixels);
         }
-        /******************************************* End of Fuzzification ******************************************/
-
-        /***************************** Fuzzy Intensification *******************************/
-        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
-            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
-                if (membershipValuesMatrix[rowIndex][columnIndex] <= 0.5) {
-                    membershipValuesMatrix[rowIndex][ columnIndex] = 2 * Math.pow(
-                            membershipValuesMatrix[rowIndex][columnIndex], 2);
-                } else {
-                    membershipValuesMatrix[rowIndex][columnIndex] = 1 - 2 * (Math.pow(1 -
-                            membershipValuesMatrix[rowIndex][columnIndex], 2));
-                }
-
-                if (membershipValuesMatrix[rowIndex][columnIndex] < alpha){
-                    membershipValuesMatrix[rowIndex][columnIndex] = alpha;
-                }
-            }
+        Instrumentation.stop(span);
+
+        return enhancedImagePlus;
+    }
+
+    /**
+     * 32-bit pixels have no finite set of values, so the transfer function is sampled at FLOAT_SAMPLES evenly spaced
+     * points from min to max and interpolated linearly between them
+     */
+    ImagePlus getEnhancedFloatImage(ImageProcessor imageProcessor, double min, double max, double fuzzyExponent) {
+        int width = imageProcessor.getWidth(), height =imageProcessor.getHeight();
+
+        double crossoverPoint = min + (max - min) / 2;
+        double fuzzyDenominator = (max - crossoverPoint) / (Math.pow(2, (1 / fuzzyExponent)) - 1);
+        //minimum allowed membership value
+        double alpha = Math.pow(1.0 + (max - min) / fuzzyDenominator, -fuzzyExponent);
+
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.LUT_BUILD, FLOAT_SAMPLES);
+        double step = (max - min) / (FLOAT_SAMPLES - 1);
+        double[] transferFunction = BufferPool.shared().getDoubles(FLOAT_SAMPLES);
+        for (int sampleIndex = 0; sampleIndex < FLOAT_SAMPLES; sampleIndex++) {
+            double membershipValue = fuzzify(min + sampleIndex * step, max, fuzzyDenominator, fuzzyExponent);
+            membershipValue = intensify(membershipValue, alpha);
+            transferFunction[sampleIndex] = defuzzify(membershipValue, max, fuzzyDenominator, fuzzyExponent);
         }
-        /************************** End of Fuzzy Intensification *************************/
+        Instrumentation.stop(span);
 
-        ImagePlus enhancedImagePlus = NewImage.createByteImage("Enhanced image", width, height, 1,
+        span = Instrumentation.start(Instrumentation.Stage.LUT_MAP, (long) width * height);
+        ImagePlus enhancedImagePlus = NewImage.createFloatImage("Enhanced image", width, height, 1,
                 NewImage.FILL_BLACK);
-        ImageProcessor enhancedImageProcessor = enhancedImagePlus.getProcessor();
-
-        /*********************************************** Defuzzification *********************************************/
-        for (int rowIndex = 0; rowIndex < height; rowIndex++)
-        {
-            for (int columnIndex = 0; columnIndex < width; columnIndex++)
-            {
-                int value = (int) (max - (fuzzyDenominator * ((Math.pow(membershipValuesMatrix[rowIndex][columnIndex],
-                        (-1/fuzzyExponent))) - 1)));
-
-                //if (color < 0) color = min;
-                enhancedImageProcessor.set(columnIndex, rowIndex, value);
-            }
+        float[] pixels = (float[]) imageProcessor.getPixels();
+        float[] enhancedPixels = (float[]) enhancedImagePlus.getProcessor().getPixels();
+
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            //infinite pixels take the ends of the transfer function, NaN pixels stay NaN
+            double position = step > 0 ? Math.min(Math.max((pixels[pixelIndex] - min) / step, 0),
+                    FLOAT_SAMPLES - 1) : 0;
+            int sampleIndex = Math.min(Math.max((int) position, 0), FLOAT_SAMPLES - 2);
+            double fraction = position - sampleIndex;
+            enhancedPixels[pixelIndex] = (float) (transferFunction[sampleIndex] + fraction *
+                    (transferFunction[sampleIndex + 1] - transferFunction[sampleIndex]));
+        }
+
+        BufferPool.shared().release(transferFunction);
+
+        enhancedImagePlus.getProcessor().resetMinAndMax();
+        Instrumentation.stop(span);
+        return enhancedImagePlus;
+    }
+
+    /********************************************** Fuzzification *********************************************/
+    private double fuzzify(double value, double max, double fuzzyDenominator, double fuzzyExponent) {
+        return (Math.pow((1 + ((max - value) / fuzzyDenominator)), -fuzzyExponent));
+    }
+
+    /***************************** Fuzzy Intensification *******************************/
+    private double intensify(double membershipValue, double alpha) {
+        if (membershipValue <= 0.5) {
+            membershipValue = 2 * Math.pow(membershipValue, 2);
+        } else {
+            membershipValue = 1 - 2 * (Math.pow(1 - membershipValue, 2));
         }
-        /******************************************* End of Defuzzification *****************************************/
 
-        enhancedImagePlus.show();
+        if (membershipValue < alpha){
+            membershipValue = alpha;
+        }
+
+        return membershipValue;
+    }
+
+    /*********************************************** Defuzzification *********************************************/
+    private double defuzzify(double membershipValue, double max, double fuzzyDenominator, double fuzzyExponent) {
+        //if (color < 0) color = min;
+        return max - (fuzzyDenominator * ((Math.pow(membershipValue, (-1/fuzzyExponent))) - 1));
     }
 }
@@ -1,17 +1,22 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.NewImage;
-import ij.plugin.filter.PlugInFilter;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
+import java.util.Arrays;
+
 /**
  * @author Vladimir Nizamutdinov (astartes91@gmail.com)
  * Fuzzy logic based edge detection plugin for ImageJ
  * Implemented on the basis of Suliman et. al algorithm (2011)
  * http://webbut.unitbv.ro/bu2011/Series%20I/BULETIN%20I%20PDF/Suliman%20C.pdf
  */
-public class Fuzzy_Edge_Detection_By_Suliman_And_Others implements PlugInFilter {
+public class Fuzzy_Edge_Detection_By_Suliman_And_Others implements ExtendedPlugInFilter {
 
     private static int BACKGROUND_CLASS_0 = 0;
     private static int EDGE_CLASS_1 = 1;
@@ -20,322 +25,628 @@ public class Fuzzy_Edge_Detection_By_Suliman_And_Others implements PlugInFilter
     private static int EDGE_CLASS_4 = 4;
     private static int NOISY_EDGE_CLASS_5 = 5;
 
+    /** bounds of the parameters classes are found by integer squared distances for, see classifyRow **/
+    private static final int MAX_SQUARED_DISTANCE_WEIGHT = 65535;
+    private static final int MAX_SQUARED_DISTANCE_CENTER = 16384;
+
+    /** number of threads processing row bands of the image, 1 means sequential processing **/
+    int threads = Prefs.getThreads();
+
+    /** whether unchanged tiles are copied from the previous result of the slice, see RegionProcessor **/
+    boolean incremental;
+    /** whether tiles unchanged since the previous slice are copied from its result, see processNextSlice **/
+    boolean temporal;
+    /** whether results of whole images are looked up in and stored to the result cache, see ResultCache **/
+    boolean cached;
+    /** filters only the tiles of whole images which may contain edges, null to filter every pixel, see process **/
+    PyramidProcessor pyramid;
+    /** result of the previous slice in the temporal mode **/
+    private RegionProcessor.Result previousSliceResult;
+    /** tiles of the slices processed in the temporal mode and the ones of them copied from the previous slices **/
+    int tiles;
+    int reusedTiles;
+    /** results of the processed slices, they are shown together when all of them are done **/
+    private SliceResults sliceResults;
+    private ImagePlus imagePlus;
+    private int[][] centersOfClasses;
+    private int weight;
+    private boolean streaming;
+
     @Override
     public int setup(String s, ImagePlus imagePlus) {
-        return DOES_8G + NO_CHANGES;
+        if ("final".equals(s)) {
+            ImagePlus finalImagePlus = sliceResults.getImagePlus("Fuzzy Edge Detection");
+            if (finalImagePlus != null) {
+                finalImagePlus.show();
+            }
+            if (temporal) {
+                IJ.log(String.format("Fuzzy Edge Detection: %d of %d tiles reused from the previous slices",
+                        reusedTiles, tiles));
+            }
+            if (cached) {
+                IJ.log("Fuzzy Edge Detection: result cache " + ResultCache.shared().getStatistics());
+            }
+            if (pyramid != null) {
+                IJ.log("Fuzzy Edge Detection: pyramid " + pyramid.getStatistics());
+            }
+            //stage totals of all the runs since ImageJ was started
+            if (Instrumentation.isEnabled()) {
+                IJ.log(Instrumentation.getSummary());
+            }
+            return DONE;
+        }
+        this.imagePlus = imagePlus;
+        return DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
     }
 
     @Override
-    public void run(ImageProcessor imageProcessor) {
+    public int showDialog(ImagePlus imagePlus, String command, PlugInFilterRunner pfr) {
         GenericDialog gd = new GenericDialog("Algorithm settings");
         gd.addNumericField("Low value:", 4, 0);
         gd.addNumericField("High value:", 48, 0);
         gd.addNumericField("Weight:", 240, 0);
+        gd.addNumericField("Threads:", threads, 0);
+        gd.addCheckbox("Low memory streaming", false);
+        gd.addCheckbox("Incremental re-processing of changed tiles", false);
+        gd.addCheckbox("Time-lapse stack, skip tiles unchanged since the previous slice", false);
+        gd.addCheckbox("Cache results of repeated runs", ResultCache.isEnabledByDefault());
+        gd.addCheckbox("Coarse-to-fine pyramid, skip flat tiles", false);
+        gd.addNumericField("Pyramid contrast:", 32, 0);
+        gd.addNumericField("Recall sample:", 0.1, 2);
+        gd.addNumericField("Minimum recall:", 0.95, 2);
 
         gd.showDialog();
         if (gd.wasCanceled()) {
             IJ.error("Plugin run cancelled!");
-            return;
+            return DONE;
         }
 
-        //long startTime = System.nanoTime();
         int lowValue = (int) gd.getNextNumber();
         int highValue = (int) gd.getNextNumber();
-        int weight = (int) gd.getNextNumber();
+        weight = (int) gd.getNextNumber();
+        threads = (int) gd.getNextNumber();
+        streaming = gd.getNextBoolean();
+        incremental = gd.getNextBoolean();
+        temporal = gd.getNextBoolean();
+        cached = gd.getNextBoolean();
+        if (gd.getNextBoolean()) {
+            try {
+                pyramid = new PyramidProcessor((int) gd.getNextNumber(), gd.getNextNumber(), gd.getNextNumber());
+            } catch (IllegalArgumentException e) {
+                IJ.error(e.getMessage());
+                return DONE;
+            }
+        }
 
-        int[] backgroundClass0CenterVector = {lowValue, lowValue, lowValue, lowValue};
-        int[] edgeClass1CenterVector = {lowValue, highValue, highValue, highValue};
-        int[] edgeClass2CenterVector = {highValue, lowValue, highValue, highValue};
-        int[] edgeClass3CenterVector = {highValue, highValue, lowValue, highValue};
-        int[] edgeClass4CenterVector = {highValue, highValue, highValue, lowValue};
-        int[] noisyEdgeClass5CenterVector = {highValue, highValue, highValue, highValue};
+        centersOfClasses = getCentersOfClasses(lowValue, highValue);
 
-        int[][] centersOfClasses = {backgroundClass0CenterVector, edgeClass1CenterVector,
-                edgeClass2CenterVector, edgeClass3CenterVector, edgeClass4CenterVector,
-                noisyEdgeClass5CenterVector};
+        int flags = DOES_8G + DOES_16 + DOES_32 + DOES_STACKS + PARALLELIZE_STACKS + FINAL_PROCESSING + NO_CHANGES +
+                SUPPORTS_MASKING;
+        //every slice is compared with the previous one in the temporal mode, so slices are processed in order
+        return temporal ? flags - PARALLELIZE_STACKS : flags;
+    }
+
+    @Override
+    public void setNPasses(int nPasses) {
+        sliceResults = new SliceResults(imagePlus, nPasses);
+        //slices of a stack are processed in parallel already, the threads are shared between them
+        if (nPasses > 1 && !temporal) {
+            threads = Math.max(1, threads / Math.min(nPasses, Prefs.getThreads()));
+        }
+    }
+
+    @Override
+    public void run(ImageProcessor imageProcessor) {
+        if (temporal) {
+            sliceResults.set(imageProcessor, processNextSlice(imageProcessor, centersOfClasses, weight));
+            return;
+        }
+        if (incremental || RegionProcessor.hasRegion(imageProcessor)) {
+            sliceResults.set(imageProcessor, processRegion(imageProcessor, centersOfClasses, weight, incremental ?
+                    RegionProcessor.getIncrementalKey(this, imagePlus, sliceResults.getSliceNumber(imageProcessor)) :
+                    null));
+            return;
+        }
+        sliceResults.set(imageProcessor, cached ? ResultCache.shared().process(imageProcessor,
+                getCacheKey(centersOfClasses, weight), source -> process(source, centersOfClasses, weight, streaming)) :
+                process(imageProcessor, centersOfClasses, weight, streaming));
+    }
+
+    /**
+     * @return key of the results of process in ResultCache, the streaming mode gives the same results, so it's not a
+     * part of the key
+     */
+    String getCacheKey(int[][] centersOfClasses, int weight) {
+        return "suliman centers " + Arrays.deepToString(centersOfClasses) + " weight " + weight +
+                (pyramid != null ? " " + pyramid.getKey() : "");
+    }
+
+    /**
+     * Detects edges of a single image, only in the tiles which may contain edges if pyramid is set
+     * @param streaming whether the low memory streaming mode is used, see getStreamedFinalImage
+     * @return 8-bit image of the edges
+     */
+    ImageProcessor process(ImageProcessor imageProcessor, int[][] centersOfClasses, int weight, boolean streaming) {
+        if (pyramid != null) {
+            double[] range = GreyLevels.getRange(imageProcessor.getPixels());
+            return pyramid.process(imageProcessor, range, getTiledFilter(range, centersOfClasses, weight), threads);
+        }
+        if (streaming) {
+            return getStreamedFinalImage(imageProcessor, centersOfClasses, weight).getProcessor();
+        }
 
         int width = imageProcessor.getWidth();
         int height = imageProcessor.getHeight();
 
-        int inputVector[][][] = new int[height][width][4];
-        int classes[][] = new int[height][width];
+        //the working arrays of same-sized images are reused, see BufferPool
+        BufferPool bufferPool = BufferPool.shared();
+        int inputVector[][][] = bufferPool.getIntVectors(height, width);
+        int classes[][] = bufferPool.getInts(height, width);
 
         pixelClassification(imageProcessor, inputVector, classes, centersOfClasses, weight);
 
-        ImagePlus edgeImagePlus = getEdgeImage(inputVector, classes, width, height);
-        ImageProcessor edgeImageProcessor = edgeImagePlus.getProcessor();
+        RowBandScheduler scheduler = new RowBandScheduler(threads);
+        byte[] edgePixels = bufferPool.getBytes(width * height);
+        setEdgePixels(inputVector, classes, width, height, scheduler, edgePixels);
+        bufferPool.release(inputVector);
+        bufferPool.release(classes);
 
-        ImagePlus finalImagePlus = getFinalImage(edgeImageProcessor);
+        ImagePlus finalImagePlus = getFinalImage(new ByteProcessor(width, height, edgePixels), scheduler);
+        bufferPool.release(edgePixels);
 
-        // long endTime = System.nanoTime();
-
-        finalImagePlus.show();
-        //IJ.log(Double.valueOf((endTime - startTime)/1000000000.0).toString());
+        return finalImagePlus.getProcessor();
     }
 
-    private void pixelClassification(ImageProcessor sourceImageProcessor, int inputVector[][][], int classes[][],
-                                     int[][] centersOfClasses, int weight) {
-        int width = sourceImageProcessor.getWidth();
-        int height = sourceImageProcessor.getHeight();
-
-        /*ImagePlus classificationImagePlus = NewImage.createByteImage("Classification", width, height, 1,
-                NewImage.FILL_BLACK);
-        ImageProcessor classificationImageProcessor = classificationImagePlus.getProcessor();*/
-
-        //todo: для более быстрой обработки можно применить доступ через массив
-        for (int rowIndex = 0; rowIndex < height; rowIndex++){
-            for (int columnIndex = 0; columnIndex < width; columnIndex++){
-                int neighbours[][] = new int[3][3];
-                for (int relativeRowIndex = -1; relativeRowIndex < 2; relativeRowIndex++){
-                    for (int relativeColumnIndex = -1; relativeColumnIndex < 2; relativeColumnIndex++){
-                        int xCoordinate = columnIndex + relativeColumnIndex;
-                        int yCoordinate = rowIndex + relativeRowIndex;
-
-                        if (xCoordinate < 0){
-                            xCoordinate = 0;
-                        }
-                        if (xCoordinate > width - 1){
-                            xCoordinate = width - 1;
-                        }
-                        if (yCoordinate < 0){
-                            yCoordinate = 0;
-                        }
-                        if (yCoordinate > height - 1){
-                            yCoordinate = height - 1;
-                        }
-                        neighbours[relativeRowIndex + 1][relativeColumnIndex + 1] = sourceImageProcessor.get(
-                                xCoordinate, yCoordinate);
-                    }
-                }
+    /**
+     * Detects edges inside the ROI of the image only, see RegionProcessor. The grey levels are the whole image's ones,
+     * so the edges inside the ROI are the same as the ones of process.
+     * @param incrementalKey see RegionProcessor.process
+     * @return 8-bit image of the edges, black outside the ROI
+     */
+    ImageProcessor processRegion(ImageProcessor imageProcessor, int[][] centersOfClasses, int weight,
+                                 String incrementalKey) {
+        TiledFilter filter = getTiledFilter(GreyLevels.getRange(imageProcessor.getPixels()), centersOfClasses, weight);
+        return RegionProcessor.process(imageProcessor, filter,
+                new ByteProcessor(imageProcessor.getWidth(), imageProcessor.getHeight()), threads, incrementalKey);
+    }
 
-                int p1 = neighbours[0][0];
-                int p2 = neighbours[0][1];
-                int p3 = neighbours[0][2];
-                int p4 = neighbours[1][0];
-                int p5 = neighbours[1][1];
-                int p6 = neighbours[1][2];
-                int p7 = neighbours[2][0];
-                int p8 = neighbours[2][1];
-                int p9 = neighbours[2][2];
-
-                inputVector[rowIndex][columnIndex][0] = Math.abs(p1 - p5) +  Math.abs(p9 - p5);
-                inputVector[rowIndex][columnIndex][1] = Math.abs(p2 - p5) +  Math.abs(p8 - p5);
-                inputVector[rowIndex][columnIndex][2] = Math.abs(p3 - p5) +  Math.abs(p7 - p5);
-                inputVector[rowIndex][columnIndex][3] = Math.abs(p4 - p5) +  Math.abs(p6 - p5);
-
-                /** array of classes' membership function values for particular pixels **/
-                double[] membershipFunctionValuesArray = new double[6];
-                for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length;
-                     centerOfClassesIndex++){
-                    int[] differencesArray = new int[4];
-                    int sumOfSquares = 0;
-
-                    for (int differencesIndex = 0; differencesIndex < differencesArray.length; differencesIndex++){
-                        differencesArray[differencesIndex] = inputVector[rowIndex][columnIndex][differencesIndex] -
-                                centersOfClasses[centerOfClassesIndex][differencesIndex];
-                        sumOfSquares += differencesArray[differencesIndex] * differencesArray[differencesIndex];
-                    }
+    /**
+     * Detects edges of the next slice of a time-lapse stack, the tiles whose pixels are the same as in the previous
+     * slice are copied from its result, see RegionProcessor.processReusing. Slices should be passed in order by a
+     * single thread.
+     * @return 8-bit image of the edges, the same as the one of processRegion
+     */
+    ImageProcessor processNextSlice(ImageProcessor imageProcessor, int[][] centersOfClasses, int weight) {
+        TiledFilter filter = getTiledFilter(GreyLevels.getRange(imageProcessor.getPixels()), centersOfClasses, weight);
+        previousSliceResult = RegionProcessor.processReusing(imageProcessor, filter,
+                new ByteProcessor(imageProcessor.getWidth(), imageProcessor.getHeight()), threads,
+                previousSliceResult);
+        tiles += previousSliceResult.getTiles();
+        reusedTiles += previousSliceResult.getReusedTiles();
+        return previousSliceResult.getImageProcessor();
+    }
 
-                    double norm = Math.sqrt(sumOfSquares);
-                    membershipFunctionValuesArray[centerOfClassesIndex] = Math.max(0, 1 - norm/weight);
-                }
+    /**
+     * Filter of tiles by the streaming mode, see TiledFilter. The 3x3 input vectors, non-maximum suppression and
+     * isolated pixels removal need a halo of 3 pixels.
+     * @param range range of the whole image 16 and 32-bit tiles are binned in, see GreyLevels.getRange
+     */
+    TiledFilter getTiledFilter(double[] range, int[][] centersOfClasses, int weight) {
+        //tiles are processed in parallel already
+        Fuzzy_Edge_Detection_By_Suliman_And_Others tilePlugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+        tilePlugin.threads = 1;
+
+        return new TiledFilter(3, 8, "Suliman " + Arrays.deepToString(centersOfClasses) + " weight " + weight +
+                " range " + Arrays.toString(range), tile -> tilePlugin.getStreamedFinalImage(GreyLevels.of(tile, range),
+                centersOfClasses, weight).getProcessor());
+    }
 
-                int maxIndex = -1;
-                double maxValue = Integer.MIN_VALUE;
-                for (int membershipFunctionValuesIndex = 0; membershipFunctionValuesIndex <
-                        membershipFunctionValuesArray.length; membershipFunctionValuesIndex++) {
-                    if (membershipFunctionValuesArray[membershipFunctionValuesIndex] > maxValue){
-                        maxIndex = membershipFunctionValuesIndex;
-                        maxValue = membershipFunctionValuesArray[membershipFunctionValuesIndex];
-                    }
-                }
+    int[][] getCentersOfClasses(int lowValue, int highValue) {
+        int[] backgroundClass0CenterVector = {lowValue, lowValue, lowValue, lowValue};
+        int[] edgeClass1CenterVector = {lowValue, highValue, highValue, highValue};
+        int[] edgeClass2CenterVector = {highValue, lowValue, highValue, highValue};
+        int[] edgeClass3CenterVector = {highValue, highValue, lowValue, highValue};
+        int[] edgeClass4CenterVector = {highValue, highValue, highValue, lowValue};
+        int[] noisyEdgeClass5CenterVector = {highValue, highValue, highValue, highValue};
 
-                classes[rowIndex][columnIndex] = maxIndex;
+        return new int[][]{backgroundClass0CenterVector, edgeClass1CenterVector,
+                edgeClass2CenterVector, edgeClass3CenterVector, edgeClass4CenterVector,
+                noisyEdgeClass5CenterVector};
+    }
 
-                /*if(maxIndex == BACKGROUND_CLASS_0) {
-                    classificationImageProcessor.set(columnIndex, rowIndex, 0);
-                } else {
-                    classificationImageProcessor.set(columnIndex, rowIndex, 255);
-                }*/
+    void pixelClassification(ImageProcessor sourceImageProcessor, int inputVector[][][], int classes[][],
+                             int[][] centersOfClasses, int weight) {
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.CLASSIFICATION,
+                (long) sourceImageProcessor.getWidth() * sourceImageProcessor.getHeight());
+        GreyLevels greyLevels = GreyLevels.of(sourceImageProcessor);
+        new RowBandScheduler(threads).process(sourceImageProcessor.getHeight(), (fromRow, toRow) -> {
+            int[][] levelRows = new int[3][greyLevels.getWidth()];
+            for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+                getInputVectorRow(greyLevels, rowIndex, inputVector[rowIndex], levelRows);
+                classifyRow(levelRows, inputVector[rowIndex], classes[rowIndex], centersOfClasses, weight);
             }
+        });
+        Instrumentation.stop(span);
+    }
+
+    /**
+     * Computes input vectors of the row's pixels, i.e. sums of absolute differences from the central pixel in four
+     * directions of the 3x3 neighbourhood. 16 and 32-bit pixels are binned to 256 grey levels, so the classes'
+     * centers have the same meaning for them. Input vectors don't depend on the algorithm parameters.
+     * @param levelRows 3 rows of width ints the grey levels of the rows are read to
+     */
+    private void getInputVectorRow(GreyLevels greyLevels, int rowIndex, int inputVectorRow[][], int[][] levelRows) {
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+
+        //neighbours beyond the image border are replaced by the border pixels
+        int[] previousRow = greyLevels.getRow(Math.max(rowIndex - 1, 0), levelRows[0]);
+        int[] row = greyLevels.getRow(rowIndex, levelRows[1]);
+        int[] nextRow = greyLevels.getRow(Math.min(rowIndex + 1, height - 1), levelRows[2]);
+
+        setInputVector(inputVectorRow[0], previousRow, row, nextRow, 0, 0, Math.min(1, width - 1));
+        for (int columnIndex = 1; columnIndex < width - 1; columnIndex++){
+            setInputVector(inputVectorRow[columnIndex], previousRow, row, nextRow, columnIndex - 1, columnIndex,
+                    columnIndex + 1);
         }
+        if (width > 1){
+            setInputVector(inputVectorRow[width - 1], previousRow, row, nextRow, width - 2, width - 1, width - 1);
+        }
+    }
 
-        //classificationImagePlus.show();
+    /**
+     * Neighbours p1..p9 of the central pixel p5 are numbered row by row
+     */
+    private static void setInputVector(int[] inputVector, int[] previousRow, int[] row, int[] nextRow,
+                                       int previousColumnIndex, int columnIndex, int nextColumnIndex) {
+        int p5 = row[columnIndex];
+        //p1 and p9
+        inputVector[0] = Math.abs(previousRow[previousColumnIndex] - p5) + Math.abs(nextRow[nextColumnIndex] - p5);
+        //p2 and p8
+        inputVector[1] = Math.abs(previousRow[columnIndex] - p5) + Math.abs(nextRow[columnIndex] - p5);
+        //p3 and p7
+        inputVector[2] = Math.abs(previousRow[nextColumnIndex] - p5) + Math.abs(nextRow[previousColumnIndex] - p5);
+        //p4 and p6
+        inputVector[3] = Math.abs(row[previousColumnIndex] - p5) + Math.abs(row[nextColumnIndex] - p5);
     }
 
-    private ImagePlus getEdgeImage(int inputVector[][][], int classes[][], int width, int height) {
-        ImagePlus edgeImagePlus = NewImage.createByteImage("Intermediary", width, height, 1,
-                NewImage.FILL_BLACK);
-        ImageProcessor edgeImageProcessor = edgeImagePlus.getProcessor();
+    /**
+     * Classifies the row's pixels by fuzzy membership of their input vectors to the classes' centers. Membership
+     * max(0, 1 - sqrt(d) / weight) decreases with the squared distance d to the center, so the closest center wins,
+     * or the first class if all memberships are zero, i.e. d >= weight * weight for every center. Integer squared
+     * distances are compared instead of memberships when they can't overflow and the memberships keep their order
+     * in double precision, see isSquaredDistanceClassification.
+     */
+    private void classifyRow(int inputVectorRow[][], int classesRow[], int[][] centersOfClasses, int weight) {
+        if (!isSquaredDistanceClassification(centersOfClasses, weight)) {
+            classifyRowByMembership(inputVectorRow, classesRow, centersOfClasses, weight);
+            return;
+        }
 
-        for (int rowIndex = 0; rowIndex < height; rowIndex++){
-            for (int columnIndex = 0; columnIndex < width; columnIndex++){
-                int pixelValue;
-                pixelValue = 0;
-                if (classes[rowIndex][columnIndex] == NOISY_EDGE_CLASS_5){
-                    pixelValue = 255;
-                }else if (classes[rowIndex][columnIndex] == EDGE_CLASS_1){
-                    int index = 2;
-                    int d3Value = inputVector[rowIndex][columnIndex][index];
-                    int d3Neighbour1Value = Integer.MIN_VALUE;
+        long squaredWeight = (long) weight * weight;
+        for (int columnIndex = 0; columnIndex < inputVectorRow.length; columnIndex++){
+            int[] inputVector = inputVectorRow[columnIndex];
+            int d1 = inputVector[0], d2 = inputVector[1], d3 = inputVector[2], d4 = inputVector[3];
+
+            int closestIndex = 0;
+            int closestSquaredDistance = Integer.MAX_VALUE;
+            for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length;
+                 centerOfClassesIndex++){
+                int[] center = centersOfClasses[centerOfClassesIndex];
+                int difference1 = d1 - center[0];
+                int difference2 = d2 - center[1];
+                int difference3 = d3 - center[2];
+                int difference4 = d4 - center[3];
+                int squaredDistance = difference1 * difference1 + difference2 * difference2 +
+                        difference3 * difference3 + difference4 * difference4;
+                //the first of equally close centers wins
+                if (squaredDistance < closestSquaredDistance){
+                    closestIndex = centerOfClassesIndex;
+                    closestSquaredDistance = squaredDistance;
+                }
+            }
 
-                    int d3Neighbour1Row = rowIndex - 1;
-                    int d3Neighbour1Column = columnIndex + 1;
+            classesRow[columnIndex] = closestSquaredDistance < squaredWeight ? closestIndex : BACKGROUND_CLASS_0;
+        }
+    }
 
-                    if (d3Neighbour1Row >= 0 && d3Neighbour1Column < width){
-                        d3Neighbour1Value = inputVector[d3Neighbour1Row][d3Neighbour1Column][index];
-                    }
+    /**
+     * Same as classifyRow(inputVectorRow, classesRow, centersOfClasses, weight), with vectorized {@link PixelKernels}
+     * squared distances are computed from the grey levels the input vectors were computed from, several pixels at a
+     * time
+     * @param levelRows grey levels of the row above, the row and the row below, as getInputVectorRow left them
+     */
+    private void classifyRow(int[][] levelRows, int inputVectorRow[][], int classesRow[], int[][] centersOfClasses,
+                             int weight) {
+        PixelKernels kernels = PixelKernels.get();
+        if (!kernels.isVectorized() || !isSquaredDistanceClassification(centersOfClasses, weight)) {
+            classifyRow(inputVectorRow, classesRow, centersOfClasses, weight);
+            return;
+        }
+        kernels.classifyRow(levelRows[0], levelRows[1], levelRows[2], inputVectorRow.length,
+                centersOfClasses, (long) weight * weight, classesRow);
+    }
 
-                    int d3Neighbour2Value = Integer.MIN_VALUE;
+    /**
+     * Input vector components are from 0 to 510, so squared distances to centers with components up to
+     * MAX_SQUARED_DISTANCE_CENTER in absolute value fit in int, and square roots of different squared distances
+     * divided by a weight up to MAX_SQUARED_DISTANCE_WEIGHT stay different in double precision
+     */
+    private static boolean isSquaredDistanceClassification(int[][] centersOfClasses, int weight) {
+        if (weight <= 0 || weight > MAX_SQUARED_DISTANCE_WEIGHT){
+            return false;
+        }
+        for (int[] center : centersOfClasses){
+            for (int component : center){
+                if (component < -MAX_SQUARED_DISTANCE_CENTER || component > MAX_SQUARED_DISTANCE_CENTER){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-                    int d3Neighbour2Row = rowIndex + 1;
-                    int d3Neighbour2Column = columnIndex - 1;
+    /**
+     * Classification by the membership values themselves, for the parameters isSquaredDistanceClassification
+     * doesn't cover, e.g. zero or negative weights
+     */
+    private void classifyRowByMembership(int inputVectorRow[][], int classesRow[], int[][] centersOfClasses,
+                                         int weight) {
+        /** array of classes' membership function values for particular pixels **/
+        double[] membershipFunctionValuesArray = new double[6];
+        for (int columnIndex = 0; columnIndex < inputVectorRow.length; columnIndex++){
+            for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length;
+                 centerOfClassesIndex++){
+                int sumOfSquares = 0;
+                for (int differencesIndex = 0; differencesIndex < 4; differencesIndex++){
+                    int difference = inputVectorRow[columnIndex][differencesIndex] -
+                            centersOfClasses[centerOfClassesIndex][differencesIndex];
+                    sumOfSquares += difference * difference;
+                }
 
-                    if (d3Neighbour2Row < height && d3Neighbour2Column >= 0){
-                        d3Neighbour2Value = inputVector[d3Neighbour2Row][d3Neighbour2Column][index];
-                    }
+                double norm = Math.sqrt(sumOfSquares);
+                membershipFunctionValuesArray[centerOfClassesIndex] = Math.max(0, 1 - norm/weight);
+            }
 
-                    if (d3Value > d3Neighbour1Value && d3Value > d3Neighbour2Value){
-                        pixelValue = 255;
-                    }else{
-                        pixelValue = 0;
-                    }
-                }else if (classes[rowIndex][columnIndex] == EDGE_CLASS_2){
-                    int index = 3;
-                    int d4Value = inputVector[rowIndex][columnIndex][index];
-                    int d4Neighbour1Value = Integer.MIN_VALUE;
+            int maxIndex = -1;
+            double maxValue = Integer.MIN_VALUE;
+            for (int membershipFunctionValuesIndex = 0; membershipFunctionValuesIndex <
+                    membershipFunctionValuesArray.length; membershipFunctionValuesIndex++) {
+                if (membershipFunctionValuesArray[membershipFunctionValuesIndex] > maxValue){
+                    maxIndex = membershipFunctionValuesIndex;
+                    maxValue = membershipFunctionValuesArray[membershipFunctionValuesIndex];
+                }
+            }
 
-                    int d4Neighbour1Column = columnIndex - 1;
+            classesRow[columnIndex] = maxIndex;
+        }
+    }
 
-                    if (d4Neighbour1Column >= 0){
-                        d4Neighbour1Value = inputVector[rowIndex][d4Neighbour1Column][index];
-                    }
+    ImagePlus getEdgeImage(int inputVector[][][], int classes[][], int width, int height) {
+        return getEdgeImage(inputVector, classes, width, height, new RowBandScheduler(threads));
+    }
 
-                    int d4Neighbour2Value = Integer.MIN_VALUE;
+    private ImagePlus getEdgeImage(int inputVector[][][], int classes[][], int width, int height,
+                                   RowBandScheduler scheduler) {
+        ImagePlus edgeImagePlus = NewImage.createByteImage("Intermediary", width, height, 1,
+                NewImage.FILL_BLACK);
+        setEdgePixels(inputVector, classes, width, height, scheduler,
+                (byte[]) edgeImagePlus.getProcessor().getPixels());
+        return edgeImagePlus;
+    }
 
-                    int d4Neighbour2Column = columnIndex + 1;
+    /**
+     * @param edgePixels width * height pixels, all of them are overwritten
+     */
+    private void setEdgePixels(int inputVector[][][], int classes[][], int width, int height,
+                               RowBandScheduler scheduler, byte[] edgePixels) {
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.SUPPRESSION, (long) width * height);
+        scheduler.process(height, (fromRow, toRow) -> {
+            for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+                getEdgeRow(rowIndex > 0 ? inputVector[rowIndex - 1] : null, inputVector[rowIndex],
+                        rowIndex < height - 1 ? inputVector[rowIndex + 1] : null, classes[rowIndex], edgePixels,
+                        rowIndex * width);
+            }
+        });
+        Instrumentation.stop(span);
+    }
 
-                    if (d4Neighbour2Column < width){
-                        d4Neighbour2Value = inputVector[rowIndex][d4Neighbour2Column][index];
+    /**
+     * Non-maximum suppression of the row's edge pixels along the direction of the pixel's edge class
+     * @param previousInputVectorRow input vectors of the row above, null for the first row of the image
+     * @param nextInputVectorRow input vectors of the row below, null for the last row of the image
+     * @param edgeRowOffset index of the row's first pixel in the edge pixels array
+     */
+    private void getEdgeRow(int previousInputVectorRow[][], int inputVectorRow[][], int nextInputVectorRow[][],
+                            int classesRow[], byte[] edgePixels, int edgeRowOffset) {
+        int width = inputVectorRow.length;
+
+        for (int columnIndex = 0; columnIndex < width; columnIndex++){
+            int pixelValue = 0;
+            int pixelClass = classesRow[columnIndex];
+
+            if (pixelClass == NOISY_EDGE_CLASS_5){
+                pixelValue = 255;
+            } else if (pixelClass != BACKGROUND_CLASS_0) {
+                int index;
+                int neighbour1Value = Integer.MIN_VALUE;
+                int neighbour2Value = Integer.MIN_VALUE;
+
+                if (pixelClass == EDGE_CLASS_1){
+                    //d3 direction, upper right and lower left neighbours
+                    index = 2;
+                    if (previousInputVectorRow != null && columnIndex + 1 < width){
+                        neighbour1Value = previousInputVectorRow[columnIndex + 1][index];
                     }
-
-                    if (d4Value > d4Neighbour1Value && d4Value > d4Neighbour2Value){
-                        pixelValue = 255;
-                    }else{
-                        pixelValue = 0;
+                    if (nextInputVectorRow != null && columnIndex - 1 >= 0){
+                        neighbour2Value = nextInputVectorRow[columnIndex - 1][index];
                     }
-                }else if (classes[rowIndex][columnIndex] == EDGE_CLASS_3){
-                    int index = 0;
-                    int d1Value = inputVector[rowIndex][columnIndex][index];
-                    int d1Neighbour1Value = Integer.MIN_VALUE;
-
-                    int d1Neighbour1Row = rowIndex - 1;
-                    int d1Neighbour1Column = columnIndex - 1;
-
-                    if (d1Neighbour1Row >= 0 && d1Neighbour1Column >= 0){
-                        d1Neighbour1Value = inputVector[d1Neighbour1Row][d1Neighbour1Column][index];
+                } else if (pixelClass == EDGE_CLASS_2){
+                    //d4 direction, left and right neighbours
+                    index = 3;
+                    if (columnIndex - 1 >= 0){
+                        neighbour1Value = inputVectorRow[columnIndex - 1][index];
                     }
-
-                    int d1Neighbour2Value = Integer.MIN_VALUE;
-
-                    int d1Neighbour2Row = rowIndex + 1;
-                    int d1Neighbour2Column = columnIndex + 1;
-
-                    if (d1Neighbour2Row < height && d1Neighbour2Column < width){
-                        d1Neighbour2Value = inputVector[d1Neighbour2Row][d1Neighbour2Column][index];
+                    if (columnIndex + 1 < width){
+                        neighbour2Value = inputVectorRow[columnIndex + 1][index];
                     }
-
-                    if (d1Value > d1Neighbour1Value && d1Value > d1Neighbour2Value){
-                        pixelValue = 255;
-                    }else{
-                        pixelValue = 0;
+                } else if (pixelClass == EDGE_CLASS_3){
+                    //d1 direction, upper left and lower right neighbours
+                    index = 0;
+                    if (previousInputVectorRow != null && columnIndex - 1 >= 0){
+                        neighbour1Value = previousInputVectorRow[columnIndex - 1][index];
                     }
-                }else if (classes[rowIndex][columnIndex] == EDGE_CLASS_4){
-                    int index = 1;
-                    int d2Value = inputVector[rowIndex][columnIndex][index];
-                    int d2Neighbour1Value = Integer.MIN_VALUE;
-
-                    int d2Neighbour1Row = rowIndex - 1;
-
-                    if (d2Neighbour1Row >= 0){
-                        d2Neighbour1Value = inputVector[d2Neighbour1Row][columnIndex][index];
+                    if (nextInputVectorRow != null && columnIndex + 1 < width){
+                        neighbour2Value = nextInputVectorRow[columnIndex + 1][index];
                     }
-
-                    int d2Neighbour2Value = Integer.MIN_VALUE;
-
-                    int d2Neighbour2Row = rowIndex + 1;
-
-                    if (d2Neighbour2Row < height){
-                        d2Neighbour2Value = inputVector[d2Neighbour2Row][columnIndex][index];
+                } else {
+                    //d2 direction, upper and lower neighbours
+                    index = 1;
+                    if (previousInputVectorRow != null){
+                        neighbour1Value = previousInputVectorRow[columnIndex][index];
                     }
-
-                    if (d2Value > d2Neighbour1Value && d2Value > d2Neighbour2Value){
-                        pixelValue = 255;
-                    }else{
-                        pixelValue = 0;
+                    if (nextInputVectorRow != null){
+                        neighbour2Value = nextInputVectorRow[columnIndex][index];
                     }
                 }
-                edgeImageProcessor.set(columnIndex, rowIndex, pixelValue);
+
+                int value = inputVectorRow[columnIndex][index];
+                if (value > neighbour1Value && value > neighbour2Value){
+                    pixelValue = 255;
+                }
             }
+            edgePixels[edgeRowOffset + columnIndex] = (byte) pixelValue;
         }
+    }
 
-        return edgeImagePlus;
+    ImagePlus getFinalImage(ImageProcessor edgeImageProcessor) {
+        return getFinalImage(edgeImageProcessor, new RowBandScheduler(threads));
     }
 
-    private ImagePlus getFinalImage(ImageProcessor edgeImageProcessor) {
+    private ImagePlus getFinalImage(ImageProcessor edgeImageProcessor, RowBandScheduler scheduler) {
         int width = edgeImageProcessor.getWidth();
         int height = edgeImageProcessor.getHeight();
 
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.ISOLATION_FILTER,
+                (long) width * height);
         ImagePlus finalImagePlus = NewImage.createByteImage("Fuzzy Edge Detection", width, height, 1,
                 NewImage.FILL_BLACK);
-        ImageProcessor finalImageProcessor = finalImagePlus.getProcessor();
-
-        for (int rowIndex = 0; rowIndex < height; rowIndex++){
-            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
-                int pixelValue = edgeImageProcessor.get(columnIndex, rowIndex);
-                if (pixelValue == 255){
-                    boolean isNeighbourWhite = false;
-                    for (int relativeRowIndex = -1; relativeRowIndex < 2; relativeRowIndex++) {
-                        for (int relativeColumnIndex = -1; relativeColumnIndex < 2; relativeColumnIndex++) {
-                            if (relativeRowIndex == 0 && relativeColumnIndex == 0){
-                                continue;
-                            }
-
-                            int xCoordinate = columnIndex + relativeColumnIndex;
-                            int yCoordinate = rowIndex + relativeRowIndex;
-
-                            if (xCoordinate < 0){
-                                continue;
-                            }
-                            if (xCoordinate > width - 1){
-                                continue;
-                            }
-                            if (yCoordinate < 0){
-                                continue;
-                            }
-                            if (yCoordinate > height - 1){
-                                continue;
-                            }
-
-                            int currentNeighbourPixelValue = edgeImageProcessor.get(xCoordinate, yCoordinate);
-                            if (currentNeighbourPixelValue == 255){
-                                isNeighbourWhite = true;
-                                break;
-                            }
-                        }
-                    }
+        byte[] edgePixels = (byte[]) edgeImageProcessor.getPixels();
+        byte[] finalPixels = (byte[]) finalImagePlus.getProcessor().getPixels();
 
-                    if (!isNeighbourWhite){
-                        finalImageProcessor.set(columnIndex, rowIndex, 0);
-                    } else {
-                        finalImageProcessor.set(columnIndex, rowIndex, 255);
-                    }
-                } else {
-                    finalImageProcessor.set(columnIndex, rowIndex, 0);
-                }
+        NeighbourhoodRules.ISOLATED_PIXELS_REMOVAL.apply(edgePixels, width, height, finalPixels, scheduler);
+        Instrumentation.stop(span);
+
+        return finalImagePlus;
+    }
+
+    /**
+     * Fused single pass version of pixelClassification, getEdgeImage and getFinalImage. Every row band keeps only
+     * the last three rows of input vectors, classes and edge pixels in ring buffers and emits the final pixels row by
+     * row, so the working memory depends on the image width only. A band recomputes two rows of classification and
+     * one row of edge pixels above and below it, which gives the same result as the staged version.
+     */
+    ImagePlus getStreamedFinalImage(ImageProcessor sourceImageProcessor, int[][] centersOfClasses, int weight) {
+        return getStreamedFinalImage(GreyLevels.of(sourceImageProcessor), centersOfClasses, weight);
+    }
+
+    ImagePlus getStreamedFinalImage(GreyLevels greyLevels, int[][] centersOfClasses, int weight) {
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.STREAMED, (long) width * height);
+        ImagePlus finalImagePlus = NewImage.createByteImage("Fuzzy Edge Detection", width, height, 1,
+                NewImage.FILL_BLACK);
+        byte[] finalPixels = (byte[]) finalImagePlus.getProcessor().getPixels();
+
+        new RowBandScheduler(threads).process(height, (fromRow, toRow) ->
+                streamRows(greyLevels, centersOfClasses, weight, finalPixels, fromRow, toRow));
+        Instrumentation.stop(span);
+
+        return finalImagePlus;
+    }
+
+    private void streamRows(GreyLevels greyLevels, int[][] centersOfClasses, int weight, byte[] finalPixels,
+                            int fromRow, int toRow) {
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+
+        int inputVectorRows[][][] = new int[3][width][4];
+        int classesRows[][] = new int[3][width];
+        byte[] edgeRows = new byte[3 * width];
+        int[][] levelRows = new int[3][width];
+
+        //row r is classified, row r - 1 gets its edge pixels and row r - 2 its final pixels
+        for (int rowIndex = Math.max(0, fromRow - 2); rowIndex <= toRow + 1; rowIndex++) {
+            if (rowIndex < height) {
+                getInputVectorRow(greyLevels, rowIndex, inputVectorRows[rowIndex % 3], levelRows);
+                classifyRow(levelRows, inputVectorRows[rowIndex % 3], classesRows[rowIndex % 3], centersOfClasses,
+                        weight);
+            }
+
+            int edgeRowIndex = rowIndex - 1;
+            if (edgeRowIndex >= Math.max(0, fromRow - 1) && edgeRowIndex < height) {
+                getEdgeRow(edgeRowIndex > 0 ? inputVectorRows[(edgeRowIndex - 1) % 3] : null,
+                        inputVectorRows[edgeRowIndex % 3],
+                        edgeRowIndex < height - 1 ? inputVectorRows[(edgeRowIndex + 1) % 3] : null,
+                        classesRows[edgeRowIndex % 3], edgeRows, (edgeRowIndex % 3) * width);
+            }
+
+            int finalRowIndex = rowIndex - 2;
+            if (finalRowIndex >= fromRow && finalRowIndex < Math.min(toRow, height)) {
+                NeighbourhoodRules.ISOLATED_PIXELS_REMOVAL.applyRow(edgeRows,
+                        finalRowIndex > 0 ? ((finalRowIndex - 1) % 3) * width : -1, (finalRowIndex % 3) * width,
+                        finalRowIndex < height - 1 ? ((finalRowIndex + 1) % 3) * width : -1, width, finalPixels,
+                        finalRowIndex * width);
             }
         }
+    }
 
-        return finalImagePlus;
+    /**
+     * Detects edges with every tuple of a grid of parameters. Input vectors don't depend on the parameters, so they
+     * are computed once, and only classification, non-maximum suppression and isolated pixels removal are repeated
+     * for every tuple. Tuples are processed in parallel on the shared pool of RowBandScheduler, every one of them by a
+     * single thread.
+     * @param parameterTuples {low value, high value, weight} tuples
+     * @return final image for every tuple, in the order of the tuples
+     */
+    ImagePlus[] sweep(ImageProcessor sourceImageProcessor, int[][] parameterTuples) {
+        int width = sourceImageProcessor.getWidth();
+        int height = sourceImageProcessor.getHeight();
+
+        BufferPool bufferPool = BufferPool.shared();
+        int inputVector[][][] = bufferPool.getIntVectors(height, width);
+        GreyLevels greyLevels = GreyLevels.of(sourceImageProcessor);
+        new RowBandScheduler(threads).process(height, (fromRow, toRow) -> {
+            int[][] levelRows = new int[3][width];
+            for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+                getInputVectorRow(greyLevels, rowIndex, inputVector[rowIndex], levelRows);
+            }
+        });
+
+        RowBandScheduler sequentialScheduler = new RowBandScheduler(1);
+        ImagePlus[] finalImagePluses = new ImagePlus[parameterTuples.length];
+        new RowBandScheduler(threads).processEach(parameterTuples.length, tupleIndex -> {
+            int lowValue = parameterTuples[tupleIndex][0], highValue = parameterTuples[tupleIndex][1],
+                    weight = parameterTuples[tupleIndex][2];
+            int[][] centersOfClasses = getCentersOfClasses(lowValue, highValue);
+
+            int classes[][] = bufferPool.getInts(height, width);
+            for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+                classifyRow(inputVector[rowIndex], classes[rowIndex], centersOfClasses, weight);
+            }
+
+            byte[] edgePixels = bufferPool.getBytes(width * height);
+            setEdgePixels(inputVector, classes, width, height, sequentialScheduler, edgePixels);
+            bufferPool.release(classes);
+            ImagePlus finalImagePlus = getFinalImage(new ByteProcessor(width, height, edgePixels),
+                    sequentialScheduler);
+            bufferPool.release(edgePixels);
+            finalImagePlus.setTitle("Fuzzy Edge Detection " + lowValue + "-" + highValue + "-" + weight);
+            finalImagePluses[tupleIndex] = finalImagePlus;
+        });
+        bufferPool.release(inputVector);
+        return finalImagePluses;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+import ij.process.ImageProcessor;
+
+/**
+ * 8-bit grey levels of the pixels of an 8, 16 or 32-bit image. 8-bit pixels are read as they are, 16 and 32-bit
+ * pixels are binned into 256 levels between the minimum and the maximum of the image while they are read, so the
+ * algorithms tuned for 8-bit images work on them without converting the image first.
+ */
+class GreyLevels {
+    static final int LEVELS = 256;
+    /** the 8-bit loop of getHistogram is unrolled by this number **/
+    private static final int HISTOGRAM_STRIPES = 4;
+
+    private final int width;
+    private final int height;
+    private final byte[] bytePixels;
+    private final short[] shortPixels;
+    private final float[] floatPixels;
+    private final double min;
+    private final double binScale;
+
+    /**
+     * @param range minimum and maximum of the pixel values the levels are binned between, see getRange
+     */
+    private GreyLevels(int width, int height, Object pixels, double[] range) {
+        this.width = width;
+        this.height = height;
+        this.bytePixels = pixels instanceof byte[] ? (byte[]) pixels : null;
+        this.shortPixels = pixels instanceof short[] ? (short[]) pixels : null;
+        this.floatPixels = pixels instanceof float[] ? (float[]) pixels : null;
+        if (bytePixels == null && shortPixels == null && floatPixels == null) {
+            throw new IllegalArgumentException("Only 8, 16 and 32-bit grayscale images are supported");
+        }
+
+        double min = range[0], max = range[1];
+        if (shortPixels != null) {
+            //integer levels, max - min + 1 of them
+            max += 1;
+        }
+        this.min = min;
+        this.binScale = bytePixels == null && max > min ? LEVELS / (max - min) : 0;
+    }
+
+    static GreyLevels of(ImageProcessor imageProcessor) {
+        return of(imageProcessor, getRange(imageProcessor.getPixels()));
+    }
+
+    /**
+     * Levels binned between the given minimum and maximum instead of the image's own ones, e.g. those of the whole
+     * image a tile is cut from, so that the levels of the tile are the same as in the whole image
+     */
+    static GreyLevels of(ImageProcessor imageProcessor, double[] range) {
+        return new GreyLevels(imageProcessor.getWidth(), imageProcessor.getHeight(), imageProcessor.getPixels(), range);
+    }
+
+    /**
+     * @return minimum and maximum of 16 and 32-bit pixels, NaNs and infinities don't count, Double.MAX_VALUE and
+     * -Double.MAX_VALUE if there are no such pixels
+     */
+    static double[] getRange(Object pixels) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        if (pixels instanceof short[]) {
+            for (short pixel : (short[]) pixels) {
+                int value = pixel & 0xffff;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        } else if (pixels instanceof float[]) {
+            for (float value : (float[]) pixels) {
+                if (value > -Float.MAX_VALUE && value < Float.MAX_VALUE) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        return new double[]{min, max};
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int get(int x, int y) {
+        return get(y * width + x);
+    }
+
+    /**
+     * @return grey level from 0 to 255 of the pixel with index y * width + x
+     */
+    int get(int pixelIndex) {
+        if (bytePixels != null) {
+            return bytePixels[pixelIndex] & 0xff;
+        }
+
+        double value = shortPixels != null ? shortPixels[pixelIndex] & 0xffff : floatPixels[pixelIndex];
+        //NaN becomes 0
+        int level = (int) ((value - min) * binScale);
+        return level < 0 ? 0 : level > LEVELS - 1 ? LEVELS - 1 : level;
+    }
+
+    /**
+     * @return rowLevels filled with grey levels of the row's pixels
+     */
+    int[] getRow(int rowIndex, int[] rowLevels) {
+        int rowOffset = rowIndex * width;
+        if (bytePixels != null) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                rowLevels[columnIndex] = bytePixels[rowOffset + columnIndex] & 0xff;
+            }
+        } else {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                rowLevels[columnIndex] = get(rowOffset + columnIndex);
+            }
+        }
+        return rowLevels;
+    }
+
+    /**
+     * @return pixels of an 8-bit image, which are its grey levels, null for other images
+     */
+    byte[] getBytePixels() {
+        return bytePixels;
+    }
+
+    /**
+     * Histogram counted by row bands in parallel. A band counts consecutive pixels into HISTOGRAM_STRIPES separate
+     * histograms in turn, so that runs of pixels of the same level don't serialize on the increments of a single
+     * counter, and the counts of the bands are added up in longs.
+     * @param levels if not null, grey levels of the pixels are stored to it while they are counted
+     */
+    long[] getHistogram(RowBandScheduler scheduler, byte[] levels) {
+        long[] histogram = new long[LEVELS];
+        scheduler.process(height, (fromRow, toRow) -> {
+            int[][] stripes = new int[HISTOGRAM_STRIPES][LEVELS];
+            int[] stripe0 = stripes[0], stripe1 = stripes[1], stripe2 = stripes[2], stripe3 = stripes[3];
+            int pixelIndex = fromRow * width;
+            int toPixel = toRow * width;
+            if (bytePixels != null && levels == null) {
+                for (; pixelIndex + HISTOGRAM_STRIPES <= toPixel; pixelIndex += HISTOGRAM_STRIPES) {
+                    stripe0[bytePixels[pixelIndex] & 0xff]++;
+                    stripe1[bytePixels[pixelIndex + 1] & 0xff]++;
+                    stripe2[bytePixels[pixelIndex + 2] & 0xff]++;
+                    stripe3[bytePixels[pixelIndex + 3] & 0xff]++;
+                }
+                for (; pixelIndex < toPixel; pixelIndex++) {
+                    stripe0[bytePixels[pixelIndex] & 0xff]++;
+                }
+            } else {
+                for (; pixelIndex < toPixel; pixelIndex++) {
+                    int level = get(pixelIndex);
+                    if (levels != null) {
+                        levels[pixelIndex] = (byte) level;
+                    }
+                    stripes[pixelIndex & (HISTOGRAM_STRIPES - 1)][level]++;
+                }
+            }
+
+            synchronized (histogram) {
+                for (int[] stripe : stripes) {
+                    for (int level = 0; level < LEVELS; level++) {
+                        histogram[level] += stripe[level];
+                    }
+                }
+            }
+        });
+        return histogram;
+    }
+}
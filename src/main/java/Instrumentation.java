@@ -0,0 +1,238 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, throughput and allocated bytes of the named stages of the plugins. Every run of a stage is emitted as a
+ * StageEvent to Java Flight Recorder, see {@link StageRecorder}, and added to per-stage totals, which getSummary
+ * returns as JSON, e.g. for scraping batch runs.
+ *
+ * Instrumentation is off by default and turned on by -Dneuralfuzzy.instrumentation=true or setEnabled. When it's
+ * off, a stage costs a read of a flag and nothing is allocated.
+ */
+final class Instrumentation {
+    enum Stage {
+        /** histogram and Otsu threshold of the ANN plugin **/
+        THRESHOLD("threshold"),
+        /** thresholding of the grey levels to a binary image **/
+        BINARISE("binarise"),
+        /** edges of the binary windows by the network's lookup table, or of the grey level windows by the network **/
+        NETWORK("network"),
+        /** input vectors and their fuzzy classes of the Suliman plugin **/
+        CLASSIFICATION("classification"),
+        /** non-maximum suppression of the Suliman plugin **/
+        SUPPRESSION("suppression"),
+        /** removal of the edge pixels without edge neighbours of both edge detection plugins **/
+        ISOLATION_FILTER("isolation_filter"),
+        /** classification, suppression and isolation filter fused by the streaming mode of the Suliman plugin **/
+        STREAMED("streamed"),
+        /**
+         * lookup table of the contrast plugin, fuzzification, intensification and defuzzification of every grey level,
+         * or of the transfer function samples of 32-bit images, its pixels are the levels or samples
+         **/
+        LUT_BUILD("lut_build"),
+        /** mapping of the pixels through the lookup table or transfer function by the contrast plugin **/
+        LUT_MAP("lut_map"),
+        /** downsampling and contrast of the grey levels selecting the tiles to filter, see PyramidProcessor **/
+        PYRAMID("pyramid");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+
+        String getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * Run of a stage started by start, null when instrumentation is off
+     */
+    static final class Span {
+        private final Stage stage;
+        private final long pixels;
+        private final Thread thread;
+        private final Span parent;
+        private final long startTime;
+        private final long startAllocatedBytes;
+        /** bytes allocated by the row band tasks of the stage on other threads, see measureBands **/
+        private final AtomicLong bandAllocatedBytes = new AtomicLong();
+        /** Flight Recorder event of the run, null if it isn't recorded **/
+        private final Object event;
+
+        private Span(Stage stage, long pixels, Span parent) {
+            this.stage = stage;
+            this.pixels = pixels;
+            this.thread = Thread.currentThread();
+            this.parent = parent;
+            this.event = RECORDER.begin();
+            this.startAllocatedBytes = getAllocatedBytes();
+            this.startTime = System.nanoTime();
+        }
+    }
+
+    private static class StageTotals {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong nanoseconds = new AtomicLong();
+        private final AtomicLong pixels = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+    }
+
+    private static final StageRecorder RECORDER = StageRecorder.get();
+    /** null if the JVM doesn't count allocated bytes per thread **/
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean();
+    /** innermost running stage of every thread **/
+    private static final ThreadLocal<Span> CURRENT_SPAN = new ThreadLocal<>();
+    private static final StageTotals[] TOTALS = new StageTotals[Stage.values().length];
+
+    static {
+        for (int stageIndex = 0; stageIndex < TOTALS.length; stageIndex++) {
+            TOTALS[stageIndex] = new StageTotals();
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("neuralfuzzy.instrumentation");
+
+    private Instrumentation() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        Instrumentation.enabled = enabled;
+    }
+
+    /**
+     * Starts a run of the stage on the current thread, it should be stopped by the same thread
+     * @param pixels pixels the stage processes, the throughput is counted in them
+     * @return null if instrumentation is off
+     */
+    static Span start(Stage stage, long pixels) {
+        if (!enabled) {
+            return null;
+        }
+        Span span = new Span(stage, pixels, CURRENT_SPAN.get());
+        CURRENT_SPAN.set(span);
+        return span;
+    }
+
+    /**
+     * Stops the run, adds it to the totals and commits its event
+     * @param span run returned by start, nothing is done for null
+     */
+    static void stop(Span span) {
+        if (span == null) {
+            return;
+        }
+        long nanoseconds = System.nanoTime() - span.startTime;
+        long allocatedBytes = THREAD_BEAN != null ?
+                getAllocatedBytes() - span.startAllocatedBytes + span.bandAllocatedBytes.get() : -1;
+        CURRENT_SPAN.set(span.parent);
+        //the band tasks of a nested stage ran inside the outer one too
+        if (span.parent != null) {
+            span.parent.bandAllocatedBytes.addAndGet(span.bandAllocatedBytes.get());
+        }
+
+        StageTotals totals = TOTALS[span.stage.ordinal()];
+        totals.runs.incrementAndGet();
+        totals.nanoseconds.addAndGet(nanoseconds);
+        totals.pixels.addAndGet(span.pixels);
+        totals.allocatedBytes.addAndGet(allocatedBytes);
+
+        if (span.event != null) {
+            RECORDER.commit(span.event, span.stage.getKey(), span.pixels, getPixelsPerSecond(span.pixels, nanoseconds),
+                    allocatedBytes);
+        }
+    }
+
+    /**
+     * Adds the bytes the band tasks allocate on the threads of a row band scheduler to the current stage of the
+     * calling thread, whose own allocations are counted by the stage already
+     * @return task itself if instrumentation is off or no stage runs on the calling thread
+     */
+    static RowBandScheduler.RowBandTask measureBands(RowBandScheduler.RowBandTask task) {
+        if (!enabled || THREAD_BEAN == null) {
+            return task;
+        }
+        Span span = CURRENT_SPAN.get();
+        if (span == null) {
+            return task;
+        }
+        return (fromRow, toRow) -> {
+            if (Thread.currentThread() == span.thread) {
+                task.process(fromRow, toRow);
+                return;
+            }
+            long startAllocatedBytes = getAllocatedBytes();
+            task.process(fromRow, toRow);
+            span.bandAllocatedBytes.addAndGet(getAllocatedBytes() - startAllocatedBytes);
+        };
+    }
+
+    /**
+     * Totals of the stages run since the start or the last reset, e.g.
+     * {"stages":[{"stage":"threshold","runs":2,"seconds":0.004100,"pixels":8388608,"pixelsPerSecond":2046002000.0,
+     * "allocatedBytes":1024}]}
+     * Times of stages run concurrently are summed, allocated bytes are -1 if the JVM doesn't count them.
+     */
+    static String getSummary() {
+        StringBuilder summary = new StringBuilder("{\"stages\":[");
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            StageTotals totals = TOTALS[stage.ordinal()];
+            long runs = totals.runs.get();
+            if (runs == 0) {
+                continue;
+            }
+            long nanoseconds = totals.nanoseconds.get();
+            long pixels = totals.pixels.get();
+            if (!first) {
+                summary.append(',');
+            }
+            first = false;
+            summary.append(String.format(Locale.ROOT, "{\"stage\":\"%s\",\"runs\":%d,\"seconds\":%.6f," +
+                            "\"pixels\":%d,\"pixelsPerSecond\":%.1f,\"allocatedBytes\":%d}", stage.getKey(), runs,
+                    nanoseconds / 1000000000.0, pixels, getPixelsPerSecond(pixels, nanoseconds),
+                    THREAD_BEAN != null ? totals.allocatedBytes.get() : -1));
+        }
+        return summary.append("]}").toString();
+    }
+
+    static void reset() {
+        for (StageTotals totals : TOTALS) {
+            totals.runs.set(0);
+            totals.nanoseconds.set(0);
+            totals.pixels.set(0);
+            totals.allocatedBytes.set(0);
+        }
+    }
+
+    private static double getPixelsPerSecond(long pixels, long nanoseconds) {
+        return nanoseconds > 0 ? pixels * 1000000000.0 / nanoseconds : 0;
+    }
+
+    private static long getAllocatedBytes() {
+        return THREAD_BEAN != null ? THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        try {
+            java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            com.sun.management.ThreadMXBean allocationThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (!allocationThreadBean.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            allocationThreadBean.setThreadAllocatedMemoryEnabled(true);
+            return allocationThreadBean;
+        } catch (LinkageError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
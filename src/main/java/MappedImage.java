@@ -0,0 +1,273 @@
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 8, 16 or 32-bit greyscale image in an uncompressed file, raw or TIFF with contiguous strips, which is accessed
+ * through memory mapped row bands instead of being read to the heap. Tiles are copied from a mapped band to image
+ * processors and back, so the heap holds only the tiles being processed whatever the size of the image.
+ *
+ * A mapping of a band should be smaller than 2 GB, i.e. band height * width * bytes per pixel.
+ */
+class MappedImage implements Closeable {
+    /** TIFF tags written by create **/
+    private static final int TIFF_ENTRIES = 11;
+    private static final int TIFF_HEADER_SIZE = 8 + 2 + TIFF_ENTRIES * 12 + 4;
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final ByteOrder byteOrder;
+    private final long pixelsOffset;
+
+    private MappedImage(FileChannel channel, boolean writable, int width, int height, int bitDepth,
+                        ByteOrder byteOrder, long pixelsOffset) {
+        this.channel = channel;
+        this.writable = writable;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.byteOrder = byteOrder;
+        this.pixelsOffset = pixelsOffset;
+    }
+
+    /**
+     * Opens the first image of an uncompressed TIFF file
+     */
+    static MappedImage openTiff(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        FileInfo[] fileInfos = new TiffDecoder(directory.toString() + "/", path.getFileName().toString())
+                .getTiffInfo();
+        if (fileInfos == null || fileInfos.length == 0) {
+            throw new IOException(path + ": not a TIFF file");
+        }
+        FileInfo fileInfo = fileInfos[0];
+        if (fileInfo.compression > FileInfo.COMPRESSION_NONE) {
+            throw new IOException(path + ": compressed TIFF files can't be mapped");
+        }
+
+        int bitDepth;
+        switch (fileInfo.fileType) {
+            case FileInfo.GRAY8:
+                bitDepth = 8;
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                bitDepth = 16;
+                break;
+            case FileInfo.GRAY32_FLOAT:
+                bitDepth = 32;
+                break;
+            default:
+                throw new IOException(path + ": only 8-bit, unsigned 16-bit and float 32-bit images are supported");
+        }
+
+        //strips of the pixels should follow each other
+        long pixelsOffset = fileInfo.getOffset();
+        if (fileInfo.stripOffsets != null && fileInfo.stripLengths != null && fileInfo.stripOffsets.length > 1) {
+            long stripOffset = fileInfo.stripOffsets[0] & 0xffffffffL;
+            pixelsOffset = stripOffset;
+            for (int stripIndex = 0; stripIndex < fileInfo.stripOffsets.length; stripIndex++) {
+                if ((fileInfo.stripOffsets[stripIndex] & 0xffffffffL) != stripOffset) {
+                    throw new IOException(path + ": strips aren't contiguous");
+                }
+                stripOffset += fileInfo.stripLengths[stripIndex] & 0xffffffffL;
+            }
+        }
+
+        return open(path, fileInfo.width, fileInfo.height, bitDepth,
+                fileInfo.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, pixelsOffset);
+    }
+
+    /**
+     * Opens a raw image, pixels row by row starting at the offset
+     */
+    static MappedImage open(Path path, int width, int height, int bitDepth, ByteOrder byteOrder, long pixelsOffset)
+            throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Bit depth should be 8, 16 or 32");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() < pixelsOffset + (long) width * height * (bitDepth / 8)) {
+            channel.close();
+            throw new IOException(path + ": file is shorter than the image");
+        }
+        return new MappedImage(channel, false, width, height, bitDepth, byteOrder, pixelsOffset);
+    }
+
+    /**
+     * Creates a little-endian image file of the given size, a TIFF one if the file name ends with .tif or .tiff and
+     * a raw one otherwise. TIFF files are limited to 4 GB of pixels.
+     */
+    static MappedImage create(Path path, int width, int height, int bitDepth) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Bit depth should be 8, 16 or 32");
+        }
+        String fileName = path.getFileName().toString().toLowerCase();
+        boolean tiff = fileName.endsWith(".tif") || fileName.endsWith(".tiff");
+        long pixelsSize = (long) width * height * (bitDepth / 8);
+        if (tiff && pixelsSize > 0xffffffffL - TIFF_HEADER_SIZE) {
+            throw new IllegalArgumentException(path + ": image is too large for TIFF, write a raw file instead");
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long pixelsOffset = tiff ? TIFF_HEADER_SIZE : 0;
+        if (tiff) {
+            ByteBuffer header = getTiffHeader(width, height, bitDepth, pixelsSize);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        //extends the file, the pixels are zeros until they are written
+        if (pixelsSize > 0) {
+            channel.write(ByteBuffer.allocate(1), pixelsOffset + pixelsSize - 1);
+        }
+        return new MappedImage(channel, true, width, height, bitDepth, ByteOrder.LITTLE_ENDIAN, pixelsOffset);
+    }
+
+    /**
+     * Single strip uncompressed TIFF header, the pixels follow it
+     */
+    private static ByteBuffer getTiffHeader(int width, int height, int bitDepth, long pixelsSize) {
+        ByteBuffer header = ByteBuffer.allocate(TIFF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) TIFF_ENTRIES);
+        putTiffEntry(header, TiffDecoder.NEW_SUBFILE_TYPE, 4, 0);
+        putTiffEntry(header, TiffDecoder.IMAGE_WIDTH, 4, width);
+        putTiffEntry(header, TiffDecoder.IMAGE_LENGTH, 4, height);
+        putTiffEntry(header, TiffDecoder.BITS_PER_SAMPLE, 3, bitDepth);
+        putTiffEntry(header, TiffDecoder.COMPRESSION, 3, 1);
+        //black is zero
+        putTiffEntry(header, TiffDecoder.PHOTO_INTERP, 3, 1);
+        putTiffEntry(header, TiffDecoder.STRIP_OFFSETS, 4, TIFF_HEADER_SIZE);
+        putTiffEntry(header, TiffDecoder.SAMPLES_PER_PIXEL, 3, 1);
+        putTiffEntry(header, TiffDecoder.ROWS_PER_STRIP, 4, height);
+        putTiffEntry(header, TiffDecoder.STRIP_BYTE_COUNT, 4, (int) pixelsSize);
+        //unsigned integers or floating point
+        putTiffEntry(header, TiffDecoder.SAMPLE_FORMAT, 3, bitDepth == 32 ? 3 : 1);
+        //no next image
+        header.putInt(0);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @param type 3 for SHORT, 4 for LONG
+     */
+    private static void putTiffEntry(ByteBuffer header, int tag, int type, int value) {
+        header.putShort((short) tag).putShort((short) type).putInt(1);
+        if (type == 3) {
+            header.putShort((short) value).putShort((short) 0);
+        } else {
+            header.putInt(value);
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * @return rows from fromRow inclusive to toRow exclusive mapped to memory, in the byte order of the file
+     */
+    MappedByteBuffer mapRows(int fromRow, int toRow) throws IOException {
+        long rowSize = (long) width * (bitDepth / 8);
+        long size = (toRow - fromRow) * rowSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Band of " + (toRow - fromRow) + " rows is too large to be mapped");
+        }
+        MappedByteBuffer rows = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                pixelsOffset + fromRow * rowSize, size);
+        rows.order(byteOrder);
+        return rows;
+    }
+
+    /**
+     * Copies a tile of a mapped band to a new image processor
+     * @param rows band mapped by mapRows(rowsFrom, ...), which contains the tile
+     */
+    ImageProcessor getTile(ByteBuffer rows, int rowsFrom, int x, int y, int tileWidth, int tileHeight) {
+        ByteBuffer tileRows = rows.duplicate().order(rows.order());
+        int bytesPerPixel = bitDepth / 8;
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[tileWidth * tileHeight];
+                for (int rowIndex = 0; rowIndex < tileHeight; rowIndex++) {
+                    tileRows.position(((y + rowIndex - rowsFrom) * width + x) * bytesPerPixel);
+                    tileRows.get(pixels, rowIndex * tileWidth, tileWidth);
+                }
+                return new ByteProcessor(tileWidth, tileHeight, pixels);
+            }
+            case 16: {
+                short[] pixels = new short[tileWidth * tileHeight];
+                for (int rowIndex = 0; rowIndex < tileHeight; rowIndex++) {
+                    tileRows.position(((y + rowIndex - rowsFrom) * width + x) * bytesPerPixel);
+                    tileRows.asShortBuffer().get(pixels, rowIndex * tileWidth, tileWidth);
+                }
+                return new ShortProcessor(tileWidth, tileHeight, pixels, null);
+            }
+            default: {
+                float[] pixels = new float[tileWidth * tileHeight];
+                for (int rowIndex = 0; rowIndex < tileHeight; rowIndex++) {
+                    tileRows.position(((y + rowIndex - rowsFrom) * width + x) * bytesPerPixel);
+                    tileRows.asFloatBuffer().get(pixels, rowIndex * tileWidth, tileWidth);
+                }
+                return new FloatProcessor(tileWidth, tileHeight, pixels, null);
+            }
+        }
+    }
+
+    /**
+     * Copies a part of a tile to a mapped band, several threads may set different tiles of a band at once
+     * @param rows band mapped by mapRows(rowsFrom, ...)
+     * @param tileX column of the tile the copied part starts at
+     * @param tileY row of the tile the copied part starts at
+     */
+    void setTile(ByteBuffer rows, int rowsFrom, int x, int y, ImageProcessor tile, int tileX, int tileY,
+                 int partWidth, int partHeight) {
+        ByteBuffer tileRows = rows.duplicate().order(rows.order());
+        int bytesPerPixel = bitDepth / 8;
+        int tileWidth = tile.getWidth();
+        for (int rowIndex = 0; rowIndex < partHeight; rowIndex++) {
+            tileRows.position(((y + rowIndex - rowsFrom) * width + x) * bytesPerPixel);
+            int tileOffset = (tileY + rowIndex) * tileWidth + tileX;
+            switch (bitDepth) {
+                case 8:
+                    tileRows.put((byte[]) tile.getPixels(), tileOffset, partWidth);
+                    break;
+                case 16:
+                    tileRows.asShortBuffer().put((short[]) tile.getPixels(), tileOffset, partWidth);
+                    break;
+                default:
+                    tileRows.asFloatBuffer().put((float[]) tile.getPixels(), tileOffset, partWidth);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Inference engine for feedforward networks of any layer sizes with sigmoid activation, see {@link NetworkWeights}.
+ * Inputs are evaluated in batches: the batch is a row-major matrix of inputs, and every layer is a small matrix
+ * multiply of the batch by the layer's weights. The weights of a layer are kept in one contiguous array, row per
+ * lower layer neuron with the bias row last. Batches are processed in blocks of BLOCK_SIZE inputs, so the activations
+ * of a block stay in the L1 cache from the first layer to the last one. Within a block the loops run in i-k-j order,
+ * so the innermost loop goes over contiguous weights and activations.
+ *
+ * The engine keeps no state between calls, so one instance can be used by several threads.
+ */
+class MultilayerPerceptron {
+    /** inputs per block, activations of a block take BLOCK_SIZE * largest layer size doubles **/
+    private static final int BLOCK_SIZE = 64;
+
+    private final int[] layerSizes;
+    private final double[][] layerWeights;
+    private final int maxLayerSize;
+
+    MultilayerPerceptron(NetworkWeights networkWeights) {
+        this.layerSizes = networkWeights.getLayerSizes().clone();
+        double[][][] matrices = networkWeights.getMatrices();
+
+        layerWeights = new double[matrices.length][];
+        for (int layerIndex = 0; layerIndex < matrices.length; layerIndex++) {
+            int outputSize = layerSizes[layerIndex + 1];
+            double[][] matrix = matrices[layerIndex];
+            layerWeights[layerIndex] = new double[matrix.length * outputSize];
+            for (int rowIndex = 0; rowIndex < matrix.length; rowIndex++) {
+                System.arraycopy(matrix[rowIndex], 0, layerWeights[layerIndex], rowIndex * outputSize, outputSize);
+            }
+        }
+
+        int maxLayerSize = 0;
+        for (int layerSize : layerSizes) {
+            maxLayerSize = Math.max(maxLayerSize, layerSize);
+        }
+        this.maxLayerSize = maxLayerSize;
+    }
+
+    int getInputSize() {
+        return layerSizes[0];
+    }
+
+    int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * @param inputs batchSize rows of getInputSize() values
+     * @param outputs batchSize rows of getOutputSize() values, overwritten
+     */
+    void compute(double[] inputs, double[] outputs, int batchSize) {
+        int inputSize = getInputSize();
+        int outputSize = getOutputSize();
+        int lastLayerIndex = layerWeights.length - 1;
+        double[][] blockActivations = {new double[BLOCK_SIZE * maxLayerSize], new double[BLOCK_SIZE * maxLayerSize]};
+
+        for (int blockStart = 0; blockStart < batchSize; blockStart += BLOCK_SIZE) {
+            int blockSize = Math.min(BLOCK_SIZE, batchSize - blockStart);
+
+            double[] layerInputs = inputs;
+            int layerInputsOffset = blockStart * inputSize;
+            for (int layerIndex = 0; layerIndex <= lastLayerIndex; layerIndex++) {
+                double[] layerOutputs = layerIndex == lastLayerIndex ? outputs : blockActivations[layerIndex & 1];
+                int layerOutputsOffset = layerIndex == lastLayerIndex ? blockStart * outputSize : 0;
+
+                computeLayer(layerWeights[layerIndex], layerSizes[layerIndex], layerSizes[layerIndex + 1],
+                        layerInputs, layerInputsOffset, layerOutputs, layerOutputsOffset, blockSize);
+
+                layerInputs = layerOutputs;
+                layerInputsOffset = layerOutputsOffset;
+            }
+        }
+    }
+
+    /**
+     * Every output is the sigmoid of the sum of inputs multiplied by their weights, the bias being added last as
+     * the weight of an input equal to 1
+     */
+    private static void computeLayer(double[] weights, int inputSize, int outputSize, double[] inputs,
+                                     int inputsOffset, double[] outputs, int outputsOffset, int blockSize) {
+        int biasOffset = inputSize * outputSize;
+        for (int blockIndex = 0; blockIndex < blockSize; blockIndex++) {
+            int inputsRowOffset = inputsOffset + blockIndex * inputSize;
+            int outputsRowOffset = outputsOffset + blockIndex * outputSize;
+
+            for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                outputs[outputsRowOffset + outputIndex] = 0;
+            }
+            for (int inputIndex = 0; inputIndex < inputSize; inputIndex++) {
+                double input = inputs[inputsRowOffset + inputIndex];
+                int weightsRowOffset = inputIndex * outputSize;
+                for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                    outputs[outputsRowOffset + outputIndex] += input * weights[weightsRowOffset + outputIndex];
+                }
+            }
+            for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                double sum = outputs[outputsRowOffset + outputIndex] + weights[biasOffset + outputIndex];
+                outputs[outputsRowOffset + outputIndex] = 1.0 / (1.0 + Math.exp(-sum));
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+/**
+ * Binary 3x3 neighbourhood operation given by a rule table. The neighbourhood of a pixel is encoded as a 9-bit index,
+ * the pixel at column offset dx and row offset dy from the center being bit 3 * (1 - dx) + (1 - dy), so the right
+ * column is the lowest 3 bits and the center is bit 4, and the table maps every one of the 512 neighbourhoods to the
+ * resulting pixel. Pixels of 128 and above are white, as the 255 of binary images, results are 255 or 0, and pixels
+ * beyond the image borders are black.
+ *
+ * A row is processed by sliding the window to the right, every step shifts the index by a column and adds the 3 bits
+ * of the column entering it, so a pixel costs a table lookup and three reads whatever the rule and the image are.
+ */
+final class NeighbourhoodRules {
+    interface Rule {
+        /**
+         * @param neighbourhood 9-bit index of the neighbourhood, see NeighbourhoodRules
+         * @return whether the center pixel is white in the result
+         */
+        boolean isWhite(int neighbourhood);
+    }
+
+    static final int CENTER = 1 << 4;
+    private static final int NEIGHBOURS = 0x1ff & ~CENTER;
+
+    /** white pixels none of whose 8 neighbours is white turn black **/
+    static final NeighbourhoodRules ISOLATED_PIXELS_REMOVAL = new NeighbourhoodRules(neighbourhood ->
+            (neighbourhood & CENTER) != 0 && (neighbourhood & NEIGHBOURS) != 0);
+    /** pixels with a white pixel in their neighbourhood turn white **/
+    static final NeighbourhoodRules DILATION = new NeighbourhoodRules(neighbourhood -> neighbourhood != 0);
+    /** pixels with a black pixel in their neighbourhood turn black **/
+    static final NeighbourhoodRules EROSION = new NeighbourhoodRules(neighbourhood -> neighbourhood == 0x1ff);
+    /** first and second subiterations of the Zhang-Suen thinning, see thin **/
+    private static final NeighbourhoodRules THINNING_FIRST = new NeighbourhoodRules(neighbourhood ->
+            isKeptByThinning(neighbourhood, true));
+    private static final NeighbourhoodRules THINNING_SECOND = new NeighbourhoodRules(neighbourhood ->
+            isKeptByThinning(neighbourhood, false));
+
+    private final byte[] table = new byte[512];
+
+    NeighbourhoodRules(Rule rule) {
+        for (int neighbourhood = 0; neighbourhood < table.length; neighbourhood++) {
+            table[neighbourhood] = (byte) (rule.isWhite(neighbourhood) ? 255 : 0);
+        }
+    }
+
+    /**
+     * Applies the rule to the image, row bands in parallel
+     * @param result width * height pixels, all of them are overwritten
+     */
+    void apply(byte[] pixels, int width, int height, byte[] result, RowBandScheduler scheduler) {
+        scheduler.process(height, (fromRow, toRow) -> {
+            for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+                applyRow(pixels, rowIndex > 0 ? (rowIndex - 1) * width : -1, rowIndex * width,
+                        rowIndex < height - 1 ? (rowIndex + 1) * width : -1, width, result, rowIndex * width);
+            }
+        });
+    }
+
+    /**
+     * Applies the rule to a row whose neighbour rows may be anywhere in the array, e.g. in a ring buffer
+     * @param previousRowOffset index of the first pixel of the row above, -1 for the first row of the image
+     * @param nextRowOffset index of the first pixel of the row below, -1 for the last row of the image
+     */
+    void applyRow(byte[] pixels, int previousRowOffset, int rowOffset, int nextRowOffset, int width, byte[] result,
+                  int resultRowOffset) {
+        if (previousRowOffset < 0 || nextRowOffset < 0) {
+            applyBorderRow(pixels, previousRowOffset, rowOffset, nextRowOffset, width, result, resultRowOffset);
+            return;
+        }
+
+        //the column left of the first pixel is black
+        int neighbourhood = isWhite(pixels[previousRowOffset]) << 2 | isWhite(pixels[rowOffset]) << 1 |
+                isWhite(pixels[nextRowOffset]);
+        for (int columnIndex = 1; columnIndex < width; columnIndex++) {
+            neighbourhood = (neighbourhood << 3 & 0x1ff) | isWhite(pixels[previousRowOffset + columnIndex]) << 2 |
+                    isWhite(pixels[rowOffset + columnIndex]) << 1 | isWhite(pixels[nextRowOffset + columnIndex]);
+            result[resultRowOffset + columnIndex - 1] = table[neighbourhood];
+        }
+        //and so is the column right of the last one
+        result[resultRowOffset + width - 1] = table[neighbourhood << 3 & 0x1ff];
+    }
+
+    /**
+     * Zhang-Suen thinning of the image to lines one pixel wide, the two subiterations are applied in turns until the
+     * image doesn't change
+     * @return pixels of the thinned image, 255 or 0
+     */
+    static byte[] thin(byte[] pixels, int width, int height, RowBandScheduler scheduler) {
+        byte[] current = new byte[pixels.length];
+        byte[] next = new byte[pixels.length];
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            current[pixelIndex] = (byte) ((pixels[pixelIndex] & 0xff) >= 128 ? 255 : 0);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (NeighbourhoodRules subiteration : new NeighbourhoodRules[]{THINNING_FIRST, THINNING_SECOND}) {
+                subiteration.apply(current, width, height, next, scheduler);
+                changed |= !Arrays.equals(current, next);
+                byte[] swap = current;
+                current = next;
+                next = swap;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * applyRow of the first and last rows, whose missing neighbour rows are black
+     */
+    private void applyBorderRow(byte[] pixels, int previousRowOffset, int rowOffset, int nextRowOffset, int width,
+                                byte[] result, int resultRowOffset) {
+        int neighbourhood = getColumn(pixels, previousRowOffset, rowOffset, nextRowOffset, 0);
+        for (int columnIndex = 1; columnIndex < width; columnIndex++) {
+            neighbourhood = (neighbourhood << 3 & 0x1ff) |
+                    getColumn(pixels, previousRowOffset, rowOffset, nextRowOffset, columnIndex);
+            result[resultRowOffset + columnIndex - 1] = table[neighbourhood];
+        }
+        result[resultRowOffset + width - 1] = table[neighbourhood << 3 & 0x1ff];
+    }
+
+    /**
+     * @return 3 bits of the column, the row above being the most significant one
+     */
+    private static int getColumn(byte[] pixels, int previousRowOffset, int rowOffset, int nextRowOffset,
+                                 int columnIndex) {
+        int column = isWhite(pixels[rowOffset + columnIndex]) << 1;
+        if (previousRowOffset >= 0) {
+            column |= isWhite(pixels[previousRowOffset + columnIndex]) << 2;
+        }
+        if (nextRowOffset >= 0) {
+            column |= isWhite(pixels[nextRowOffset + columnIndex]);
+        }
+        return column;
+    }
+
+    /**
+     * @return 1 for pixels of 128 and above, 0 for darker ones
+     */
+    private static int isWhite(byte pixel) {
+        return (pixel >> 7) & 1;
+    }
+
+    /**
+     * Zhang-Suen condition of the pixel with its 8 neighbours P2..P9 clockwise from the top one
+     */
+    private static boolean isKeptByThinning(int neighbourhood, boolean first) {
+        if ((neighbourhood & CENTER) == 0) {
+            return false;
+        }
+        //P2 (top), P3 (top right), P4 (right), P5 (bottom right), P6 (bottom), P7 (bottom left), P8 (left), P9
+        int[] bits = {5, 2, 1, 0, 3, 6, 7, 8};
+        int[] neighbours = new int[8];
+        int whiteNeighbours = 0;
+        for (int neighbourIndex = 0; neighbourIndex < neighbours.length; neighbourIndex++) {
+            neighbours[neighbourIndex] = neighbourhood >>> bits[neighbourIndex] & 1;
+            whiteNeighbours += neighbours[neighbourIndex];
+        }
+        int transitions = 0;
+        for (int neighbourIndex = 0; neighbourIndex < neighbours.length; neighbourIndex++) {
+            if (neighbours[neighbourIndex] == 0 && neighbours[(neighbourIndex + 1) % neighbours.length] == 1) {
+                transitions++;
+            }
+        }
+        int p2 = neighbours[0], p4 = neighbours[2], p6 = neighbours[4], p8 = neighbours[6];
+        boolean removed = whiteNeighbours >= 2 && whiteNeighbours <= 6 && transitions == 1 &&
+                (first ? p2 * p4 * p6 == 0 && p4 * p6 * p8 == 0 : p2 * p4 * p8 == 0 && p2 * p6 * p8 == 0);
+        return !removed;
+    }
+}
@@ -0,0 +1,256 @@
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.zip.CRC32;
+
+/**
+ * Process-wide cache of networks built from weights resources, see {@link NetworkWeights}, both as FeedforwardNetwork
+ * and as {@link MultilayerPerceptron}. A request only compares the modification time and the size of the resources,
+ * or their jar entries' time, size and CRC, with the ones the cached networks were looked up with. The resources are
+ * read again only when these change, e.g. when weights.txt is replaced by a retrained one, and the networks are built
+ * again only when the checksum of the chosen resource changes too. Binary weights converted from a resource later in
+ * the list are used only while they hold the checksum of its current contents, so a stale weights.bin never hides a
+ * retrained weights.txt.
+ *
+ * FeedforwardNetwork keeps the last computed outputs in its layers, so a cached network should be used under its own
+ * lock.
+ */
+final class NetworkCache {
+    /** networks by the class loader and the list of resources they were looked up in **/
+    private static final ConcurrentMap<List<Object>, CachedNetwork> NETWORKS = new ConcurrentHashMap<>();
+
+    private static class CachedNetwork {
+        /** stamps of all the resources of the list the network was looked up with, see getStamps **/
+        private final List<String> stamps;
+        private final long checksum;
+        private final FeedforwardNetwork network;
+        private final MultilayerPerceptron perceptron;
+
+        CachedNetwork(List<String> stamps, long checksum, NetworkWeights networkWeights) {
+            this.stamps = stamps;
+            this.checksum = checksum;
+            this.network = networkWeights.toNetwork();
+            this.perceptron = new MultilayerPerceptron(networkWeights);
+        }
+
+        /**
+         * The same networks looked up with other stamps, e.g. after a resource was rewritten with the same contents
+         */
+        CachedNetwork(List<String> stamps, CachedNetwork cachedNetwork) {
+            this.stamps = stamps;
+            this.checksum = cachedNetwork.checksum;
+            this.network = cachedNetwork.network;
+            this.perceptron = cachedNetwork.perceptron;
+        }
+    }
+
+    private NetworkCache() {
+    }
+
+    /**
+     * @param resourceNames weights resources in the order of preference, the first one which exists and is valid is
+     *                      used, e.g. binary weights and the text ones as a fallback
+     */
+    static FeedforwardNetwork getNetwork(String... resourceNames) {
+        return getNetwork(NetworkCache.class.getClassLoader(), resourceNames);
+    }
+
+    /**
+     * @param classLoader class loader the resources are looked up by, e.g. of a directory of retrained weights
+     */
+    static FeedforwardNetwork getNetwork(ClassLoader classLoader, String... resourceNames) {
+        return getCachedNetwork(classLoader, resourceNames).network;
+    }
+
+    /**
+     * @param resourceNames see getNetwork
+     */
+    static MultilayerPerceptron getPerceptron(String... resourceNames) {
+        return getPerceptron(NetworkCache.class.getClassLoader(), resourceNames);
+    }
+
+    static MultilayerPerceptron getPerceptron(ClassLoader classLoader, String... resourceNames) {
+        return getCachedNetwork(classLoader, resourceNames).perceptron;
+    }
+
+    /**
+     * @param resourceNames see getNetwork
+     * @return CRC32 of the weights resource the networks are built from, e.g. for keys of cached results
+     */
+    static long getChecksum(String... resourceNames) {
+        return getChecksum(NetworkCache.class.getClassLoader(), resourceNames);
+    }
+
+    static long getChecksum(ClassLoader classLoader, String... resourceNames) {
+        return getCachedNetwork(classLoader, resourceNames).checksum;
+    }
+
+    private static CachedNetwork getCachedNetwork(ClassLoader classLoader, String... resourceNames) {
+        List<Object> key = new ArrayList<>();
+        key.add(classLoader);
+        key.addAll(Arrays.asList(resourceNames));
+        List<String> stamps = getStamps(classLoader, resourceNames);
+        CachedNetwork cachedNetwork = NETWORKS.get(key);
+        if (cachedNetwork != null && stamps != null && stamps.equals(cachedNetwork.stamps)) {
+            return cachedNetwork;
+        }
+
+        //the stamps are taken before the resources are read, so a resource changing meanwhile is read again next time
+        cachedNetwork = readNetwork(classLoader, resourceNames, stamps, cachedNetwork);
+        NETWORKS.put(key, cachedNetwork);
+        return cachedNetwork;
+    }
+
+    /**
+     * @param previousNetwork networks looked up in the resources before, they are reused if the chosen resource's
+     *                        checksum is the same, null if there are none
+     */
+    private static CachedNetwork readNetwork(ClassLoader classLoader, String[] resourceNames, List<String> stamps,
+                                             CachedNetwork previousNetwork) {
+        List<IOException> failures = new ArrayList<>();
+        for (String resourceName : resourceNames) {
+            try {
+                ByteBuffer buffer = readResource(classLoader, resourceName);
+                if (buffer == null) {
+                    continue;
+                }
+
+                if (NetworkWeights.isBinary(buffer) && isStale(classLoader, buffer, resourceNames, resourceName)) {
+                    continue;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(buffer.duplicate());
+                long checksum = crc.getValue();
+
+                if (previousNetwork != null && previousNetwork.checksum == checksum) {
+                    return new CachedNetwork(stamps, previousNetwork);
+                }
+                return new CachedNetwork(stamps, checksum, NetworkWeights.read(buffer));
+            } catch (IOException | IllegalArgumentException e) {
+                //the next resource is the fallback, the failures are reported only if none of them can be read
+                failures.add(new IOException(resourceName + ": " + e.getMessage(), e));
+            }
+        }
+
+        IllegalStateException exception = new IllegalStateException("None of the weights resources can be read: " +
+                String.join(", ", resourceNames), failures.isEmpty() ? null : failures.get(0));
+        for (int failureIndex = 1; failureIndex < failures.size(); failureIndex++) {
+            exception.addSuppressed(failures.get(failureIndex));
+        }
+        throw exception;
+    }
+
+    /**
+     * @return modification time and size of every resource, the time, size and CRC of the entries of jar resources,
+     * "missing" for resources which don't exist, null if a resource's stamp can't be taken
+     */
+    private static List<String> getStamps(ClassLoader classLoader, String[] resourceNames) {
+        List<String> stamps = new ArrayList<>();
+        for (String resourceName : resourceNames) {
+            URL url = classLoader.getResource(resourceName);
+            if (url == null) {
+                stamps.add("missing");
+                continue;
+            }
+
+            try {
+                if ("file".equals(url.getProtocol())) {
+                    Path path = Paths.get(url.toURI());
+                    stamps.add(url + " " + Files.getLastModifiedTime(path).toMillis() + " " + Files.size(path));
+                    continue;
+                }
+
+                URLConnection connection = url.openConnection();
+                if (!(connection instanceof JarURLConnection)) {
+                    return null;
+                }
+                JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+                stamps.add(url + " " + entry.getTime() + " " + entry.getSize() + " " + entry.getCrc());
+            } catch (IOException | URISyntaxException e) {
+                return null;
+            }
+        }
+        return stamps;
+    }
+
+    /**
+     * @return whether the binary weights weren't converted from the current contents of the first existing resource
+     * after them in the list, binary weights of an unknown source are stale if there is such a resource
+     */
+    private static boolean isStale(ClassLoader classLoader, ByteBuffer binaryBuffer, String[] resourceNames,
+                                   String binaryResourceName) throws IOException {
+        boolean later = false;
+        for (String resourceName : resourceNames) {
+            if (!later) {
+                later = resourceName.equals(binaryResourceName);
+                continue;
+            }
+            ByteBuffer sourceBuffer = readResource(classLoader, resourceName);
+            if (sourceBuffer != null) {
+                return NetworkWeights.getSourceChecksum(binaryBuffer) != NetworkWeights.getTextChecksum(sourceBuffer);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return contents of the resource, null if there is no such resource
+     */
+    static ByteBuffer readResource(ClassLoader classLoader, String resourceName) throws IOException {
+        URL url = classLoader.getResource(resourceName);
+        if (url == null) {
+            return null;
+        }
+
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+
+        //resources of the plugins jar
+        try (InputStream inputStream = url.openStream();
+             ReadableByteChannel channel = Channels.newChannel(inputStream)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (channel.read(buffer) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer largerBuffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    largerBuffer.put(buffer);
+                    buffer = largerBuffer;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains networks for the ANN edge detection plugin from pairs of a source image and its edge image, e.g.
+ * java -cp Neural_Fuzzy_Plugins.jar:ij.jar:... NetworkTrainer "/data/images/*.tif" /data/edges weights.txt
+ * The edge image of a source image is the file of the same name in the edges directory, its non-zero pixels are edges.
+ *
+ * NxN windows are sampled at random positions of the images, the window of the source image, binarised like the
+ * plugin does or greyscale, is the input and the same window of the edge image is the expected output. The network is
+ * trained by mini-batch backpropagation with momentum minimizing the squared error, the sigmoid activation and weights
+ * layout being the ones of {@link MultilayerPerceptron}. A mini-batch is split into a fixed number of parts run by
+ * the threads, the gradients of every part are accumulated into its own buffers, and the buffers are summed in a fixed
+ * order, so the result depends on the seed only, not on the number of threads.
+ *
+ * The weights are written in the text format getNetwork reads, or in the binary one if the file name ends with .bin.
+ * The plugin packages the weights.txt of the project root and the weights.bin the build converts from it, so trained
+ * text weights replace that file, a binary written here has no source checksum and loses to any packaged weights.txt.
+ * Weights trained with greyscale=true go to greyscale_weights.txt instead, which the greyscale windows mode of the
+ * plugin prefers, see ANN_Edge_Detection_By_Mehrara_And_Zahedinejad.GREYSCALE_WEIGHTS.
+ */
+public class NetworkTrainer {
+    private static final String USAGE = "Usage: NetworkTrainer <source images directory or glob> " +
+            "<edge images directory> <output weights> [name=value ...]\n" +
+            "  window=2 hidden=12 patches=2000000 greyscale=false\n" +
+            "  epochs=10 batch=1024 rate=0.5 momentum=0.9 seed=1 threads=<number of processors>";
+    /** parts a mini-batch is split into whatever the number of threads, so that the sums are always the same **/
+    private static final int BATCH_PARTS = 32;
+
+    /** windows sampled from the image pairs, levels are kept as bytes to fit millions of them in memory **/
+    static class TrainingPatches {
+        private final int windowSize;
+        private final int count;
+        /** grey levels of the source windows, 0 or 255 if binarised **/
+        private final byte[] inputs;
+        /** 1 for the edge pixels of the windows, 0 for others **/
+        private final byte[] targets;
+
+        TrainingPatches(int windowSize, int count) {
+            this.windowSize = windowSize;
+            this.count = count;
+            this.inputs = new byte[count * windowSize * windowSize];
+            this.targets = new byte[count * windowSize * windowSize];
+        }
+
+        int getWindowSize() {
+            return windowSize;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
+    private final int[] layerSizes;
+    /** weights of every layer in the layout of MultilayerPerceptron, row per lower layer neuron and the bias row last **/
+    private final double[][] layerWeights;
+    private final double[][] layerVelocities;
+    private final ExecutorService executor;
+    private final List<GradientTask> gradientTasks = new ArrayList<>();
+
+    /**
+     * Gradients of a part of a mini-batch, the buffers are reused for all mini-batches and parts are taken by any of
+     * the threads
+     */
+    private class GradientTask implements Callable<Double> {
+        private final double[][] layerGradients = new double[layerWeights.length][];
+        private final double[][] activations = new double[layerSizes.length][];
+        private final double[][] deltas = new double[layerSizes.length][];
+        private TrainingPatches patches;
+        private int[] order;
+        private int from;
+        private int to;
+
+        GradientTask() {
+            for (int layerIndex = 0; layerIndex < layerWeights.length; layerIndex++) {
+                layerGradients[layerIndex] = new double[layerWeights[layerIndex].length];
+            }
+            for (int layerIndex = 0; layerIndex < layerSizes.length; layerIndex++) {
+                activations[layerIndex] = new double[layerSizes[layerIndex]];
+                deltas[layerIndex] = new double[layerSizes[layerIndex]];
+            }
+        }
+
+        /**
+         * @return sum of the squared errors of the patches
+         */
+        @Override
+        public Double call() {
+            for (double[] gradients : layerGradients) {
+                Arrays.fill(gradients, 0);
+            }
+
+            int inputSize = layerSizes[0];
+            int outputSize = layerSizes[layerSizes.length - 1];
+            int lastLayerIndex = layerSizes.length - 1;
+            double squaredError = 0;
+            for (int index = from; index < to; index++) {
+                int patchOffset = order[index] * inputSize;
+                for (int inputIndex = 0; inputIndex < inputSize; inputIndex++) {
+                    activations[0][inputIndex] = (patches.inputs[patchOffset + inputIndex] & 0xff) / 255.0;
+                }
+
+                for (int layerIndex = 0; layerIndex < lastLayerIndex; layerIndex++) {
+                    forward(layerWeights[layerIndex], layerSizes[layerIndex], layerSizes[layerIndex + 1],
+                            activations[layerIndex], activations[layerIndex + 1]);
+                }
+
+                //squared error derivative through the sigmoid of the outputs
+                double[] outputs = activations[lastLayerIndex];
+                for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                    double error = outputs[outputIndex] - patches.targets[patchOffset + outputIndex];
+                    squaredError += error * error;
+                    deltas[lastLayerIndex][outputIndex] = error * outputs[outputIndex] * (1 - outputs[outputIndex]);
+                }
+
+                for (int layerIndex = lastLayerIndex - 1; layerIndex >= 0; layerIndex--) {
+                    backward(layerWeights[layerIndex], layerGradients[layerIndex], layerSizes[layerIndex],
+                            layerSizes[layerIndex + 1], activations[layerIndex], deltas[layerIndex + 1],
+                            layerIndex > 0 ? deltas[layerIndex] : null);
+                }
+            }
+            return squaredError;
+        }
+    }
+
+    /**
+     * @param layerSizes sizes of the layers from the input one to the output one
+     * @param random source of the initial weights, uniform in +-1 / sqrt(inputs of the layer)
+     */
+    NetworkTrainer(int[] layerSizes, Random random, int threads) {
+        this.layerSizes = layerSizes.clone();
+        layerWeights = new double[layerSizes.length - 1][];
+        layerVelocities = new double[layerSizes.length - 1][];
+        for (int layerIndex = 0; layerIndex < layerWeights.length; layerIndex++) {
+            int inputSize = layerSizes[layerIndex];
+            double range = 1 / Math.sqrt(inputSize);
+            layerWeights[layerIndex] = new double[(inputSize + 1) * layerSizes[layerIndex + 1]];
+            for (int weightIndex = 0; weightIndex < layerWeights[layerIndex].length; weightIndex++) {
+                layerWeights[layerIndex][weightIndex] = (2 * random.nextDouble() - 1) * range;
+            }
+            layerVelocities[layerIndex] = new double[layerWeights[layerIndex].length];
+        }
+
+        executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, BATCH_PARTS)));
+        for (int partIndex = 0; partIndex < BATCH_PARTS; partIndex++) {
+            gradientTasks.add(new GradientTask());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Map<String, String> parameters = new HashMap<>();
+        for (int argIndex = 3; argIndex < args.length; argIndex++) {
+            String[] parameter = args[argIndex].split("=", 2);
+            if (parameter.length != 2) {
+                System.err.println("Parameter should be name=value: " + args[argIndex] + "\n" + USAGE);
+                System.exit(1);
+            }
+            parameters.put(parameter[0], parameter[1]);
+        }
+
+        int windowSize = Integer.parseInt(parameters.getOrDefault("window", "2"));
+        int hiddenSize = Integer.parseInt(parameters.getOrDefault("hidden", "12"));
+        int patchesCount = Integer.parseInt(parameters.getOrDefault("patches", "2000000"));
+        boolean greyscale = Boolean.parseBoolean(parameters.getOrDefault("greyscale", "false"));
+        int epochs = Integer.parseInt(parameters.getOrDefault("epochs", "10"));
+        int batchSize = Integer.parseInt(parameters.getOrDefault("batch", "1024"));
+        double learningRate = Double.parseDouble(parameters.getOrDefault("rate", "0.5"));
+        double momentum = Double.parseDouble(parameters.getOrDefault("momentum", "0.9"));
+        Random random = new Random(Long.parseLong(parameters.getOrDefault("seed", "1")));
+        int threads = Integer.parseInt(parameters.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        List<Path> sourcePaths = BatchProcessor.getInputPaths(args[0]);
+        Path edgesDirectory = Paths.get(args[1]);
+        Path outputPath = Paths.get(args[2]);
+
+        long startTime = System.nanoTime();
+        TrainingPatches patches = samplePatches(sourcePaths, edgesDirectory, windowSize, patchesCount, greyscale,
+                random);
+        if (patches.getCount() == 0) {
+            System.err.println("No patches sampled");
+            System.exit(2);
+        }
+        System.out.println(String.format("Sampled %d patches in %.2f s", patches.getCount(),
+                (System.nanoTime() - startTime) / 1000000000.0));
+
+        int windowPixels = windowSize * windowSize;
+        NetworkTrainer trainer = new NetworkTrainer(new int[]{windowPixels, hiddenSize, windowPixels}, random,
+                threads);
+        try {
+            for (int epoch = 1; epoch <= epochs; epoch++) {
+                long epochStartTime = System.nanoTime();
+                double meanSquaredError = trainer.train(patches, batchSize, learningRate, momentum, random);
+                System.out.println(String.format("Epoch %d: mean squared error %.6f, %.2f s", epoch,
+                        meanSquaredError, (System.nanoTime() - epochStartTime) / 1000000000.0));
+            }
+        } finally {
+            trainer.shutdown();
+        }
+
+        trainer.getWeights().write(outputPath);
+        System.out.println(String.format("Trained in %.2f s, weights written to %s",
+                (System.nanoTime() - startTime) / 1000000000.0, outputPath));
+    }
+
+    /**
+     * Samples about the same number of windows from every image pair, pairs which can't be opened or whose sizes
+     * differ are skipped
+     * @param greyscale false to binarise the source images with the Otsu threshold like the plugin does
+     */
+    static TrainingPatches samplePatches(List<Path> sourcePaths, Path edgesDirectory, int windowSize, int count,
+                                         boolean greyscale, Random random) {
+        List<ImageProcessor[]> pairs = new ArrayList<>();
+        for (Path sourcePath : sourcePaths) {
+            Path edgesPath = edgesDirectory.resolve(sourcePath.getFileName());
+            if (!Files.isRegularFile(edgesPath)) {
+                System.err.println(sourcePath + ": no edge image " + edgesPath);
+                continue;
+            }
+            ImagePlus source = IJ.openImage(sourcePath.toString());
+            ImagePlus edges = IJ.openImage(edgesPath.toString());
+            if (source == null || edges == null) {
+                System.err.println(sourcePath + ": can't be opened");
+                continue;
+            }
+            if (source.getWidth() != edges.getWidth() || source.getHeight() != edges.getHeight() ||
+                    source.getWidth() < windowSize || source.getHeight() < windowSize) {
+                System.err.println(sourcePath + ": sizes of the source and edge images differ or are too small");
+                continue;
+            }
+            pairs.add(new ImageProcessor[]{source.getProcessor(), edges.getProcessor()});
+        }
+        if (pairs.isEmpty()) {
+            return new TrainingPatches(windowSize, 0);
+        }
+
+        ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin = new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+        TrainingPatches patches = new TrainingPatches(windowSize, count);
+        int windowPixels = windowSize * windowSize;
+        int patchIndex = 0;
+        for (int pairIndex = 0; pairIndex < pairs.size(); pairIndex++) {
+            ImageProcessor source = pairs.get(pairIndex)[0];
+            GreyLevels edges = GreyLevels.of(pairs.get(pairIndex)[1]);
+            int width = source.getWidth();
+            int height = source.getHeight();
+
+            GreyLevels greyLevels = GreyLevels.of(source);
+            PackedBinaryImage binaryImage = null;
+            if (!greyscale) {
+                binaryImage = plugin.getBinaryImage(source);
+            }
+
+            //the remainder goes to the first pairs
+            int pairCount = count / pairs.size() + (pairIndex < count % pairs.size() ? 1 : 0);
+            for (int index = 0; index < pairCount; index++, patchIndex++) {
+                int x = random.nextInt(width - windowSize + 1);
+                int y = random.nextInt(height - windowSize + 1);
+                int patchOffset = patchIndex * windowPixels;
+                for (int relativeY = 0; relativeY < windowSize; relativeY++) {
+                    for (int relativeX = 0; relativeX < windowSize; relativeX++) {
+                        int offset = patchOffset + relativeY * windowSize + relativeX;
+                        int level = binaryImage == null ? greyLevels.get(x + relativeX, y + relativeY) :
+                                binaryImage.get(x + relativeX, y + relativeY) ? 255 : 0;
+                        patches.inputs[offset] = (byte) level;
+                        patches.targets[offset] = (byte) (edges.get(x + relativeX, y + relativeY) != 0 ? 1 : 0);
+                    }
+                }
+            }
+        }
+        return patches;
+    }
+
+    /**
+     * Runs an epoch over the patches in a random order
+     * @return mean squared error of the network outputs over the epoch
+     */
+    double train(TrainingPatches patches, int batchSize, double learningRate, double momentum, Random random)
+            throws InterruptedException {
+        if (patches.getWindowSize() * patches.getWindowSize() != layerSizes[0]) {
+            throw new IllegalArgumentException("Patches don't match the network inputs");
+        }
+
+        int[] order = new int[patches.getCount()];
+        for (int index = 0; index < order.length; index++) {
+            order[index] = index;
+        }
+        for (int index = order.length - 1; index > 0; index--) {
+            int otherIndex = random.nextInt(index + 1);
+            int swap = order[index];
+            order[index] = order[otherIndex];
+            order[otherIndex] = swap;
+        }
+
+        batchSize = Math.max(1, batchSize);
+        double squaredError = 0;
+        for (int batchStart = 0; batchStart < order.length; batchStart += batchSize) {
+            int batchEnd = Math.min(order.length, batchStart + batchSize);
+            squaredError += computeGradients(patches, order, batchStart, batchEnd);
+
+            //tasks are summed in the same order every time, so the training is reproducible
+            double scale = learningRate / (batchEnd - batchStart);
+            for (int layerIndex = 0; layerIndex < layerWeights.length; layerIndex++) {
+                double[] weights = layerWeights[layerIndex];
+                double[] velocities = layerVelocities[layerIndex];
+                for (int weightIndex = 0; weightIndex < weights.length; weightIndex++) {
+                    double gradient = 0;
+                    for (GradientTask gradientTask : gradientTasks) {
+                        gradient += gradientTask.layerGradients[layerIndex][weightIndex];
+                    }
+                    velocities[weightIndex] = momentum * velocities[weightIndex] - scale * gradient;
+                    weights[weightIndex] += velocities[weightIndex];
+                }
+            }
+        }
+        return squaredError / ((double) order.length * layerSizes[layerSizes.length - 1]);
+    }
+
+    /**
+     * Splits the mini-batch between the gradient tasks and waits for them, small mini-batches leave some tasks empty
+     * @return sum of the squared errors of the mini-batch
+     */
+    private double computeGradients(TrainingPatches patches, int[] order, int batchStart, int batchEnd)
+            throws InterruptedException {
+        int tasksCount = gradientTasks.size();
+        for (int taskIndex = 0; taskIndex < tasksCount; taskIndex++) {
+            GradientTask gradientTask = gradientTasks.get(taskIndex);
+            gradientTask.patches = patches;
+            gradientTask.order = order;
+            gradientTask.from = batchStart + (int) ((long) (batchEnd - batchStart) * taskIndex / tasksCount);
+            gradientTask.to = batchStart + (int) ((long) (batchEnd - batchStart) * (taskIndex + 1) / tasksCount);
+        }
+
+        double squaredError = 0;
+        try {
+            for (Future<Double> future : executor.invokeAll(gradientTasks)) {
+                squaredError += future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return squaredError;
+    }
+
+    private static void forward(double[] weights, int inputSize, int outputSize, double[] inputs, double[] outputs) {
+        int biasOffset = inputSize * outputSize;
+        for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+            outputs[outputIndex] = 0;
+        }
+        for (int inputIndex = 0; inputIndex < inputSize; inputIndex++) {
+            double input = inputs[inputIndex];
+            int weightsRowOffset = inputIndex * outputSize;
+            for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                outputs[outputIndex] += input * weights[weightsRowOffset + outputIndex];
+            }
+        }
+        for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+            double sum = outputs[outputIndex] + weights[biasOffset + outputIndex];
+            outputs[outputIndex] = 1.0 / (1.0 + Math.exp(-sum));
+        }
+    }
+
+    /**
+     * Accumulates the gradients of a layer's weights and propagates the deltas to the layer's inputs
+     * @param inputDeltas null for the input layer
+     */
+    private static void backward(double[] weights, double[] gradients, int inputSize, int outputSize,
+                                 double[] inputs, double[] outputDeltas, double[] inputDeltas) {
+        int biasOffset = inputSize * outputSize;
+        for (int inputIndex = 0; inputIndex < inputSize; inputIndex++) {
+            double input = inputs[inputIndex];
+            int weightsRowOffset = inputIndex * outputSize;
+            double propagated = 0;
+            for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+                gradients[weightsRowOffset + outputIndex] += input * outputDeltas[outputIndex];
+                propagated += weights[weightsRowOffset + outputIndex] * outputDeltas[outputIndex];
+            }
+            if (inputDeltas != null) {
+                inputDeltas[inputIndex] = propagated * input * (1 - input);
+            }
+        }
+        for (int outputIndex = 0; outputIndex < outputSize; outputIndex++) {
+            gradients[biasOffset + outputIndex] += outputDeltas[outputIndex];
+        }
+    }
+
+    /**
+     * @return weights trained so far as matrices of NetworkWeights
+     */
+    NetworkWeights getWeights() {
+        double[][][] matrices = new double[layerWeights.length][][];
+        for (int layerIndex = 0; layerIndex < layerWeights.length; layerIndex++) {
+            int outputSize = layerSizes[layerIndex + 1];
+            matrices[layerIndex] = new double[layerSizes[layerIndex] + 1][outputSize];
+            for (int rowIndex = 0; rowIndex < matrices[layerIndex].length; rowIndex++) {
+                System.arraycopy(layerWeights[layerIndex], rowIndex * outputSize, matrices[layerIndex][rowIndex], 0,
+                        outputSize);
+            }
+        }
+        return new NetworkWeights(layerSizes.clone(), matrices);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
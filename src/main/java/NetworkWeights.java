@@ -0,0 +1,307 @@
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardLayer;
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import com.heatonresearch.book.introneuralnet.neural.matrix.Matrix;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Weights of a feedforward network, one matrix per pair of adjacent layers. A matrix has a row for every neuron of the
+ * lower layer plus the bias row and a column for every neuron of the upper layer.
+ *
+ * Text format: matrices are separated by blank lines, every matrix row is a line of space separated numbers, commas
+ * are accepted as decimal separators.
+ *
+ * Binary format, little-endian: "NNWB" magic, int format version, long CRC32 of the text weights the binary ones were
+ * converted from, -1 if unknown, int number of layers, int size of every layer, then the doubles of every matrix row by
+ * row. Version 1 has no CRC32.
+ */
+public class NetworkWeights {
+    private static final byte[] BINARY_MAGIC = {'N', 'N', 'W', 'B'};
+    private static final int BINARY_VERSION = 2;
+    /** source checksum of binary weights not converted from text ones **/
+    static final long UNKNOWN_SOURCE_CHECKSUM = -1;
+
+    private final int[] layerSizes;
+    private final double[][][] matrices;
+
+    NetworkWeights(int[] layerSizes, double[][][] matrices) {
+        if (layerSizes.length < 2 || matrices.length != layerSizes.length - 1) {
+            throw new IllegalArgumentException("Network should have at least 2 layers and a matrix between every " +
+                    "pair of adjacent layers");
+        }
+        for (int matrixIndex = 0; matrixIndex < matrices.length; matrixIndex++) {
+            if (matrices[matrixIndex].length != layerSizes[matrixIndex] + 1) {
+                throw new IllegalArgumentException("Matrix " + matrixIndex + " should have " +
+                        (layerSizes[matrixIndex] + 1) + " rows");
+            }
+            for (double[] row : matrices[matrixIndex]) {
+                if (row.length != layerSizes[matrixIndex + 1]) {
+                    throw new IllegalArgumentException("Matrix " + matrixIndex + " should have " +
+                            layerSizes[matrixIndex + 1] + " columns");
+                }
+            }
+        }
+        this.layerSizes = layerSizes;
+        this.matrices = matrices;
+    }
+
+    int[] getLayerSizes() {
+        return layerSizes;
+    }
+
+    double[][][] getMatrices() {
+        return matrices;
+    }
+
+    /**
+     * Reads either format, binary weights are recognized by the magic
+     */
+    static NetworkWeights read(ByteBuffer buffer) {
+        return isBinary(buffer) ? readBinary(buffer) : readText(buffer);
+    }
+
+    static boolean isBinary(ByteBuffer buffer) {
+        if (buffer.remaining() < BINARY_MAGIC.length) {
+            return false;
+        }
+        for (int index = 0; index < BINARY_MAGIC.length; index++) {
+            if (buffer.get(buffer.position() + index) != BINARY_MAGIC[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static NetworkWeights readText(ByteBuffer buffer) {
+        String text = StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+
+        List<double[][]> matrices = new ArrayList<>();
+        List<double[]> rows = new ArrayList<>();
+        for (String line : text.split("\r?\n", -1)) {
+            if (StringUtils.isBlank(line)) {
+                if (!rows.isEmpty()) {
+                    matrices.add(rows.toArray(new double[0][]));
+                    rows.clear();
+                }
+                continue;
+            }
+
+            String[] strings = line.trim().split(" ");
+            double[] row = new double[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                row[i] = Double.parseDouble(strings[i].replace(',', '.'));
+            }
+            rows.add(row);
+        }
+        if (!rows.isEmpty()) {
+            matrices.add(rows.toArray(new double[0][]));
+        }
+        if (matrices.isEmpty()) {
+            throw new IllegalArgumentException("No weights found");
+        }
+
+        int[] layerSizes = new int[matrices.size() + 1];
+        for (int matrixIndex = 0; matrixIndex < matrices.size(); matrixIndex++) {
+            double[][] matrix = matrices.get(matrixIndex);
+            layerSizes[matrixIndex] = matrix.length - 1;
+            layerSizes[matrixIndex + 1] = matrix[0].length;
+        }
+        return new NetworkWeights(layerSizes, matrices.toArray(new double[0][][]));
+    }
+
+    static NetworkWeights readBinary(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isBinary(buffer)) {
+            throw new IllegalArgumentException("Not binary weights");
+        }
+        buffer.position(buffer.position() + BINARY_MAGIC.length);
+
+        int version = buffer.getInt();
+        if (version != 1 && version != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary weights version " + version);
+        }
+        if (version > 1) {
+            buffer.getLong();
+        }
+        int layersCount = buffer.getInt();
+        if (layersCount < 2 || layersCount > buffer.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid number of layers " + layersCount);
+        }
+        int[] layerSizes = new int[layersCount];
+        long doublesCount = 0;
+        for (int layerIndex = 0; layerIndex < layersCount; layerIndex++) {
+            layerSizes[layerIndex] = buffer.getInt();
+            if (layerSizes[layerIndex] < 1) {
+                throw new IllegalArgumentException("Invalid size of layer " + layerIndex);
+            }
+            if (layerIndex > 0) {
+                doublesCount += (layerSizes[layerIndex - 1] + 1L) * layerSizes[layerIndex];
+            }
+        }
+        if (buffer.remaining() != doublesCount * 8) {
+            throw new IllegalArgumentException("Binary weights should have " + doublesCount + " doubles");
+        }
+
+        double[][][] matrices = new double[layersCount - 1][][];
+        for (int matrixIndex = 0; matrixIndex < matrices.length; matrixIndex++) {
+            matrices[matrixIndex] = new double[layerSizes[matrixIndex] + 1][layerSizes[matrixIndex + 1]];
+            for (double[] row : matrices[matrixIndex]) {
+                for (int columnIndex = 0; columnIndex < row.length; columnIndex++) {
+                    row[columnIndex] = buffer.getDouble();
+                }
+            }
+        }
+        return new NetworkWeights(layerSizes, matrices);
+    }
+
+    /**
+     * @return CRC32 of the text weights the binary ones were converted from, UNKNOWN_SOURCE_CHECKSUM if they weren't
+     * or the binary weights are of version 1
+     */
+    static long getSourceChecksum(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isBinary(buffer) || buffer.remaining() < BINARY_MAGIC.length + 12 ||
+                buffer.getInt(buffer.position() + BINARY_MAGIC.length) != BINARY_VERSION) {
+            return UNKNOWN_SOURCE_CHECKSUM;
+        }
+        return buffer.getLong(buffer.position() + BINARY_MAGIC.length + 4);
+    }
+
+    /**
+     * @return text weights' checksum stored by toBinary, see getSourceChecksum
+     */
+    static long getTextChecksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return crc.getValue();
+    }
+
+    ByteBuffer toBinary() {
+        return toBinary(UNKNOWN_SOURCE_CHECKSUM);
+    }
+
+    /**
+     * @param sourceChecksum CRC32 of the text weights these ones were read from, see getTextChecksum
+     */
+    ByteBuffer toBinary(long sourceChecksum) {
+        int doublesCount = 0;
+        for (double[][] matrix : matrices) {
+            doublesCount += matrix.length * matrix[0].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BINARY_MAGIC.length + 16 + layerSizes.length * 4 + doublesCount * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(BINARY_MAGIC).putInt(BINARY_VERSION).putLong(sourceChecksum).putInt(layerSizes.length);
+        for (int layerSize : layerSizes) {
+            buffer.putInt(layerSize);
+        }
+        for (double[][] matrix : matrices) {
+            for (double[] row : matrix) {
+                for (double weight : row) {
+                    buffer.putDouble(weight);
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return weights in the text format, with commas as decimal separators like in the shipped weights.txt
+     */
+    String toText() {
+        StringBuilder text = new StringBuilder();
+        for (int matrixIndex = 0; matrixIndex < matrices.length; matrixIndex++) {
+            if (matrixIndex > 0) {
+                text.append('\n');
+            }
+            for (double[] row : matrices[matrixIndex]) {
+                for (int columnIndex = 0; columnIndex < row.length; columnIndex++) {
+                    if (columnIndex > 0) {
+                        text.append(' ');
+                    }
+                    text.append(Double.toString(row[columnIndex]).replace('.', ','));
+                }
+                text.append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    void writeText(Path path) throws IOException {
+        Files.write(path, toText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes binary weights if the file name ends with .bin, text ones otherwise
+     */
+    void write(Path path) throws IOException {
+        if (path.getFileName().toString().endsWith(".bin")) {
+            writeBinary(path);
+        } else {
+            writeText(path);
+        }
+    }
+
+    void writeBinary(Path path) throws IOException {
+        writeBinary(path, UNKNOWN_SOURCE_CHECKSUM);
+    }
+
+    void writeBinary(Path path, long sourceChecksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = toBinary(sourceChecksum);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return network with a layer of every size and the weights set, sigmoid activation
+     */
+    FeedforwardNetwork toNetwork() {
+        FeedforwardNetwork network = new FeedforwardNetwork();
+        for (int layerSize : layerSizes) {
+            network.addLayer(new FeedforwardLayer(layerSize));
+        }
+        network.reset();
+
+        FeedforwardLayer layer = network.getInputLayer();
+        for (double[][] matrix : matrices) {
+            layer.setMatrix(new Matrix(matrix));
+            layer = layer.getNext();
+        }
+        return network;
+    }
+
+    /**
+     * Converts weights to the binary format: NetworkWeights weights.txt weights.bin. The build runs it to package
+     * weights.bin with the checksum of weights.txt, see NetworkCache.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: NetworkWeights <input weights> <output binary weights>");
+            System.exit(1);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[0])));
+        Path outputPath = Paths.get(args[1]);
+        if (outputPath.getParent() != null) {
+            Files.createDirectories(outputPath.getParent());
+        }
+        read(buffer).writeBinary(outputPath, isBinary(buffer) ? getSourceChecksum(buffer) : getTextChecksum(buffer));
+    }
+}
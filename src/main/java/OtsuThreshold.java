@@ -0,0 +1,85 @@
+/**
+ * Otsu threshold of 256-level histograms, see {@link GreyLevels}, and binarisation of images by it. All sums are kept
+ * in longs, so images of billions of pixels don't overflow them.
+ */
+final class OtsuThreshold {
+    private OtsuThreshold() {
+    }
+
+    static int getThreshold(long[] histogram) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        return getThreshold(histogram, total);
+    }
+
+    /**
+     * @return level maximizing the between class variance, the middle of the first and the last such levels if there
+     * are several of them
+     */
+    static int getThreshold(long[] histogram, long total) {
+        long sum = 0;
+        for (int i = 1; i < histogram.length; ++i) {
+            sum += i * histogram[i];
+        }
+
+        long sumB = 0;
+        long wB = 0;
+        double max = 0.0;
+        int threshold1 = 0;
+        int threshold2 = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            wB += histogram[i];
+            if (wB == 0) {
+                continue;
+            }
+
+            long wF = total - wB;
+            if (wF == 0) {
+                break;
+            }
+
+            sumB += i * histogram[i];
+            double mB = (double) sumB / wB;
+            double mF = (double) (sum - sumB) / wF;
+            double between = (double) wB * wF * Math.pow(mB - mF, 2);
+            if (between >= max) {
+                threshold1 = i;
+                if (between > max) {
+                    threshold2 = i;
+                }
+                max = between;
+            }
+        }
+        return (threshold1 + threshold2) / 2;
+    }
+
+    /**
+     * Binarises the image by its Otsu threshold. The histogram is counted by row bands in parallel, and 16 and 32-bit
+     * pixels are binned only once: their grey levels are stored while they are counted, so the thresholding pass reads
+     * a byte per pixel instead of binning the source pixels again. 8-bit pixels are the grey levels already, so they
+     * are read twice too, by the histogram and by the thresholding: the threshold depends on the histogram of the
+     * whole image, so the passes can't be fused into one.
+     */
+    static PackedBinaryImage binarise(GreyLevels greyLevels, RowBandScheduler scheduler) {
+        long pixels = (long) greyLevels.getWidth() * greyLevels.getHeight();
+        byte[] bytePixels = greyLevels.getBytePixels();
+        if (bytePixels != null) {
+            Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.THRESHOLD, pixels);
+            int threshold = getThreshold(greyLevels.getHistogram(scheduler, null), pixels);
+            Instrumentation.stop(span);
+            return PackedBinaryImage.threshold(bytePixels, greyLevels.getWidth(), greyLevels.getHeight(), threshold,
+                    scheduler);
+        }
+
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.THRESHOLD, pixels);
+        byte[] levels = BufferPool.shared().getBytes(greyLevels.getWidth() * greyLevels.getHeight());
+        int threshold = getThreshold(greyLevels.getHistogram(scheduler, levels), pixels);
+        Instrumentation.stop(span);
+        PackedBinaryImage binaryImage = PackedBinaryImage.threshold(levels, greyLevels.getWidth(),
+                greyLevels.getHeight(), threshold, scheduler);
+        BufferPool.shared().release(levels);
+        return binaryImage;
+    }
+}
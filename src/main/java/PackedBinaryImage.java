@@ -0,0 +1,267 @@
+import ij.ImagePlus;
+import ij.gui.NewImage;
+
+/**
+ * Binary image packed 64 pixels per long. Every row starts at a new word, pixel x of a row is bit (x % 64) of word
+ * (x / 64), so bit 0 is the leftmost pixel of a word. Bits beyond the image width are always zero, which lets the
+ * neighbourhood operations below treat them as black background.
+ */
+class PackedBinaryImage {
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    PackedBinaryImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        //all pixels are black
+        this.words = BufferPool.shared().getZeroedLongs(wordsPerRow * height);
+    }
+
+    /**
+     * Gives the pixels back to BufferPool, the image shouldn't be used afterwards. Images which are not released are
+     * simply garbage collected.
+     */
+    void release() {
+        BufferPool.shared().release(words);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    long[] getWords() {
+        return words;
+    }
+
+    boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * White pixels are the ones with grey level greater than or equal to the threshold, see {@link GreyLevels}
+     */
+    static PackedBinaryImage threshold(GreyLevels greyLevels, int threshold) {
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+        if (greyLevels.getBytePixels() != null) {
+            return threshold(greyLevels.getBytePixels(), width, height, threshold, new RowBandScheduler(1));
+        }
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.BINARISE, (long) width * height);
+        PackedBinaryImage binaryImage = new PackedBinaryImage(width, height);
+        long[] words = binaryImage.words;
+        int wordsPerRow = binaryImage.wordsPerRow;
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            int rowOffset = rowIndex * width;
+            for (int wordIndex = 0; wordIndex < wordsPerRow; wordIndex++) {
+                int firstColumn = wordIndex << 6;
+                int lastColumn = Math.min(width, firstColumn + 64);
+                long word = 0;
+                for (int columnIndex = firstColumn; columnIndex < lastColumn; columnIndex++) {
+                    if (greyLevels.get(rowOffset + columnIndex) >= threshold) {
+                        word |= 1L << columnIndex;
+                    }
+                }
+                words[rowIndex * wordsPerRow + wordIndex] = word;
+            }
+        }
+        Instrumentation.stop(span);
+
+        return binaryImage;
+    }
+
+    /**
+     * Same as threshold(GreyLevels, int) for grey levels stored one byte per pixel, row bands are thresholded in
+     * parallel by {@link PixelKernels}
+     */
+    static PackedBinaryImage threshold(byte[] levels, int width, int height, int threshold,
+                                       RowBandScheduler scheduler) {
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.BINARISE, (long) width * height);
+        PackedBinaryImage binaryImage = new PackedBinaryImage(width, height);
+        long[] words = binaryImage.words;
+        int wordsPerRow = binaryImage.wordsPerRow;
+
+        PixelKernels kernels = PixelKernels.get();
+        scheduler.process(height, (fromRow, toRow) -> {
+            for (int rowIndex = fromRow; rowIndex < toRow; rowIndex++) {
+                kernels.thresholdRow(levels, rowIndex * width, width, threshold, words, rowIndex * wordsPerRow);
+            }
+        });
+        Instrumentation.stop(span);
+
+        return binaryImage;
+    }
+
+    /**
+     * Maps every 2x2 window of this image to a 2x2 window of the result through a 16-entry table. Windows and their
+     * mappings are 4-bit masks, top left pixel being the most significant bit and bottom right pixel the least
+     * significant one. Mapped pixels of overlapping windows are combined with OR. The table is evaluated as a sum of
+     * minterms, so 64 windows are mapped at once.
+     */
+    PackedBinaryImage mapWindows(int[] lookupTable) {
+        PackedBinaryImage result = new PackedBinaryImage(width, height);
+        long[] resultWords = result.words;
+
+        for (int rowIndex = 0; rowIndex < height - 1; rowIndex++) {
+            int topRowOffset = rowIndex * wordsPerRow;
+            int bottomRowOffset = topRowOffset + wordsPerRow;
+
+            for (int wordIndex = 0; wordIndex < wordsPerRow; wordIndex++) {
+                long topLeft = words[topRowOffset + wordIndex];
+                long topRight = getNextPixels(topRowOffset, wordIndex);
+                long bottomLeft = words[bottomRowOffset + wordIndex];
+                long bottomRight = getNextPixels(bottomRowOffset, wordIndex);
+
+                long topLeftEdges = 0, topRightEdges = 0, bottomLeftEdges = 0, bottomRightEdges = 0;
+                for (int index = 0; index < lookupTable.length; index++) {
+                    int edges = lookupTable[index];
+                    if (edges == 0) {
+                        continue;
+                    }
+
+                    long windows = ((index & 8) != 0 ? topLeft : ~topLeft) &
+                            ((index & 4) != 0 ? topRight : ~topRight) &
+                            ((index & 2) != 0 ? bottomLeft : ~bottomLeft) &
+                            ((index & 1) != 0 ? bottomRight : ~bottomRight);
+
+                    if ((edges & 8) != 0) {
+                        topLeftEdges |= windows;
+                    }
+                    if ((edges & 4) != 0) {
+                        topRightEdges |= windows;
+                    }
+                    if ((edges & 2) != 0) {
+                        bottomLeftEdges |= windows;
+                    }
+                    if ((edges & 1) != 0) {
+                        bottomRightEdges |= windows;
+                    }
+                }
+
+                //the last column has no window of its own
+                long windowsMask = getPrefixMask(wordIndex, width - 1);
+                topLeftEdges &= windowsMask;
+                topRightEdges &= windowsMask;
+                bottomLeftEdges &= windowsMask;
+                bottomRightEdges &= windowsMask;
+
+                resultWords[topRowOffset + wordIndex] |= topLeftEdges | (topRightEdges << 1);
+                resultWords[bottomRowOffset + wordIndex] |= bottomLeftEdges | (bottomRightEdges << 1);
+                if (wordIndex + 1 < wordsPerRow) {
+                    resultWords[topRowOffset + wordIndex + 1] |= topRightEdges >>> 63;
+                    resultWords[bottomRowOffset + wordIndex + 1] |= bottomRightEdges >>> 63;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Turns off white pixels none of whose 8 neighbours is white
+     */
+    PackedBinaryImage removeIsolatedPixels() {
+        PackedBinaryImage result = new PackedBinaryImage(width, height);
+        long[] resultWords = result.words;
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            int rowOffset = rowIndex * wordsPerRow;
+            for (int wordIndex = 0; wordIndex < wordsPerRow; wordIndex++) {
+                long pixels = words[rowOffset + wordIndex];
+                if (pixels == 0) {
+                    continue;
+                }
+
+                long neighbours = getPreviousPixels(rowOffset, wordIndex) | getNextPixels(rowOffset, wordIndex);
+                if (rowIndex > 0) {
+                    int previousRowOffset = rowOffset - wordsPerRow;
+                    neighbours |= words[previousRowOffset + wordIndex] |
+                            getPreviousPixels(previousRowOffset, wordIndex) |
+                            getNextPixels(previousRowOffset, wordIndex);
+                }
+                if (rowIndex < height - 1) {
+                    int nextRowOffset = rowOffset + wordsPerRow;
+                    neighbours |= words[nextRowOffset + wordIndex] |
+                            getPreviousPixels(nextRowOffset, wordIndex) |
+                            getNextPixels(nextRowOffset, wordIndex);
+                }
+
+                resultWords[rowOffset + wordIndex] = pixels & neighbours;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return 8-bit image with white pixels set to 255 and black ones to 0
+     */
+    ImagePlus toImagePlus(String title) {
+        ImagePlus imagePlus = NewImage.createByteImage(title, width, height, 1, NewImage.FILL_BLACK);
+        byte[] pixels = (byte[]) imagePlus.getProcessor().getPixels();
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int wordIndex = 0; wordIndex < wordsPerRow; wordIndex++) {
+                long word = words[rowIndex * wordsPerRow + wordIndex];
+                while (word != 0) {
+                    int columnIndex = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                    pixels[rowIndex * width + columnIndex] = (byte) 255;
+                    word &= word - 1;
+                }
+            }
+        }
+
+        return imagePlus;
+    }
+
+    /**
+     * @return word whose bit x holds pixel x + 1 of the row
+     */
+    private long getNextPixels(int rowOffset, int wordIndex) {
+        long nextPixels = words[rowOffset + wordIndex] >>> 1;
+        if (wordIndex + 1 < wordsPerRow) {
+            nextPixels |= words[rowOffset + wordIndex + 1] << 63;
+        }
+        return nextPixels;
+    }
+
+    /**
+     * @return word whose bit x holds pixel x - 1 of the row
+     */
+    private long getPreviousPixels(int rowOffset, int wordIndex) {
+        long previousPixels = words[rowOffset + wordIndex] << 1;
+        if (wordIndex > 0) {
+            previousPixels |= words[rowOffset + wordIndex - 1] >>> 63;
+        }
+        return previousPixels;
+    }
+
+    /**
+     * @return mask of the bits of the word which belong to the first count pixels of a row
+     */
+    private static long getPrefixMask(int wordIndex, int count) {
+        int bits = count - (wordIndex << 6);
+        if (bits >= 64) {
+            return -1L;
+        }
+        if (bits <= 0) {
+            return 0L;
+        }
+        return (1L << bits) - 1;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Per-pixel hot loops of the plugins working on raw pixel arrays. This class holds their scalar versions, on Java 17
+ * and later with the jdk.incubator.vector module added, e.g. java --add-modules jdk.incubator.vector, get returns
+ * VectorPixelKernels, which processes as many pixels at once as the CPU's vector registers hold. Both give exactly the
+ * same results. -Dneuralfuzzy.vector=false keeps the scalar kernels.
+ */
+class PixelKernels {
+    private static final PixelKernels KERNELS = load();
+
+    static PixelKernels get() {
+        return KERNELS;
+    }
+
+    /**
+     * @return name of the kernels for logs and benchmarks, e.g. "scalar" or "vector 512 bits"
+     */
+    String getName() {
+        return "scalar";
+    }
+
+    /**
+     * @return false for the scalar kernels, callers which have faster scalar versions of a kernel, e.g. reusing
+     * intermediate results, call the kernel only when it's vectorized
+     */
+    boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Thresholds a row of grey levels stored one byte per pixel to a row of packed pixels, see
+     * {@link PackedBinaryImage}
+     * @param words wordsPerRow words of the row from wordOffset, all of them are overwritten
+     */
+    void thresholdRow(byte[] levels, int rowOffset, int width, int threshold, long[] words, int wordOffset) {
+        int wordsPerRow = (width + 63) >>> 6;
+        for (int wordIndex = 0; wordIndex < wordsPerRow; wordIndex++) {
+            int firstColumn = wordIndex << 6;
+            int lastColumn = Math.min(width, firstColumn + 64);
+            long word = 0;
+            for (int columnIndex = firstColumn; columnIndex < lastColumn; columnIndex++) {
+                if ((levels[rowOffset + columnIndex] & 0xff) >= threshold) {
+                    word |= 1L << columnIndex;
+                }
+            }
+            words[wordOffset + wordIndex] = word;
+        }
+    }
+
+    /**
+     * Classifies the pixels of a row by their squared distances to the classes' centers, see the Suliman plugin. The
+     * input vector of a pixel is computed from the grey levels of its 3x3 neighbourhood, neighbours beyond the left
+     * and right borders are replaced by the border pixels.
+     * @param previousRow grey levels of the row above, the row itself on the first row
+     * @param nextRow grey levels of the row below, the row itself on the last row
+     * @param squaredWeight pixels whose closest center is at this squared distance or farther are of class 0
+     */
+    void classifyRow(int[] previousRow, int[] row, int[] nextRow, int width, int[][] centersOfClasses,
+                     long squaredWeight, int[] classesRow) {
+        for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+            classifyPixel(previousRow, row, nextRow, width, centersOfClasses, squaredWeight, classesRow,
+                    columnIndex);
+        }
+    }
+
+    /**
+     * Maps every pixel through the lookup table, see the contrast plugin
+     */
+    void mapPixels(byte[] pixels, int[] lookupTable, byte[] mappedPixels) {
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            mappedPixels[pixelIndex] = (byte) lookupTable[pixels[pixelIndex] & 0xff];
+        }
+    }
+
+    /**
+     * Scalar classification of a single pixel, for the columns the vector kernels don't cover
+     */
+    static void classifyPixel(int[] previousRow, int[] row, int[] nextRow, int width, int[][] centersOfClasses,
+                              long squaredWeight, int[] classesRow, int columnIndex) {
+        int previousColumnIndex = Math.max(columnIndex - 1, 0);
+        int nextColumnIndex = Math.min(columnIndex + 1, width - 1);
+        int p5 = row[columnIndex];
+        int d1 = Math.abs(previousRow[previousColumnIndex] - p5) + Math.abs(nextRow[nextColumnIndex] - p5);
+        int d2 = Math.abs(previousRow[columnIndex] - p5) + Math.abs(nextRow[columnIndex] - p5);
+        int d3 = Math.abs(previousRow[nextColumnIndex] - p5) + Math.abs(nextRow[previousColumnIndex] - p5);
+        int d4 = Math.abs(row[previousColumnIndex] - p5) + Math.abs(row[nextColumnIndex] - p5);
+
+        int closestIndex = 0;
+        int closestSquaredDistance = Integer.MAX_VALUE;
+        for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length; centerOfClassesIndex++) {
+            int[] center = centersOfClasses[centerOfClassesIndex];
+            int difference1 = d1 - center[0];
+            int difference2 = d2 - center[1];
+            int difference3 = d3 - center[2];
+            int difference4 = d4 - center[3];
+            int squaredDistance = difference1 * difference1 + difference2 * difference2 +
+                    difference3 * difference3 + difference4 * difference4;
+            //the first of equally close centers wins
+            if (squaredDistance < closestSquaredDistance) {
+                closestIndex = centerOfClassesIndex;
+                closestSquaredDistance = squaredDistance;
+            }
+        }
+
+        classesRow[columnIndex] = closestSquaredDistance < squaredWeight ? closestIndex : 0;
+    }
+
+    /**
+     * The vector kernels are compiled by the vector profile of the build, which is active on Java 17 and later, and
+     * loaded by name, so that the plugins still load on Java 8 and without the incubator module
+     */
+    private static PixelKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("neuralfuzzy.vector", "true"))) {
+            return new PixelKernels();
+        }
+        try {
+            Class.forName("jdk.incubator.vector.ByteVector");
+            PixelKernels kernels = (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor()
+                    .newInstance();
+            return kernels.isSupported() ? kernels : new PixelKernels();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new PixelKernels();
+        }
+    }
+
+    /**
+     * @return false if the kernels wouldn't be faster than the scalar ones, e.g. without vector registers
+     */
+    boolean isSupported() {
+        return true;
+    }
+}
@@ -0,0 +1,302 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Command line entry point keeping the plugins resident behind an HTTP port on the loopback interface, so that a
+ * pipeline calling them for every image doesn't pay for starting a JVM, loading the classes, reading the network
+ * weights and compiling the hot loops every time, e.g.
+ * java -cp Neural_Fuzzy_Plugins.jar:ij.jar:... ProcessingServer port=8642
+ * curl --data-binary @frame.raw "http://localhost:8642/process?algorithm=suliman&width=512&height=512" -o edges.raw
+ *
+ * A request body is one or more raw 8-bit frames of the given size, row by row, and the response body is the 8-bit
+ * results in the same order. Parameters are the ones of BatchProcessor. Filters are created once per algorithm and
+ * parameters and shared by the requests.
+ *
+ * Requests are processed by a fixed pool of workers with a bounded queue. A request takes a slot of the workers or the
+ * queue before its body is read, one arriving when all the slots are taken is answered by 503 at once instead of
+ * waiting, so the callers see the backpressure and can retry later, and rejected bodies are never buffered. All frames
+ * of a request are processed by the same worker as one task, which batches small frames into a single call.
+ */
+public class ProcessingServer {
+    private static final String USAGE = "Usage: ProcessingServer [name=value ...]\n" +
+            "  port=8642 workers=<number of processors> queue=<4 * workers> connections=<2 * (workers + queue)>\n" +
+            "  warmup=50 iterations of every algorithm on a synthetic frame before the port is opened\n" +
+            "Requests: POST /process?algorithm=<ann|suliman|contrast>&width=<pixels>&height=<pixels>&frames=1" +
+            "[&name=value ...]\n" +
+            "          GET /stats for the stage timings of -Dneuralfuzzy.instrumentation=true\n" +
+            "          GET /cache for the hits and misses of the result cache, see cache=true";
+
+    /** created filters are dropped when there are more of them, e.g. for a client sweeping parameters **/
+    private static final int MAX_FILTERS = 64;
+    private static final int WARMUP_SIZE = 256;
+    /** frames of a request and their results are held in memory **/
+    private static final int MAX_BODY_BYTES = 1 << 28;
+
+    private final ConcurrentMap<String, SliceFilter> filters = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    /** slots of the requests being read, processed or waiting for a worker, see handleProcess **/
+    private final Semaphore slots;
+    private final ExecutorService connections;
+    private final HttpServer httpServer;
+
+    ProcessingServer(int port, int workers, int queueCapacity, int connections) throws IOException {
+        //the slots bound the queue
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.slots = new Semaphore(workers + Math.max(1, queueCapacity));
+        this.connections = Executors.newFixedThreadPool(connections);
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.setExecutor(this.connections);
+        httpServer.createContext("/process", this::handleProcess);
+        httpServer.createContext("/stats", this::handleStats);
+        httpServer.createContext("/cache", this::handleCache);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new HashMap<>();
+        for (String arg : args) {
+            String[] parameter = arg.split("=", 2);
+            if (parameter.length != 2) {
+                System.err.println("Parameter should be name=value: " + arg + "\n" + USAGE);
+                System.exit(1);
+            }
+            parameters.put(parameter[0], parameter[1]);
+        }
+
+        int port = Integer.parseInt(parameters.getOrDefault("port", "8642"));
+        int workers = Integer.parseInt(parameters.getOrDefault("workers",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int queueCapacity = Integer.parseInt(parameters.getOrDefault("queue", String.valueOf(4 * workers)));
+        int connections = Integer.parseInt(parameters.getOrDefault("connections",
+                String.valueOf(2 * (workers + queueCapacity))));
+        int warmupIterations = Integer.parseInt(parameters.getOrDefault("warmup", "50"));
+
+        ProcessingServer server = new ProcessingServer(port, Math.max(1, workers), queueCapacity,
+                Math.max(1, connections));
+        long startTime = System.nanoTime();
+        server.warmUp(warmupIterations);
+        System.out.println(String.format("Warmed up in %.2f s", (System.nanoTime() - startTime) / 1000000000.0));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "ProcessingServer shutdown"));
+        server.start();
+        System.out.println("Listening on http://" + server.httpServer.getAddress().getHostString() + ":" +
+                server.httpServer.getAddress().getPort());
+    }
+
+    void start() {
+        httpServer.start();
+    }
+
+    void stop() {
+        httpServer.stop(1);
+        workers.shutdown();
+        connections.shutdown();
+    }
+
+    int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Creates the filters of every algorithm with the default parameters and runs them, so that the network weights
+     * are read and the hot loops are compiled before the first request
+     */
+    void warmUp(int iterations) {
+        if (iterations <= 0) {
+            return;
+        }
+        ByteProcessor frame = new ByteProcessor(WARMUP_SIZE, WARMUP_SIZE);
+        byte[] pixels = (byte[]) frame.getPixels();
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            int x = pixelIndex % WARMUP_SIZE, y = pixelIndex / WARMUP_SIZE;
+            //a bright disk on a gradient, so that every class and edge case of the filters occurs
+            int dx = x - WARMUP_SIZE / 2, dy = y - WARMUP_SIZE / 2;
+            pixels[pixelIndex] = (byte) (dx * dx + dy * dy < WARMUP_SIZE * WARMUP_SIZE / 16 ? 220 : x / 2 + y / 4);
+        }
+        for (String algorithm : new String[]{"ann", "suliman", "contrast"}) {
+            SliceFilter filter = getFilter(algorithm, new HashMap<>());
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                filter.process(frame);
+            }
+        }
+    }
+
+    private void handleProcess(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST\n" + USAGE);
+                return;
+            }
+
+            Map<String, String> parameters = getQueryParameters(exchange.getRequestURI().getRawQuery());
+            String algorithm = parameters.remove("algorithm");
+            int width = Integer.parseInt(getRequired(parameters, "width"));
+            int height = Integer.parseInt(getRequired(parameters, "height"));
+            int frames = Integer.parseInt(parameters.getOrDefault("frames", "1"));
+            parameters.remove("frames");
+            if (algorithm == null || width <= 0 || height <= 0 || frames <= 0) {
+                throw new IllegalArgumentException("algorithm, width, height and frames are required and should " +
+                        "be positive");
+            }
+            if ((long) width * height * frames > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Requests are limited to " + MAX_BODY_BYTES + " bytes of frames");
+            }
+
+            if (!slots.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "Queue is full, retry later");
+                return;
+            }
+            byte[] resultBytes;
+            try {
+                byte[] frameBytes = readBody(exchange.getRequestBody(), width * height * frames);
+                SliceFilter filter = getFilter(algorithm, parameters);
+                Future<byte[]> result = workers.submit(() -> process(filter, frameBytes, width, height, frames));
+                resultBytes = result.get();
+            } finally {
+                slots.release();
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, resultBytes.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(resultBytes);
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n" + USAGE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Server is stopping");
+        } catch (ExecutionException e) {
+            respond(exchange, 500, e.getCause().toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        respondJson(exchange, Instrumentation.getSummary());
+    }
+
+    private void handleCache(HttpExchange exchange) throws IOException {
+        respondJson(exchange, ResultCache.shared().getStatistics());
+    }
+
+    /**
+     * Runs on a worker, frames are processed one after another
+     */
+    private static byte[] process(SliceFilter filter, byte[] frameBytes, int width, int height,
+                                  int frames) {
+        int framePixels = width * height;
+        byte[] resultBytes = new byte[framePixels * frames];
+        for (int frameIndex = 0; frameIndex < frames; frameIndex++) {
+            byte[] pixels = new byte[framePixels];
+            System.arraycopy(frameBytes, frameIndex * framePixels, pixels, 0, framePixels);
+            ImageProcessor result = filter.process(new ByteProcessor(width, height, pixels));
+            if (result.getBitDepth() != 8) {
+                result = result.convertToByte(true);
+            }
+            System.arraycopy((byte[]) result.getPixels(), 0, resultBytes, frameIndex * framePixels, framePixels);
+        }
+        return resultBytes;
+    }
+
+    /**
+     * @return filter of the algorithm with the parameters, created by BatchProcessor.getFilter on first use
+     */
+    private SliceFilter getFilter(String algorithm, Map<String, String> parameters) {
+        String key = algorithm + " " + new TreeMap<>(parameters);
+        SliceFilter filter = filters.get(key);
+        if (filter != null) {
+            return filter;
+        }
+        if (filters.size() >= MAX_FILTERS) {
+            filters.clear();
+        }
+        return filters.computeIfAbsent(key, filterKey -> BatchProcessor.getFilter(algorithm, parameters));
+    }
+
+    private static String getRequired(Map<String, String> parameters, String name) {
+        String value = parameters.remove(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> getQueryParameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            String[] nameAndValue = parameter.split("=", 2);
+            if (nameAndValue.length != 2) {
+                throw new IllegalArgumentException("Parameter should be name=value: " + parameter);
+            }
+            parameters.put(URLDecoder.decode(nameAndValue[0], "UTF-8"), URLDecoder.decode(nameAndValue[1], "UTF-8"));
+        }
+        return parameters;
+    }
+
+    /**
+     * @return body of exactly length bytes
+     */
+    private static byte[] readBody(InputStream requestBody, int length) throws IOException {
+        byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = requestBody.read(body, offset, length - offset);
+            if (read < 0) {
+                throw new IllegalArgumentException("Body should be width * height * frames bytes, got " + offset);
+            }
+            offset += read;
+        }
+        if (requestBody.read() >= 0) {
+            throw new IllegalArgumentException("Body should be width * height * frames bytes, got more");
+        }
+        return body;
+    }
+
+    private static void respondJson(HttpExchange exchange, String json) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Coarse-to-fine edge detection, which filters at full resolution only the tiles of an image that may contain edges.
+ * The grey levels are downsampled to the minimum and the maximum of every BLOCK_SIZE x BLOCK_SIZE block first, the
+ * contrast of a block is the difference between the maximum and the minimum of its 3x3 block neighbourhood, and a tile
+ * is filtered with its halo, see TiledFilter, when a block touching the tile or its halo reaches the contrast setting.
+ * The other tiles are left black, which is the background of the edge detection plugins.
+ *
+ * Weak edges may be below the contrast setting, so the recall, the share of the full resolution result's edge pixels
+ * inside the filtered tiles, is estimated from a sample of the skipped tiles filtered as well. When the estimate of an
+ * image is below the minimum recall, the rest of its skipped tiles are filtered too and its result is the full
+ * resolution one. The totals of the processed images are kept for getStatistics.
+ */
+final class PyramidProcessor {
+    /** side of the tiles which are either filtered or skipped **/
+    static final int TILE_SIZE = 64;
+    /** side of the blocks the grey levels are downsampled by **/
+    static final int BLOCK_SIZE = 4;
+
+    private final int contrast;
+    private final double recallSample;
+    private final double minimumRecall;
+
+    /** totals of the processed images **/
+    private long images;
+    private long tiles;
+    private long filteredTiles;
+    private long sampledTiles;
+    private long completedImages;
+    /** edge pixels inside the tiles selected by the contrast and estimated edge pixels of the whole images **/
+    private long selectedEdgePixels;
+    private double estimatedEdgePixels;
+
+    /**
+     * @param contrast grey level contrast of a 3x3 block neighbourhood from 0 to 255 tiles are filtered from
+     * @param recallSample share of the skipped tiles filtered to estimate the recall, from 0, which doesn't check the
+     *                     recall, to 1, which gives the exact recall of the selected tiles
+     * @param minimumRecall estimated recall below which all the tiles of an image are filtered, 0 never does it
+     */
+    PyramidProcessor(int contrast, double recallSample, double minimumRecall) {
+        if (contrast < 0 || contrast > GreyLevels.LEVELS - 1) {
+            throw new IllegalArgumentException("Pyramid contrast should be from 0 to 255: " + contrast);
+        }
+        if (!(recallSample >= 0 && recallSample <= 1)) {
+            throw new IllegalArgumentException("Recall sample should be from 0 to 1: " + recallSample);
+        }
+        if (!(minimumRecall >= 0 && minimumRecall <= 1)) {
+            throw new IllegalArgumentException("Minimum recall should be from 0 to 1: " + minimumRecall);
+        }
+        this.contrast = contrast;
+        this.recallSample = recallSample;
+        this.minimumRecall = minimumRecall;
+    }
+
+    /**
+     * @return settings the results depend on, for the keys of ResultCache
+     */
+    String getKey() {
+        return String.format(Locale.ROOT, "pyramid contrast %d sample %s recall %s", contrast, recallSample,
+                minimumRecall);
+    }
+
+    /**
+     * @param range range of the image the grey levels are binned in, see GreyLevels.getRange
+     * @param filter filter of the tiles giving 8-bit results, black where there are no edges
+     * @return 8-bit image of the edges
+     */
+    ImageProcessor process(ImageProcessor source, double[] range, TiledFilter filter, int threads) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        Instrumentation.Span span = Instrumentation.start(Instrumentation.Stage.PYRAMID, (long) width * height);
+        boolean[] selected = getSelectedTiles(GreyLevels.of(source, range), filter.getHalo(), tileColumns, tileRows);
+        Instrumentation.stop(span);
+
+        //skipped tiles are sampled evenly, every samplingInterval-th of them
+        int samplingInterval = recallSample > 0 ? (int) Math.max(1, Math.round(1 / recallSample)) : 0;
+        List<Rectangle> selectedTiles = new ArrayList<>();
+        List<Rectangle> sampleTiles = new ArrayList<>();
+        List<Rectangle> remainingTiles = new ArrayList<>();
+        for (int tileIndex = 0; tileIndex < selected.length; tileIndex++) {
+            int x = (tileIndex % tileColumns) * TILE_SIZE;
+            int y = (tileIndex / tileColumns) * TILE_SIZE;
+            Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+            if (selected[tileIndex]) {
+                selectedTiles.add(tile);
+            } else if (samplingInterval > 0 && (sampleTiles.size() + remainingTiles.size()) % samplingInterval == 0) {
+                sampleTiles.add(tile);
+            } else {
+                remainingTiles.add(tile);
+            }
+        }
+
+        ImageProcessor result = new ByteProcessor(width, height);
+        List<Rectangle> filteredTiles = new ArrayList<>(selectedTiles);
+        filteredTiles.addAll(sampleTiles);
+        long[] edgePixels = filter(source, filter, filteredTiles, result, threads);
+        long selectedEdgePixels = 0;
+        long sampleEdgePixels = 0;
+        for (int tileIndex = 0; tileIndex < edgePixels.length; tileIndex++) {
+            if (tileIndex < selectedTiles.size()) {
+                selectedEdgePixels += edgePixels[tileIndex];
+            } else {
+                sampleEdgePixels += edgePixels[tileIndex];
+            }
+        }
+
+        //edge pixels of the sample stand for the ones of all the skipped tiles
+        double estimatedEdgePixels = Double.NaN;
+        boolean completed = false;
+        if (!sampleTiles.isEmpty()) {
+            estimatedEdgePixels = selectedEdgePixels + (double) sampleEdgePixels *
+                    (sampleTiles.size() + remainingTiles.size()) / sampleTiles.size();
+            if (getRecall(selectedEdgePixels, estimatedEdgePixels) < minimumRecall && !remainingTiles.isEmpty()) {
+                filter(source, filter, remainingTiles, result, threads);
+                filteredTiles.addAll(remainingTiles);
+                completed = true;
+            }
+        }
+
+        synchronized (this) {
+            images++;
+            tiles += selected.length;
+            this.filteredTiles += filteredTiles.size();
+            sampledTiles += sampleTiles.size();
+            if (completed) {
+                completedImages++;
+            }
+            if (!Double.isNaN(estimatedEdgePixels)) {
+                this.selectedEdgePixels += selectedEdgePixels;
+                this.estimatedEdgePixels += estimatedEdgePixels;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return totals of the processed images as JSON, the recall is null without a sample of skipped tiles
+     */
+    synchronized String getStatistics() {
+        double recall = getRecall(selectedEdgePixels, estimatedEdgePixels);
+        return String.format(Locale.ROOT, "{\"images\":%d,\"tiles\":%d,\"filteredTiles\":%d,\"sampledTiles\":%d," +
+                        "\"estimatedRecall\":%s,\"completedImages\":%d}", images, tiles, filteredTiles, sampledTiles,
+                sampledTiles > 0 ? String.format(Locale.ROOT, "%.4f", recall) : "null", completedImages);
+    }
+
+    /**
+     * @return whether each tile, row by row, has a block of at least the contrast setting touching it or its halo
+     */
+    private boolean[] getSelectedTiles(GreyLevels levels, int halo, int tileColumns, int tileRows) {
+        int width = levels.getWidth();
+        int height = levels.getHeight();
+        int blockColumns = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int blockRows = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        int[] minimums = new int[blockColumns * blockRows];
+        int[] maximums = new int[blockColumns * blockRows];
+        Arrays.fill(minimums, GreyLevels.LEVELS - 1);
+        int[] rowLevels = new int[width];
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            levels.getRow(rowIndex, rowLevels);
+            int blockOffset = (rowIndex / BLOCK_SIZE) * blockColumns;
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                int blockIndex = blockOffset + columnIndex / BLOCK_SIZE;
+                int level = rowLevels[columnIndex];
+                if (level < minimums[blockIndex]) {
+                    minimums[blockIndex] = level;
+                }
+                if (level > maximums[blockIndex]) {
+                    maximums[blockIndex] = level;
+                }
+            }
+        }
+
+        boolean[] contrasted = new boolean[blockColumns * blockRows];
+        for (int blockRowIndex = 0; blockRowIndex < blockRows; blockRowIndex++) {
+            for (int blockColumnIndex = 0; blockColumnIndex < blockColumns; blockColumnIndex++) {
+                int minimum = GreyLevels.LEVELS - 1;
+                int maximum = 0;
+                for (int neighbourRowIndex = Math.max(0, blockRowIndex - 1);
+                     neighbourRowIndex <= Math.min(blockRows - 1, blockRowIndex + 1); neighbourRowIndex++) {
+                    for (int neighbourColumnIndex = Math.max(0, blockColumnIndex - 1);
+                         neighbourColumnIndex <= Math.min(blockColumns - 1, blockColumnIndex + 1);
+                         neighbourColumnIndex++) {
+                        minimum = Math.min(minimum, minimums[neighbourRowIndex * blockColumns + neighbourColumnIndex]);
+                        maximum = Math.max(maximum, maximums[neighbourRowIndex * blockColumns + neighbourColumnIndex]);
+                    }
+                }
+                contrasted[blockRowIndex * blockColumns + blockColumnIndex] = maximum - minimum >= contrast;
+            }
+        }
+
+        boolean[] selected = new boolean[tileColumns * tileRows];
+        for (int tileIndex = 0; tileIndex < selected.length; tileIndex++) {
+            int x = (tileIndex % tileColumns) * TILE_SIZE;
+            int y = (tileIndex / tileColumns) * TILE_SIZE;
+            int fromBlockColumn = Math.max(0, x - halo) / BLOCK_SIZE;
+            int toBlockColumn = Math.min(width - 1, x + TILE_SIZE - 1 + halo) / BLOCK_SIZE;
+            int fromBlockRow = Math.max(0, y - halo) / BLOCK_SIZE;
+            int toBlockRow = Math.min(height - 1, y + TILE_SIZE - 1 + halo) / BLOCK_SIZE;
+            for (int blockRowIndex = fromBlockRow; blockRowIndex <= toBlockRow && !selected[tileIndex];
+                 blockRowIndex++) {
+                for (int blockColumnIndex = fromBlockColumn; blockColumnIndex <= toBlockColumn; blockColumnIndex++) {
+                    if (contrasted[blockRowIndex * blockColumns + blockColumnIndex]) {
+                        selected[tileIndex] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Filters the tiles with their halos in parallel and copies the results to the same places of the result
+     * @return edge pixels of every tile
+     */
+    private static long[] filter(ImageProcessor source, TiledFilter filter, List<Rectangle> tiles,
+                                 ImageProcessor result, int threads) {
+        Rectangle bounds = new Rectangle(source.getWidth(), source.getHeight());
+        long[] edgePixels = new long[tiles.size()];
+        new RowBandScheduler(threads).processEach(tiles.size(), tileIndex -> {
+            Rectangle tile = tiles.get(tileIndex);
+            Rectangle haloTile = new Rectangle(tile.x - filter.getHalo(), tile.y - filter.getHalo(),
+                    tile.width + 2 * filter.getHalo(), tile.height + 2 * filter.getHalo()).intersection(bounds);
+            ImageProcessor tileResult = filter.process(RegionProcessor.crop(source, haloTile));
+            RegionProcessor.copy(tileResult, tile.x - haloTile.x, tile.y - haloTile.y, result, tile, bounds, null);
+            edgePixels[tileIndex] = getEdgePixels(result, tile);
+        });
+        return edgePixels;
+    }
+
+    private static long getEdgePixels(ImageProcessor imageProcessor, Rectangle tile) {
+        byte[] pixels = (byte[]) imageProcessor.getPixels();
+        long edgePixels = 0;
+        for (int rowIndex = tile.y; rowIndex < tile.y + tile.height; rowIndex++) {
+            for (int pixelIndex = rowIndex * imageProcessor.getWidth() + tile.x;
+                 pixelIndex < rowIndex * imageProcessor.getWidth() + tile.x + tile.width; pixelIndex++) {
+                if (pixels[pixelIndex] != 0) {
+                    edgePixels++;
+                }
+            }
+        }
+        return edgePixels;
+    }
+
+    /**
+     * @return share of the edge pixels inside the selected tiles, 1 if there are no edges at all
+     */
+    private static double getRecall(long selectedEdgePixels, double estimatedEdgePixels) {
+        return estimatedEdgePixels > 0 ? selectedEdgePixels / estimatedEdgePixels : 1;
+    }
+}
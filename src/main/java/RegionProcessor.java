@@ -0,0 +1,310 @@
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a tiled filter over the region of interest of an in-memory image only. The bounding rectangle of the ROI is
+ * split into tiles, every tile is filtered with its halo, see TiledFilter, and the pixels of the results inside the ROI
+ * are written over a background image, e.g. a black one or a copy of the source.
+ *
+ * Given the result of a previous run of a filter with the same key over the same ROI, e.g. of the same slice before it
+ * was edited or of the previous slice of a time-lapse stack, the tiles whose source pixels, halo included, hash the
+ * same as before are copied from the previous result and only the changed ones are filtered. Incremental runs keep
+ * their results by slice for the next run, they are retained up to an eighth of the max heap, the least recently used
+ * ones are dropped first.
+ */
+final class RegionProcessor {
+    /** side of the tiles the ROI is split into **/
+    static final int TILE_SIZE = 256;
+
+    private static final long MAX_RETAINED_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Result of a run with the hashes of its tiles
+     */
+    static final class Result {
+        private final String filterKey;
+        private final Rectangle region;
+        /** null for rectangular ROIs **/
+        private final byte[] maskPixels;
+        private final ImageProcessor imageProcessor;
+        private final long[] tileHashes;
+        private final int reusedTiles;
+
+        private Result(String filterKey, Rectangle region, byte[] maskPixels, ImageProcessor imageProcessor,
+                       long[] tileHashes, int reusedTiles) {
+            this.filterKey = filterKey;
+            this.region = region;
+            this.maskPixels = maskPixels;
+            this.imageProcessor = imageProcessor;
+            this.tileHashes = tileHashes;
+            this.reusedTiles = reusedTiles;
+        }
+
+        ImageProcessor getImageProcessor() {
+            return imageProcessor;
+        }
+
+        int getTiles() {
+            return tileHashes.length;
+        }
+
+        /**
+         * @return number of tiles copied from the previous result
+         */
+        int getReusedTiles() {
+            return reusedTiles;
+        }
+
+        boolean matches(String filterKey, Rectangle region, byte[] maskPixels, ImageProcessor background) {
+            return this.filterKey.equals(filterKey) && this.region.equals(region) &&
+                    Arrays.equals(this.maskPixels, maskPixels) &&
+                    imageProcessor.getWidth() == background.getWidth() &&
+                    imageProcessor.getHeight() == background.getHeight() &&
+                    imageProcessor.getBitDepth() == background.getBitDepth();
+        }
+
+        long getBytes() {
+            return (long) imageProcessor.getPixelCount() * (imageProcessor.getBitDepth() / 8) +
+                    (maskPixels != null ? maskPixels.length : 0) + 8L * tileHashes.length;
+        }
+    }
+
+    /** results of the last incremental runs by slice, the least recently used first **/
+    private static final LinkedHashMap<String, Result> PREVIOUS_RESULTS = new LinkedHashMap<>(16, 0.75f, true);
+    private static long retainedBytes;
+
+    private RegionProcessor() {
+    }
+
+    /**
+     * @return whether only a part of the image is selected, see ImageProcessor.getRoi and getMask
+     */
+    static boolean hasRegion(ImageProcessor imageProcessor) {
+        Rectangle region = imageProcessor.getRoi();
+        return region.width < imageProcessor.getWidth() || region.height < imageProcessor.getHeight() ||
+                imageProcessor.getMask() != null;
+    }
+
+    /**
+     * @return key the previous incremental result of a plugin on a slice is kept by
+     */
+    static String getIncrementalKey(Object plugin, ImagePlus imagePlus, int sliceNumber) {
+        return plugin.getClass().getName() + " " + imagePlus.getID() + " " + sliceNumber;
+    }
+
+    /**
+     * @param background image of the source's size and the filter's bit depth the results inside the ROI are written
+     *                   to, it's returned as the result
+     * @param incrementalKey key the previous result of the slice is kept by, see getIncrementalKey, null to filter
+     *                       all the tiles
+     */
+    static ImageProcessor process(ImageProcessor source, TiledFilter filter, ImageProcessor background, int threads,
+                                  String incrementalKey) {
+        Result result = processReusing(source, filter, background, threads,
+                incrementalKey != null ? getPreviousResult(incrementalKey) : null);
+        if (incrementalKey != null) {
+            //the result may be changed by the user once it's shown
+            putPreviousResult(incrementalKey, new Result(result.filterKey, result.region, result.maskPixels,
+                    result.imageProcessor.duplicate(), result.tileHashes, result.reusedTiles));
+        }
+        return result.getImageProcessor();
+    }
+
+    /**
+     * @param previousResult result of another image of the same size, e.g. of the previous slice of a stack, whose
+     *                       tiles are reused if it was filtered by a filter with the same key over the same ROI, null
+     *                       to filter all the tiles
+     */
+    static Result processReusing(ImageProcessor source, TiledFilter filter, ImageProcessor background, int threads,
+                                 Result previousResult) {
+        Rectangle region = source.getRoi();
+        ImageProcessor mask = source.getMask();
+        byte[] maskPixels = mask != null ? ((byte[]) mask.getPixels()).clone() : null;
+        Rectangle bounds = new Rectangle(source.getWidth(), source.getHeight());
+
+        if (previousResult != null && !previousResult.matches(filter.getKey(), region, maskPixels, background)) {
+            previousResult = null;
+        }
+        AtomicInteger reusedTiles = new AtomicInteger();
+
+        int tileColumns = (region.width + TILE_SIZE - 1) / TILE_SIZE;
+        int tileRows = (region.height + TILE_SIZE - 1) / TILE_SIZE;
+        long[] tileHashes = new long[tileColumns * tileRows];
+        Result previous = previousResult;
+        new RowBandScheduler(threads).processEach(tileHashes.length, tileIndex -> {
+            int x = region.x + (tileIndex % tileColumns) * TILE_SIZE;
+            int y = region.y + (tileIndex / tileColumns) * TILE_SIZE;
+            Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, region.x + region.width - x),
+                    Math.min(TILE_SIZE, region.y + region.height - y));
+            Rectangle haloTile = new Rectangle(tile.x - filter.getHalo(), tile.y - filter.getHalo(),
+                    tile.width + 2 * filter.getHalo(), tile.height + 2 * filter.getHalo()).intersection(bounds);
+
+            tileHashes[tileIndex] = getHash(source, haloTile);
+            if (previous != null && previous.tileHashes[tileIndex] == tileHashes[tileIndex]) {
+                copy(previous.imageProcessor, tile.x, tile.y, background, tile, region, maskPixels);
+                reusedTiles.incrementAndGet();
+            } else {
+                ImageProcessor result = filter.process(crop(source, haloTile));
+                copy(result, tile.x - haloTile.x, tile.y - haloTile.y, background, tile, region, maskPixels);
+            }
+        });
+
+        return new Result(filter.getKey(), region, maskPixels, background, tileHashes, reusedTiles.get());
+    }
+
+    /**
+     * @return copy of the part of the image, it's not cropped through the image's ROI since tiles are cropped by
+     * several threads at once
+     */
+    static ImageProcessor crop(ImageProcessor imageProcessor, Rectangle rectangle) {
+        ImageProcessor cropped = imageProcessor.createProcessor(rectangle.width, rectangle.height);
+        Object pixels = imageProcessor.getPixels();
+        Object croppedPixels = cropped.getPixels();
+        for (int rowIndex = 0; rowIndex < rectangle.height; rowIndex++) {
+            System.arraycopy(pixels, (rectangle.y + rowIndex) * imageProcessor.getWidth() + rectangle.x,
+                    croppedPixels, rowIndex * rectangle.width, rectangle.width);
+        }
+        return cropped;
+    }
+
+    /**
+     * Copies the pixels of the tile inside the ROI from the image, in which the tile starts at fromX, fromY, to the
+     * same place of the target image
+     */
+    static void copy(ImageProcessor from, int fromX, int fromY, ImageProcessor to, Rectangle tile,
+                     Rectangle region, byte[] maskPixels) {
+        Object fromPixels = from.getPixels();
+        Object toPixels = to.getPixels();
+        for (int rowIndex = 0; rowIndex < tile.height; rowIndex++) {
+            int fromOffset = (fromY + rowIndex) * from.getWidth() + fromX;
+            int toOffset = (tile.y + rowIndex) * to.getWidth() + tile.x;
+            if (maskPixels == null) {
+                System.arraycopy(fromPixels, fromOffset, toPixels, toOffset, tile.width);
+                continue;
+            }
+
+            //runs of the row inside the mask are copied at once
+            int maskOffset = (tile.y + rowIndex - region.y) * region.width + tile.x - region.x;
+            int columnIndex = 0;
+            while (columnIndex < tile.width) {
+                if (maskPixels[maskOffset + columnIndex] == 0) {
+                    columnIndex++;
+                    continue;
+                }
+                int runStart = columnIndex;
+                while (columnIndex < tile.width && maskPixels[maskOffset + columnIndex] != 0) {
+                    columnIndex++;
+                }
+                System.arraycopy(fromPixels, fromOffset + runStart, toPixels, toOffset + runStart,
+                        columnIndex - runStart);
+            }
+        }
+    }
+
+    /**
+     * @return 64-bit hash of the pixel values of the part of the image. Every row is hashed by FNV-1a in 4 lanes of
+     * interleaved pixels, which don't wait for each other's multiplications, and the lanes are combined at the end.
+     */
+    static long getHash(ImageProcessor imageProcessor, Rectangle rectangle) {
+        Object pixels = imageProcessor.getPixels();
+        int width = imageProcessor.getWidth();
+        long[] lanes = {FNV_OFFSET_BASIS, FNV_OFFSET_BASIS + 1, FNV_OFFSET_BASIS + 2, FNV_OFFSET_BASIS + 3};
+        for (int rowIndex = rectangle.y; rowIndex < rectangle.y + rectangle.height; rowIndex++) {
+            int fromIndex = rowIndex * width + rectangle.x;
+            int toIndex = fromIndex + rectangle.width;
+            if (pixels instanceof byte[]) {
+                hashRow((byte[]) pixels, fromIndex, toIndex, lanes);
+            } else if (pixels instanceof short[]) {
+                hashRow((short[]) pixels, fromIndex, toIndex, lanes);
+            } else {
+                hashRow((float[]) pixels, fromIndex, toIndex, lanes);
+            }
+        }
+        return (((lanes[0] * FNV_PRIME ^ lanes[1]) * FNV_PRIME ^ lanes[2]) * FNV_PRIME ^ lanes[3]) * FNV_PRIME;
+    }
+
+    private static void hashRow(byte[] pixels, int fromIndex, int toIndex, long[] lanes) {
+        long lane0 = lanes[0], lane1 = lanes[1], lane2 = lanes[2], lane3 = lanes[3];
+        int pixelIndex = fromIndex;
+        for (; pixelIndex + 3 < toIndex; pixelIndex += 4) {
+            lane0 = (lane0 ^ pixels[pixelIndex]) * FNV_PRIME;
+            lane1 = (lane1 ^ pixels[pixelIndex + 1]) * FNV_PRIME;
+            lane2 = (lane2 ^ pixels[pixelIndex + 2]) * FNV_PRIME;
+            lane3 = (lane3 ^ pixels[pixelIndex + 3]) * FNV_PRIME;
+        }
+        for (; pixelIndex < toIndex; pixelIndex++) {
+            lane0 = (lane0 ^ pixels[pixelIndex]) * FNV_PRIME;
+        }
+        lanes[0] = lane0;
+        lanes[1] = lane1;
+        lanes[2] = lane2;
+        lanes[3] = lane3;
+    }
+
+    private static void hashRow(short[] pixels, int fromIndex, int toIndex, long[] lanes) {
+        long lane0 = lanes[0], lane1 = lanes[1], lane2 = lanes[2], lane3 = lanes[3];
+        int pixelIndex = fromIndex;
+        for (; pixelIndex + 3 < toIndex; pixelIndex += 4) {
+            lane0 = (lane0 ^ pixels[pixelIndex]) * FNV_PRIME;
+            lane1 = (lane1 ^ pixels[pixelIndex + 1]) * FNV_PRIME;
+            lane2 = (lane2 ^ pixels[pixelIndex + 2]) * FNV_PRIME;
+            lane3 = (lane3 ^ pixels[pixelIndex + 3]) * FNV_PRIME;
+        }
+        for (; pixelIndex < toIndex; pixelIndex++) {
+            lane0 = (lane0 ^ pixels[pixelIndex]) * FNV_PRIME;
+        }
+        lanes[0] = lane0;
+        lanes[1] = lane1;
+        lanes[2] = lane2;
+        lanes[3] = lane3;
+    }
+
+    private static void hashRow(float[] pixels, int fromIndex, int toIndex, long[] lanes) {
+        long lane0 = lanes[0], lane1 = lanes[1], lane2 = lanes[2], lane3 = lanes[3];
+        int pixelIndex = fromIndex;
+        for (; pixelIndex + 3 < toIndex; pixelIndex += 4) {
+            lane0 = (lane0 ^ Float.floatToRawIntBits(pixels[pixelIndex])) * FNV_PRIME;
+            lane1 = (lane1 ^ Float.floatToRawIntBits(pixels[pixelIndex + 1])) * FNV_PRIME;
+            lane2 = (lane2 ^ Float.floatToRawIntBits(pixels[pixelIndex + 2])) * FNV_PRIME;
+            lane3 = (lane3 ^ Float.floatToRawIntBits(pixels[pixelIndex + 3])) * FNV_PRIME;
+        }
+        for (; pixelIndex < toIndex; pixelIndex++) {
+            lane0 = (lane0 ^ Float.floatToRawIntBits(pixels[pixelIndex])) * FNV_PRIME;
+        }
+        lanes[0] = lane0;
+        lanes[1] = lane1;
+        lanes[2] = lane2;
+        lanes[3] = lane3;
+    }
+
+    private static synchronized Result getPreviousResult(String incrementalKey) {
+        return PREVIOUS_RESULTS.get(incrementalKey);
+    }
+
+    private static synchronized void putPreviousResult(String incrementalKey, Result previousResult) {
+        Result replaced = PREVIOUS_RESULTS.remove(incrementalKey);
+        if (replaced != null) {
+            retainedBytes -= replaced.getBytes();
+        }
+        long bytes = previousResult.getBytes();
+        if (bytes > MAX_RETAINED_BYTES) {
+            return;
+        }
+
+        Iterator<Result> iterator = PREVIOUS_RESULTS.values().iterator();
+        while (retainedBytes + bytes > MAX_RETAINED_BYTES && iterator.hasNext()) {
+            retainedBytes -= iterator.next().getBytes();
+            iterator.remove();
+        }
+        PREVIOUS_RESULTS.put(incrementalKey, previousResult);
+        retainedBytes += bytes;
+    }
+}
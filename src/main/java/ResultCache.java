@@ -0,0 +1,357 @@
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cache of the results of whole images keyed by the hash of the source pixels, their size and bit depth, and the
+ * algorithm key, i.e. the algorithm, its parameters and the network weights checksum, so that running the same
+ * settings on the same image again returns the stored result instead of recomputing it.
+ *
+ * Results are looked up in memory first, the least recently used ones are dropped when the retained bytes exceed
+ * the memory limit. Results are also written compressed to the cache directory, where they are looked up next and
+ * survive restarts, the least recently used files are deleted when the directory exceeds the disk limit. A file keeps
+ * its full key and is used only when it matches, so colliding file names are just misses.
+ *
+ * Configured by system properties: -Dneuralfuzzy.cache=true turns the cache on for BatchProcessor and as the default
+ * of the plugins' dialogs, neuralfuzzy.cache.memory is the memory limit in bytes, an eighth of the max heap by
+ * default, neuralfuzzy.cache.dir is the directory, ~/.neuralfuzzy-cache by default, and neuralfuzzy.cache.disk is the
+ * disk limit in bytes, 1 GiB by default, 0 turns the disk level off.
+ */
+final class ResultCache {
+    private static final ResultCache SHARED = new ResultCache(
+            Long.getLong("neuralfuzzy.cache.memory", Runtime.getRuntime().maxMemory() / 8),
+            Paths.get(System.getProperty("neuralfuzzy.cache.dir",
+                    Paths.get(System.getProperty("user.home"), ".neuralfuzzy-cache").toString())),
+            Long.getLong("neuralfuzzy.cache.disk", 1L << 30));
+
+    private static final int FILE_MAGIC = 0x4e464331;
+    private static final String FILE_EXTENSION = ".nfc";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    interface Computation {
+        ImageProcessor process(ImageProcessor imageProcessor);
+    }
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+    private final long maxDiskBytes;
+    /** results by key, in the order they were used, the least recently used first **/
+    private final LinkedHashMap<String, ImageProcessor> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    /** -1 until the directory is scanned on the first write **/
+    private long diskBytes = -1;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxDiskBytes 0 turns the disk level off
+     */
+    ResultCache(long maxMemoryBytes, Path directory, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    static ResultCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return whether -Dneuralfuzzy.cache=true was given
+     */
+    static boolean isEnabledByDefault() {
+        return Boolean.getBoolean("neuralfuzzy.cache");
+    }
+
+    /**
+     * @param algorithmKey algorithm, its parameters and anything else the result depends on besides the pixels
+     * @return cached result of the image, or the one computed and cached now. It's a copy, so callers may change it.
+     */
+    ImageProcessor process(ImageProcessor imageProcessor, String algorithmKey, Computation computation) {
+        String key = getKey(imageProcessor, algorithmKey);
+
+        ImageProcessor result = getFromMemory(key);
+        if (result != null) {
+            memoryHits.incrementAndGet();
+            return copy(result);
+        }
+
+        result = readFromDisk(key);
+        if (result != null) {
+            diskHits.incrementAndGet();
+            putToMemory(key, copy(result));
+            return result;
+        }
+
+        misses.incrementAndGet();
+        result = computation.process(imageProcessor);
+        putToMemory(key, copy(result));
+        writeToDisk(key, result);
+        return result;
+    }
+
+    /**
+     * Hits and misses since the start, e.g. for logs, e.g.
+     * {"memoryHits":3,"diskHits":1,"misses":2,"memoryBytes":786432,"diskBytes":20480}
+     */
+    String getStatistics() {
+        long retainedBytes;
+        long storedBytes;
+        synchronized (this) {
+            retainedBytes = memoryBytes;
+            try {
+                addDiskBytes(0);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            storedBytes = Math.max(0, diskBytes);
+        }
+        return String.format(Locale.ROOT, "{\"memoryHits\":%d,\"diskHits\":%d,\"misses\":%d,\"memoryBytes\":%d," +
+                        "\"diskBytes\":%d}", memoryHits.get(), diskHits.get(), misses.get(), retainedBytes,
+                storedBytes);
+    }
+
+    /**
+     * Drops the results kept in memory, the files are kept
+     */
+    synchronized void clearMemory() {
+        results.clear();
+        memoryBytes = 0;
+    }
+
+    static String getKey(ImageProcessor imageProcessor, String algorithmKey) {
+        int width = imageProcessor.getWidth(), height = imageProcessor.getHeight();
+        long hash = RegionProcessor.getHash(imageProcessor, new Rectangle(0, 0, width, height));
+        return algorithmKey + " " + width + "x" + height + "x" + imageProcessor.getBitDepth() + " " +
+                Long.toHexString(hash);
+    }
+
+    private synchronized ImageProcessor getFromMemory(String key) {
+        return results.get(key);
+    }
+
+    private synchronized void putToMemory(String key, ImageProcessor result) {
+        long bytes = getBytes(result);
+        if (bytes > maxMemoryBytes) {
+            return;
+        }
+        ImageProcessor previousResult = results.put(key, result);
+        if (previousResult != null) {
+            memoryBytes -= getBytes(previousResult);
+        }
+        memoryBytes += bytes;
+
+        Iterator<ImageProcessor> leastRecentlyUsed = results.values().iterator();
+        while (memoryBytes > maxMemoryBytes && leastRecentlyUsed.hasNext()) {
+            memoryBytes -= getBytes(leastRecentlyUsed.next());
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * @return null if there is no file of the key or it can't be read
+     */
+    private ImageProcessor readFromDisk(String key) {
+        if (maxDiskBytes <= 0) {
+            return null;
+        }
+        Path path = getPath(key);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                Files.newInputStream(path))))) {
+            if (input.readInt() != FILE_MAGIC || !key.equals(input.readUTF())) {
+                return null;
+            }
+            int width = input.readInt(), height = input.readInt(), bitDepth = input.readInt();
+            ImageProcessor result = read(input, width, height, bitDepth);
+            //the modification time orders the files for eviction
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return result;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, ImageProcessor result) {
+        if (maxDiskBytes <= 0) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path path = getPath(key);
+            //written to a temporary file and moved, so readers never see a partial file
+            Path temporaryPath = Files.createTempFile(directory, "result", ".tmp");
+            //results are mostly background, the fastest level compresses them almost as well as the default one
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                        Files.newOutputStream(temporaryPath), deflater)))) {
+                    output.writeInt(FILE_MAGIC);
+                    output.writeUTF(key);
+                    output.writeInt(result.getWidth());
+                    output.writeInt(result.getHeight());
+                    output.writeInt(result.getBitDepth());
+                    write(output, result);
+                }
+                long bytes = Files.size(temporaryPath);
+                long replacedBytes = Files.exists(path) ? Files.size(path) : 0;
+                Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                addDiskBytes(bytes - replacedBytes);
+            } finally {
+                deflater.end();
+                Files.deleteIfExists(temporaryPath);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts the stored bytes, scanning the directory the first time, and deletes the least recently used files over
+     * the limit
+     */
+    private synchronized void addDiskBytes(long bytes) throws IOException {
+        if (maxDiskBytes <= 0 || !Files.isDirectory(directory)) {
+            return;
+        }
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            for (Path path : listFiles()) {
+                diskBytes += Files.size(path);
+            }
+        } else {
+            diskBytes += bytes;
+        }
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+
+        List<Path> paths = listFiles();
+        paths.sort((path1, path2) -> getLastModifiedTime(path1).compareTo(getLastModifiedTime(path2)));
+        for (Path path : paths) {
+            if (diskBytes <= maxDiskBytes) {
+                break;
+            }
+            long size = Files.size(path);
+            if (Files.deleteIfExists(path)) {
+                diskBytes -= size;
+            }
+        }
+    }
+
+    private List<Path> listFiles() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_EXTENSION)) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private static FileTime getLastModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * @return file of the key, named by a 64-bit FNV-1a hash of it
+     */
+    private Path getPath(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int charIndex = 0; charIndex < key.length(); charIndex++) {
+            hash = (hash ^ key.charAt(charIndex)) * FNV_PRIME;
+        }
+        return directory.resolve(String.format("%016x", hash) + FILE_EXTENSION);
+    }
+
+    private static void write(DataOutputStream output, ImageProcessor result) throws IOException {
+        Object pixels = result.getPixels();
+        if (pixels instanceof byte[]) {
+            output.write((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            for (short pixel : (short[]) pixels) {
+                output.writeShort(pixel);
+            }
+        } else {
+            for (float pixel : (float[]) pixels) {
+                output.writeFloat(pixel);
+            }
+        }
+    }
+
+    private static ImageProcessor read(DataInputStream input, int width, int height, int bitDepth)
+            throws IOException {
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[width * height];
+                input.readFully(pixels);
+                return new ByteProcessor(width, height, pixels);
+            }
+            case 16: {
+                short[] pixels = new short[width * height];
+                for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+                    pixels[pixelIndex] = input.readShort();
+                }
+                ShortProcessor result = new ShortProcessor(width, height, pixels, null);
+                result.resetMinAndMax();
+                return result;
+            }
+            case 32: {
+                float[] pixels = new float[width * height];
+                for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+                    pixels[pixelIndex] = input.readFloat();
+                }
+                FloatProcessor result = new FloatProcessor(width, height, pixels);
+                result.resetMinAndMax();
+                return result;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        }
+    }
+
+    private static ImageProcessor copy(ImageProcessor result) {
+        ImageProcessor copy = result.duplicate();
+        if (copy.getBitDepth() != 8) {
+            copy.resetMinAndMax();
+        }
+        return copy;
+    }
+
+    private static long getBytes(ImageProcessor result) {
+        return (long) result.getPixelCount() * (result.getBitDepth() / 8);
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of an image into bands and processes them in parallel on a fork-join pool. A band writes only its
+ * own rows, the halo rows a neighbourhood operation needs above and below the band are read from the shared input,
+ * so the result doesn't depend on the number of threads or on the band boundaries.
+ */
+class RowBandScheduler {
+    /** smallest band worth a task of its own **/
+    private static final int MIN_BAND_HEIGHT = 16;
+    /** bands per thread, so that threads finishing early can steal work of the slow ones **/
+    private static final int BANDS_PER_THREAD = 4;
+    /** pools by number of threads, created on first use and shared by all schedulers, their threads are daemons **/
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    interface RowBandTask {
+        void process(int fromRow, int toRow);
+    }
+
+    interface IndexTask {
+        void process(int index);
+    }
+
+    private final int threads;
+
+    RowBandScheduler(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Processes rows from 0 inclusive to height exclusive and returns when all of them are done
+     */
+    void process(int height, RowBandTask task) {
+        if (threads == 1 || height <= MIN_BAND_HEIGHT) {
+            task.process(0, height);
+            return;
+        }
+
+        int bandHeight = Math.max(MIN_BAND_HEIGHT, (height + threads * BANDS_PER_THREAD - 1) /
+                (threads * BANDS_PER_THREAD));
+        ForkJoinPool pool = POOLS.computeIfAbsent(threads, ForkJoinPool::new);
+        pool.invoke(new RowBandAction(Instrumentation.measureBands(task), 0, height, bandHeight));
+    }
+
+    /**
+     * Processes indices from 0 inclusive to count exclusive on the same pool, every index as a task of its own, e.g.
+     * independent images, and returns when all of them are done
+     */
+    void processEach(int count, IndexTask task) {
+        RowBandTask indicesTask = (fromIndex, toIndex) -> {
+            for (int index = fromIndex; index < toIndex; index++) {
+                task.process(index);
+            }
+        };
+        if (threads == 1 || count <= 1) {
+            indicesTask.process(0, count);
+            return;
+        }
+
+        ForkJoinPool pool = POOLS.computeIfAbsent(threads, ForkJoinPool::new);
+        pool.invoke(new RowBandAction(Instrumentation.measureBands(indicesTask), 0, count, 1));
+    }
+
+    private static class RowBandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RowBandTask task;
+        private final int fromRow;
+        private final int toRow;
+        private final int bandHeight;
+
+        RowBandAction(RowBandTask task, int fromRow, int toRow, int bandHeight) {
+            this.task = task;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandHeight) {
+                task.process(fromRow, toRow);
+                return;
+            }
+
+            int middleRow = fromRow + (toRow - fromRow) / 2;
+            invokeAll(new RowBandAction(task, fromRow, middleRow, bandHeight),
+                    new RowBandAction(task, middleRow, toRow, bandHeight));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+import ij.process.ImageProcessor;
+
+/**
+ * Filter of a single image or slice of a stack, e.g. one of the plugins with its parameters set, see BatchProcessor,
+ * TiledFilter and ProcessingServer
+ */
+interface SliceFilter {
+    /**
+     * @return result as a new image, the source image isn't changed
+     */
+    ImageProcessor process(ImageProcessor imageProcessor);
+}
@@ -0,0 +1,70 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Output stack of a filter processing the slices of a stack, possibly in parallel. The stack is preallocated with a
+ * slot for every source slice, each run of the filter puts its result to the slot of its slice, and the processed
+ * slices are shown as a single image at the end instead of a window per slice.
+ */
+class SliceResults {
+    private final ImagePlus sourceImagePlus;
+    private final boolean allSlices;
+    private final ImageStack stack;
+
+    /**
+     * @param passes number of slices ImageJ is going to process, 1 if it processes the current slice only
+     */
+    SliceResults(ImagePlus sourceImagePlus, int passes) {
+        this.sourceImagePlus = sourceImagePlus;
+        this.allSlices = passes > 1;
+        this.stack = new ImageStack(sourceImagePlus.getWidth(), sourceImagePlus.getHeight(),
+                sourceImagePlus.getStackSize());
+    }
+
+    /**
+     * Stores the result of processing a source slice. Safe to call from several threads for different slices.
+     */
+    void set(ImageProcessor sourceImageProcessor, ImageProcessor resultImageProcessor) {
+        int sliceNumber = getSliceNumber(sourceImageProcessor);
+
+        stack.setPixels(resultImageProcessor.getPixels(), sliceNumber);
+        stack.setSliceLabel(sourceImagePlus.getStack().getSliceLabel(sliceNumber), sliceNumber);
+        if (stack.getColorModel() == null) {
+            stack.setColorModel(resultImageProcessor.getColorModel());
+        }
+    }
+
+    /**
+     * @return number of the source slice being processed
+     */
+    int getSliceNumber(ImageProcessor sourceImageProcessor) {
+        //slice number is set by ImageJ only when it processes a stack, otherwise it may be a stale one
+        return allSlices ? sourceImageProcessor.getSliceNumber() : sourceImagePlus.getCurrentSlice();
+    }
+
+    /**
+     * @return image of the processed slices, null if none of them was processed
+     */
+    ImagePlus getImagePlus(String title) {
+        ImageStack processedStack = new ImageStack(stack.getWidth(), stack.getHeight(), stack.getColorModel());
+        for (int sliceNumber = 1; sliceNumber <= stack.getSize(); sliceNumber++) {
+            Object pixels = stack.getPixels(sliceNumber);
+            if (pixels != null) {
+                processedStack.addSlice(stack.getSliceLabel(sliceNumber), pixels);
+            }
+        }
+        if (processedStack.getSize() == 0) {
+            return null;
+        }
+
+        ImagePlus imagePlus = new ImagePlus(title, processedStack);
+        imagePlus.setCalibration(sourceImagePlus.getCalibration());
+        if (processedStack.getSize() == stack.getSize()) {
+            imagePlus.setDimensions(sourceImagePlus.getNChannels(), sourceImagePlus.getNSlices(),
+                    sourceImagePlus.getNFrames());
+            imagePlus.setOpenAsHyperStack(sourceImagePlus.isHyperStack());
+        }
+        return imagePlus;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Emits the runs of the stages of {@link Instrumentation} to Java Flight Recorder. This class records nothing, when
+ * the Flight Recorder API is available get returns FlightStageRecorder, which commits them as StageEvent. Both are
+ * compiled from src/main/jfr by the jfr profile only, Java 8 before update 262 has no jdk.jfr to compile them against.
+ */
+class StageRecorder {
+    private static final StageRecorder RECORDER = load();
+
+    static StageRecorder get() {
+        return RECORDER;
+    }
+
+    /**
+     * @return event of a run starting now, to be passed to commit when it stops, null if nothing is recorded
+     */
+    Object begin() {
+        return null;
+    }
+
+    /**
+     * Ends the event and commits it if the recording is interested in it
+     */
+    void commit(Object event, String stage, long pixels, double pixelsPerSecond, long allocatedBytes) {
+    }
+
+    private static StageRecorder load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (StageRecorder) Class.forName("FlightStageRecorder").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new StageRecorder();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import ij.process.ImageProcessor;
+
+/**
+ * Filter of image tiles, with the statistics it takes from the whole image fixed and the halo of source pixels around a
+ * tile its neighbourhood operations need, so that the result of a tile without the halo is the same as that part of
+ * the whole image's result, see TiledProcessor and RegionProcessor
+ */
+class TiledFilter {
+    private final int halo;
+    private final int bitDepth;
+    private final String key;
+    private final SliceFilter filter;
+
+    /**
+     * @param bitDepth bit depth of the results
+     * @param key parameters and statistics the results depend on, filters with the same key give the same results
+     */
+    TiledFilter(int halo, int bitDepth, String key, SliceFilter filter) {
+        this.halo = halo;
+        this.bitDepth = bitDepth;
+        this.key = key;
+        this.filter = filter;
+    }
+
+    int getHalo() {
+        return halo;
+    }
+
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Called by several threads at once for different tiles
+     * @param tile tile with its halo, clipped at the image borders
+     */
+    ImageProcessor process(ImageProcessor tile) {
+        return filter.process(tile);
+    }
+}
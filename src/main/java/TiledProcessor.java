@@ -0,0 +1,267 @@
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point running the plugins over images larger than the heap, e.g.
+ * java -Xmx256m -cp Neural_Fuzzy_Plugins.jar:ij.jar:... TiledProcessor suliman /data/slide.tif /data/edges.tif
+ * The source image is memory mapped from an uncompressed TIFF or raw file and processed tile by tile, every tile with
+ * a halo of the pixels around it its neighbourhood operations need, and the results without the halo are written
+ * straight to a memory mapped output file. The heap holds only the tiles being processed, so memory use depends on
+ * the tile size and the number of threads, not on the image size.
+ *
+ * Statistics the plugins take from the whole image, i.e. the range 16 and 32-bit pixels are binned in, the histogram
+ * of the Otsu threshold and the range of the contrast enhancement, are gathered by passes over the tiles first, so
+ * the result is the same as if the whole image was processed at once.
+ */
+public class TiledProcessor {
+    private static final String USAGE = "Usage: TiledProcessor <ann|suliman|contrast> <input .tif or raw file> " +
+            "<output .tif or raw file> [name=value ...]\n" +
+            "  ann:      greyscale=false\n" +
+            "  suliman:  low=4 high=48 weight=240\n" +
+            "  contrast: exponent=2\n" +
+            "  all:      tile=1024 threads=<number of processors> stats=<JSON file of stage timings>\n" +
+            "  raw input: width=<pixels> height=<pixels> bits=8 offset=0 little=false";
+
+    interface TileConsumer {
+        /**
+         * Called by several threads at once
+         */
+        void accept(ImageProcessor tile);
+    }
+
+    private final MappedImage source;
+    private final int tileSize;
+    private final int threads;
+
+    TiledProcessor(MappedImage source, int tileSize, int threads) {
+        this.source = source;
+        this.tileSize = Math.max(1, tileSize);
+        this.threads = Math.max(1, threads);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        Map<String, String> parameters = new HashMap<>();
+        for (int argIndex = 3; argIndex < args.length; argIndex++) {
+            String[] parameter = args[argIndex].split("=", 2);
+            if (parameter.length != 2) {
+                System.err.println("Parameter should be name=value: " + args[argIndex] + "\n" + USAGE);
+                System.exit(1);
+            }
+            parameters.put(parameter[0], parameter[1]);
+        }
+
+        Path inputPath = Paths.get(args[1]);
+        Path outputPath = Paths.get(args[2]);
+        int tileSize = Integer.parseInt(parameters.getOrDefault("tile", "1024"));
+        int threads = Integer.parseInt(parameters.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (parameters.containsKey("stats")) {
+            Instrumentation.setEnabled(true);
+        }
+
+        long startTime = System.nanoTime();
+        try (MappedImage source = openSource(inputPath, parameters)) {
+            TiledProcessor tiledProcessor = new TiledProcessor(source, tileSize, threads);
+            TiledFilter filter;
+            try {
+                filter = tiledProcessor.getFilter(args[0], parameters);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage() + "\n" + USAGE);
+                System.exit(1);
+                return;
+            }
+
+            try (MappedImage output = MappedImage.create(outputPath, source.getWidth(), source.getHeight(),
+                    filter.getBitDepth())) {
+                tiledProcessor.process(filter, output);
+            }
+
+            double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+            System.out.println(String.format("Processed %dx%d image in %.2f s, %.1f megapixels/s",
+                    source.getWidth(), source.getHeight(), seconds,
+                    (double) source.getWidth() * source.getHeight() / 1000000 / seconds));
+        }
+        if (parameters.containsKey("stats")) {
+            Files.write(Paths.get(parameters.get("stats")),
+                    Instrumentation.getSummary().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Files ending with .tif or .tiff are opened as TIFF, others as raw images described by the parameters
+     */
+    static MappedImage openSource(Path path, Map<String, String> parameters) throws IOException {
+        String fileName = path.getFileName().toString().toLowerCase();
+        if (fileName.endsWith(".tif") || fileName.endsWith(".tiff")) {
+            return MappedImage.openTiff(path);
+        }
+        if (!parameters.containsKey("width") || !parameters.containsKey("height")) {
+            throw new IllegalArgumentException("Width and height of the raw image should be given");
+        }
+        return MappedImage.open(path, Integer.parseInt(parameters.get("width")),
+                Integer.parseInt(parameters.get("height")),
+                Integer.parseInt(parameters.getOrDefault("bits", "8")),
+                Boolean.parseBoolean(parameters.getOrDefault("little", "false")) ? ByteOrder.LITTLE_ENDIAN :
+                        ByteOrder.BIG_ENDIAN,
+                Long.parseLong(parameters.getOrDefault("offset", "0")));
+    }
+
+    /**
+     * Prepares the filter of the algorithm, the source image statistics it needs are gathered here. The plugins
+     * process every tile by a single thread, tiles themselves are processed in parallel.
+     */
+    TiledFilter getFilter(String algorithm, Map<String, String> parameters) throws IOException {
+        switch (algorithm) {
+            case "ann": {
+                ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                        new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                double[] range = getRange();
+                if (Boolean.parseBoolean(parameters.getOrDefault("greyscale", "false"))) {
+                    plugin.perceptron = plugin.getPerceptron();
+                    return plugin.getGreyscaleTiledFilter(range);
+                }
+
+                plugin.edgeLookupTable = plugin.getEdgeLookupTable(plugin.getNetwork());
+                return plugin.getTiledFilter(range, getHistogram(range));
+            }
+            case "suliman": {
+                Fuzzy_Edge_Detection_By_Suliman_And_Others plugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+                int[][] centersOfClasses = plugin.getCentersOfClasses(
+                        Integer.parseInt(parameters.getOrDefault("low", "4")),
+                        Integer.parseInt(parameters.getOrDefault("high", "48")));
+                int weight = Integer.parseInt(parameters.getOrDefault("weight", "240"));
+                return plugin.getTiledFilter(getRange(), centersOfClasses, weight);
+            }
+            case "contrast": {
+                Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization plugin =
+                        new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+                double fuzzyExponent = Double.parseDouble(parameters.getOrDefault("exponent", "2"));
+                double[] minAndMax = {Double.MAX_VALUE, -Double.MAX_VALUE};
+                forEachTile(tile -> {
+                    double[] tileMinAndMax = plugin.getMinAndMax(tile);
+                    synchronized (minAndMax) {
+                        minAndMax[0] = Math.min(minAndMax[0], tileMinAndMax[0]);
+                        minAndMax[1] = Math.max(minAndMax[1], tileMinAndMax[1]);
+                    }
+                });
+                return plugin.getTiledFilter(minAndMax[0], minAndMax[1], source.getBitDepth(), fuzzyExponent);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * @return range of the whole image to bin 16 and 32-bit tiles in, see GreyLevels
+     */
+    double[] getRange() throws IOException {
+        double[] range = {Double.MAX_VALUE, -Double.MAX_VALUE};
+        //8-bit pixels are not binned
+        if (source.getBitDepth() == 8) {
+            return range;
+        }
+
+        forEachTile(tile -> {
+            double[] tileRange = GreyLevels.getRange(tile.getPixels());
+            synchronized (range) {
+                range[0] = Math.min(range[0], tileRange[0]);
+                range[1] = Math.max(range[1], tileRange[1]);
+            }
+        });
+        return range;
+    }
+
+    /**
+     * @return 256 levels histogram of the whole image binned in the range
+     */
+    long[] getHistogram(double[] range) throws IOException {
+        long[] histogram = new long[GreyLevels.LEVELS];
+        RowBandScheduler sequentialScheduler = new RowBandScheduler(1);
+        forEachTile(tile -> {
+            long[] tileHistogram = GreyLevels.of(tile, range).getHistogram(sequentialScheduler, null);
+            synchronized (histogram) {
+                for (int level = 0; level < histogram.length; level++) {
+                    histogram[level] += tileHistogram[level];
+                }
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Passes every tile of the source without a halo to the consumer
+     */
+    void forEachTile(TileConsumer consumer) throws IOException {
+        processBands((fromRow, toRow) -> {
+            MappedByteBuffer sourceRows = source.mapRows(fromRow, toRow);
+            return tileIndex -> {
+                int x = tileIndex * tileSize;
+                int tileWidth = Math.min(tileSize, source.getWidth() - x);
+                consumer.accept(source.getTile(sourceRows, fromRow, x, fromRow, tileWidth, toRow - fromRow));
+            };
+        });
+    }
+
+    /**
+     * Filters every tile of the source with its halo, clipped at the image borders, and writes the part of the result
+     * without the halo to the output
+     */
+    void process(TiledFilter filter, MappedImage output) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int halo = filter.getHalo();
+
+        processBands((fromRow, toRow) -> {
+            int sourceFromRow = Math.max(0, fromRow - halo);
+            int sourceToRow = Math.min(height, toRow + halo);
+            MappedByteBuffer sourceRows = source.mapRows(sourceFromRow, sourceToRow);
+            MappedByteBuffer outputRows = output.mapRows(fromRow, toRow);
+
+            return tileIndex -> {
+                int x = tileIndex * tileSize;
+                int toColumn = Math.min(width, x + tileSize);
+                int sourceFromColumn = Math.max(0, x - halo);
+                int sourceToColumn = Math.min(width, toColumn + halo);
+                ImageProcessor tile = source.getTile(sourceRows, sourceFromRow, sourceFromColumn, sourceFromRow,
+                        sourceToColumn - sourceFromColumn, sourceToRow - sourceFromRow);
+                ImageProcessor result = filter.process(tile);
+                output.setTile(outputRows, fromRow, x, fromRow, result, x - sourceFromColumn,
+                        fromRow - sourceFromRow, toColumn - x, toRow - fromRow);
+            };
+        });
+    }
+
+    private interface BandTiles {
+        /**
+         * @return task processing the tile of the band at the given column index
+         */
+        RowBandScheduler.IndexTask getTiles(int fromRow, int toRow) throws IOException;
+    }
+
+    /**
+     * Runs the tiles of every band of tileSize rows in parallel on the shared pools, band after band. A tile is read
+     * when its task starts, so only the tiles being processed are in the heap.
+     */
+    private void processBands(BandTiles bandTiles) throws IOException {
+        RowBandScheduler scheduler = new RowBandScheduler(threads);
+        int tileColumns = (source.getWidth() + tileSize - 1) / tileSize;
+        for (int fromRow = 0; fromRow < source.getHeight(); fromRow += tileSize) {
+            int toRow = Math.min(source.getHeight(), fromRow + tileSize);
+            scheduler.processEach(tileColumns, bandTiles.getTiles(fromRow, toRow));
+        }
+    }
+}
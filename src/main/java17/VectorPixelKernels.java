@@ -0,0 +1,173 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Versions of {@link PixelKernels} by the Vector API, compiled only on Java 17 and later and loaded by
+ * PixelKernels.get when the jdk.incubator.vector module is added. The widest vectors the CPU supports are used, the
+ * columns which don't fill a whole vector at the ends of the rows are processed by the scalar kernels.
+ */
+class VectorPixelKernels extends PixelKernels {
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = BYTES.withLanes(long.class);
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    /**
+     * multiplying a long of 8 bytes which are 0 or 1 by it gathers byte i to bit 56 + i, the partial products don't
+     * overlap, so they don't carry into each other
+     **/
+    private static final long GATHER_BITS = 0x0102040810204080L;
+    /** shifts of the gathered bytes of the long lanes to their places in the packed word **/
+    private static final LongVector BYTE_SHIFTS = LongVector.zero(LONGS).addIndex(8);
+
+    @Override
+    String getName() {
+        return "vector " + BYTES.vectorBitSize() + " bits";
+    }
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    boolean isSupported() {
+        //a word of 64 pixels is packed from whole vectors, narrower vectors than 128 bits are no faster
+        return BYTES.vectorBitSize() >= 128 && BYTES.length() <= 64;
+    }
+
+    /**
+     * Bytes are compared 64 bits of a vector at a time, the lanes of the comparison mask become bytes 0 or 1 of long
+     * lanes, which are gathered to 8 bits each and OR-ed together to the word
+     */
+    @Override
+    void thresholdRow(byte[] levels, int rowOffset, int width, int threshold, long[] words, int wordOffset) {
+        if (threshold < 0 || threshold > 255) {
+            super.thresholdRow(levels, rowOffset, width, threshold, words, wordOffset);
+            return;
+        }
+
+        byte byteThreshold = (byte) threshold;
+        ByteVector ones = ByteVector.broadcast(BYTES, (byte) 1);
+        ByteVector zeros = ByteVector.zero(BYTES);
+        int fullWords = width >>> 6;
+        for (int wordIndex = 0; wordIndex < fullWords; wordIndex++) {
+            int firstColumn = wordIndex << 6;
+            long word = 0;
+            for (int chunkOffset = 0; chunkOffset < 64; chunkOffset += BYTES.length()) {
+                ByteVector pixels = ByteVector.fromArray(BYTES, levels, rowOffset + firstColumn + chunkOffset);
+                VectorMask<Byte> white = pixels.compare(VectorOperators.UNSIGNED_GE, byteThreshold);
+                LongVector bits = (LongVector) zeros.blend(ones, white).reinterpretAsLongs();
+                long chunk = bits.mul(GATHER_BITS).lanewise(VectorOperators.LSHR, 56)
+                        .lanewise(VectorOperators.LSHL, BYTE_SHIFTS).reduceLanes(VectorOperators.OR);
+                word |= chunk << chunkOffset;
+            }
+            words[wordOffset + wordIndex] = word;
+        }
+
+        int wordsPerRow = (width + 63) >>> 6;
+        if (fullWords < wordsPerRow) {
+            long word = 0;
+            for (int columnIndex = fullWords << 6; columnIndex < width; columnIndex++) {
+                if ((levels[rowOffset + columnIndex] & 0xff) >= threshold) {
+                    word |= 1L << columnIndex;
+                }
+            }
+            words[wordOffset + fullWords] = word;
+        }
+    }
+
+    /**
+     * Columns from 1 to width - 2 have all their neighbours inside the row, so their input vectors are computed from
+     * the rows shifted by one column, a vector of columns at a time. The closest center and its index are kept per
+     * lane and replaced only by strictly closer centers, like in the scalar kernel. Squared distances fit in int for
+     * the centers and weights the squared distance classification is used with.
+     */
+    @Override
+    void classifyRow(int[] previousRow, int[] row, int[] nextRow, int width, int[][] centersOfClasses,
+                     long squaredWeight, int[] classesRow) {
+        int lastColumn = width - 1;
+        if (lastColumn - 1 < INTS.length()) {
+            super.classifyRow(previousRow, row, nextRow, width, centersOfClasses, squaredWeight, classesRow);
+            return;
+        }
+
+        PixelKernels.classifyPixel(previousRow, row, nextRow, width, centersOfClasses, squaredWeight, classesRow, 0);
+        int weightLimit = (int) Math.min(squaredWeight, Integer.MAX_VALUE);
+        IntVector background = IntVector.zero(INTS);
+        int columnIndex = 1;
+        for (; columnIndex + INTS.length() <= lastColumn; columnIndex += INTS.length()) {
+            IntVector p5 = IntVector.fromArray(INTS, row, columnIndex);
+            IntVector d1 = distance(previousRow, columnIndex - 1, p5).add(distance(nextRow, columnIndex + 1, p5));
+            IntVector d2 = distance(previousRow, columnIndex, p5).add(distance(nextRow, columnIndex, p5));
+            IntVector d3 = distance(previousRow, columnIndex + 1, p5).add(distance(nextRow, columnIndex - 1, p5));
+            IntVector d4 = distance(row, columnIndex - 1, p5).add(distance(row, columnIndex + 1, p5));
+
+            IntVector closestIndex = background;
+            IntVector closestSquaredDistance = IntVector.broadcast(INTS, Integer.MAX_VALUE);
+            for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length;
+                 centerOfClassesIndex++) {
+                int[] center = centersOfClasses[centerOfClassesIndex];
+                IntVector difference1 = d1.sub(center[0]);
+                IntVector difference2 = d2.sub(center[1]);
+                IntVector difference3 = d3.sub(center[2]);
+                IntVector difference4 = d4.sub(center[3]);
+                IntVector squaredDistance = difference1.mul(difference1).add(difference2.mul(difference2))
+                        .add(difference3.mul(difference3)).add(difference4.mul(difference4));
+                VectorMask<Integer> closer = squaredDistance.lt(closestSquaredDistance);
+                closestIndex = closestIndex.blend(centerOfClassesIndex, closer);
+                closestSquaredDistance = closestSquaredDistance.blend(squaredDistance, closer);
+            }
+
+            background.blend(closestIndex, closestSquaredDistance.lt(weightLimit)).intoArray(classesRow, columnIndex);
+        }
+        for (; columnIndex < width; columnIndex++) {
+            PixelKernels.classifyPixel(previousRow, row, nextRow, width, centersOfClasses, squaredWeight, classesRow,
+                    columnIndex);
+        }
+    }
+
+    /**
+     * The 256 entries of the table are held in 256 / lanes byte vectors, every pixel is looked up in all of them by a
+     * lane shuffle and takes the entry of the vector its high bits select. Only 512-bit vectors, whose shuffles of
+     * bytes are single instructions, are faster than the scalar loop.
+     */
+    @Override
+    void mapPixels(byte[] pixels, int[] lookupTable, byte[] mappedPixels) {
+        if (BYTES.length() != 64) {
+            super.mapPixels(pixels, lookupTable, mappedPixels);
+            return;
+        }
+
+        byte[] byteTable = new byte[256];
+        for (int level = 0; level < byteTable.length; level++) {
+            byteTable[level] = (byte) lookupTable[level];
+        }
+        ByteVector[] tableParts = new ByteVector[4];
+        for (int partIndex = 0; partIndex < tableParts.length; partIndex++) {
+            tableParts[partIndex] = ByteVector.fromArray(BYTES, byteTable, partIndex * 64);
+        }
+
+        int pixelIndex = 0;
+        for (; pixelIndex + 64 <= pixels.length; pixelIndex += 64) {
+            ByteVector levels = ByteVector.fromArray(BYTES, pixels, pixelIndex);
+            VectorShuffle<Byte> shuffle = levels.and((byte) 63).toShuffle();
+            ByteVector parts = levels.lanewise(VectorOperators.LSHR, 6);
+            ByteVector mapped = tableParts[0].rearrange(shuffle);
+            for (int partIndex = 1; partIndex < tableParts.length; partIndex++) {
+                mapped = mapped.blend(tableParts[partIndex].rearrange(shuffle), parts.eq((byte) partIndex));
+            }
+            mapped.intoArray(mappedPixels, pixelIndex);
+        }
+        for (; pixelIndex < pixels.length; pixelIndex++) {
+            mappedPixels[pixelIndex] = (byte) lookupTable[pixels[pixelIndex] & 0xff];
+        }
+    }
+
+    private static IntVector distance(int[] levels, int fromColumn, IntVector p5) {
+        return IntVector.fromArray(INTS, levels, fromColumn).sub(p5).lanewise(VectorOperators.ABS);
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Records the runs of the stages as {@link StageEvent}, see StageRecorder
+ */
+class FlightStageRecorder extends StageRecorder {
+    @Override
+    Object begin() {
+        StageEvent event = new StageEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void commit(Object event, String stage, long pixels, double pixelsPerSecond, long allocatedBytes) {
+        StageEvent stageEvent = (StageEvent) event;
+        stageEvent.end();
+        if (stageEvent.shouldCommit()) {
+            stageEvent.stage = stage;
+            stageEvent.pixels = pixels;
+            stageEvent.pixelsPerSecond = pixelsPerSecond;
+            stageEvent.allocatedBytes = allocatedBytes;
+            stageEvent.commit();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a run of a plugin stage, see {@link Instrumentation}. Its duration is the wall time of the
+ * stage, e.g. jfr print --events neuralfuzzy.Stage recording.jfr
+ */
+@Name("neuralfuzzy.Stage")
+@Label("Plugin Stage")
+@Category("Neural Fuzzy Plugins")
+@Description("Run of a stage of an image processing plugin")
+@StackTrace(false)
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Pixels per Second")
+    double pixelsPerSecond;
+
+    /** -1 if the JVM doesn't count allocated bytes per thread **/
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}
@@ -0,0 +1,336 @@
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the ANN plugin with a copy of its original implementation, which evaluated the network on every 2x2
+ * window of the binary image and removed the isolated edge pixels pixel by pixel
+ */
+public class ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest {
+    private static final int[][] SIZES = {{1, 1}, {1, 37}, {37, 1}, {2, 2}, {3, 40}, {40, 3}, {63, 5}, {64, 48},
+            {65, 7}, {131, 77}};
+
+    @Test
+    public void lookupTableMatchesTheNetworkOnBinaryImages() {
+        Random random = new Random(1);
+        FeedforwardNetwork[] networks = {NetworkCache.getNetwork("weights.bin", "weights.txt"),
+                getRandomNetwork(random), getRandomNetwork(random), getRandomNetwork(random)};
+        for (FeedforwardNetwork network : networks) {
+            ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin = new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+            plugin.edgeLookupTable = plugin.getEdgeLookupTable(network);
+            for (int[] size : SIZES) {
+                for (int density : new int[]{2, 5}) {
+                    ByteProcessor binaryImage = getBinaryImage(size[0], size[1], density, random);
+                    ImageProcessor referenceEdgeImage = getReferenceEdgeImage(binaryImage, network);
+
+                    PackedBinaryImage packedBinaryImage = PackedBinaryImage.threshold(GreyLevels.of(binaryImage),
+                            128);
+                    PackedBinaryImage edgeImage = plugin.getEdgeImage(packedBinaryImage);
+                    String message = size[0] + "x" + size[1] + " density " + density;
+                    assertArrayEquals(message, (byte[]) referenceEdgeImage.getPixels(),
+                            (byte[]) edgeImage.toImagePlus("Edges").getProcessor().getPixels());
+                    assertArrayEquals(message, getReferenceFinalImage(referenceEdgeImage),
+                            (byte[]) plugin.getFinalImage(edgeImage).getProcessor().getPixels());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void binaryPipelineMatchesTheReferenceInRowBands() {
+        FeedforwardNetwork network = NetworkCache.getNetwork("weights.bin", "weights.txt");
+        Random random = new Random(2);
+        for (int[] size : new int[][]{{63, 40}, {64, 70}, {65, 33}, {127, 100}, {129, 17}, {200, 130}}) {
+            ImageProcessor image = getImage(size[0], size[1], random);
+            byte[] expected = getReferenceFinalImage(getReferenceEdgeImage(getReferenceBinaryImage(image),
+                    network));
+            for (int threads : new int[]{1, 2, 3, 8}) {
+                ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                        new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                plugin.threads = threads;
+                plugin.edgeLookupTable = plugin.getEdgeLookupTable(network);
+                assertArrayEquals(size[0] + "x" + size[1] + " threads " + threads, expected,
+                        (byte[]) plugin.process(image).getPixels());
+            }
+        }
+    }
+
+    /**
+     * 16 and 32-bit pixels are binned to 256 levels between the image minimum and maximum, NaN and infinite pixels
+     * don't count in the range, and the binned image is processed like an 8-bit one
+     */
+    @Test
+    public void sixteenAndThirtyTwoBitImagesMatchTheBinnedReference() {
+        FeedforwardNetwork network = NetworkCache.getNetwork("weights.bin", "weights.txt");
+        Random random = new Random(3);
+        for (int[] size : new int[][]{{1, 1}, {37, 3}, {65, 40}, {130, 70}}) {
+            ImageProcessor byteImage = getImage(size[0], size[1], random);
+            FloatProcessor floatImage = byteImage.convertToFloatProcessor();
+            floatImage.multiply(-3.7);
+            floatImage.add(1000);
+            ShortProcessor shortImage = (ShortProcessor) byteImage.convertToShort(false);
+            shortImage.multiply(211);
+            FloatProcessor nonFiniteImage = (FloatProcessor) floatImage.duplicate();
+            nonFiniteImage.setf(0, Float.POSITIVE_INFINITY);
+            nonFiniteImage.setf(nonFiniteImage.getPixelCount() / 2, Float.NEGATIVE_INFINITY);
+            nonFiniteImage.setf(nonFiniteImage.getPixelCount() - 1, Float.NaN);
+
+            for (ImageProcessor image : new ImageProcessor[]{shortImage, floatImage, nonFiniteImage}) {
+                byte[] expected = getReferenceFinalImage(getReferenceEdgeImage(getReferenceBinaryImage(
+                        getReferenceLevels(image)), network));
+                for (int threads : new int[]{1, 3}) {
+                    ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                            new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                    plugin.threads = threads;
+                    plugin.edgeLookupTable = plugin.getEdgeLookupTable(network);
+                    assertArrayEquals(image.getBitDepth() + "-bit " + size[0] + "x" + size[1] + " threads " +
+                            threads, expected, (byte[]) plugin.process(image).getPixels());
+                }
+            }
+        }
+    }
+
+    /**
+     * Row bands recompute the windows overlapping them from above, so the greyscale edges don't depend on the number
+     * of threads and are the ones of the network evaluated on every window
+     */
+    @Test
+    public void greyscaleWindowsMatchTheNetworkInRowBands() {
+        Random random = new Random(4);
+        for (int[] layerSizes : new int[][]{{4, 12, 4}, {9, 6, 9}}) {
+            NetworkWeights weights = getRandomWeights(layerSizes, random);
+            FeedforwardNetwork network = weights.toNetwork();
+            MultilayerPerceptron perceptron = new MultilayerPerceptron(weights);
+            int windowSize = (int) Math.round(Math.sqrt(layerSizes[0]));
+            for (int[] size : new int[][]{{1, 1}, {2, 2}, {3, 50}, {65, 40}, {130, 71}}) {
+                ImageProcessor image = getImage(size[0], size[1], random);
+                byte[] expected = getReferenceGreyscaleEdges(image, network, windowSize);
+                for (int threads : new int[]{1, 2, 3, 8}) {
+                    ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                            new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                    plugin.threads = threads;
+                    assertArrayEquals("layers " + Arrays.toString(layerSizes) + " " + size[0] + "x" + size[1] +
+                                    " threads " + threads, expected,
+                            (byte[]) plugin.getGreyscaleEdgeImage(image, perceptron).toImagePlus("Edges")
+                                    .getProcessor().getPixels());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return network with 4 inputs, 12 hidden neurons and 4 outputs like the shipped one, with random weights
+     */
+    static FeedforwardNetwork getRandomNetwork(Random random) {
+        return getRandomWeights(new int[]{4, 12, 4}, random).toNetwork();
+    }
+
+    static NetworkWeights getRandomWeights(int[] layerSizes, Random random) {
+        double[][][] matrices = new double[layerSizes.length - 1][][];
+        for (int matrixIndex = 0; matrixIndex < matrices.length; matrixIndex++) {
+            matrices[matrixIndex] = new double[layerSizes[matrixIndex] + 1][layerSizes[matrixIndex + 1]];
+            for (double[] row : matrices[matrixIndex]) {
+                for (int columnIndex = 0; columnIndex < row.length; columnIndex++) {
+                    row[columnIndex] = random.nextGaussian() * 3;
+                }
+            }
+        }
+        return new NetworkWeights(layerSizes, matrices);
+    }
+
+    /**
+     * @param density one of density pixels is white on average
+     */
+    static ByteProcessor getBinaryImage(int width, int height, int density, Random random) {
+        ByteProcessor image = new ByteProcessor(width, height);
+        for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++) {
+            image.set(pixelIndex, random.nextInt(density) == 0 ? 255 : 0);
+        }
+        return image;
+    }
+
+    /**
+     * Smooth gradients with bright blobs, so that the binarised image has both edges and flat regions
+     */
+    static ImageProcessor getImage(int width, int height, Random random) {
+        ByteProcessor image = new ByteProcessor(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int blob = ((x / 9 + y / 7) % 3 == 0) ? 90 : 0;
+                image.set(x, y, Math.min(255, x + y / 2 + blob + random.nextInt(20)));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return 8-bit image of the levels 16 and 32-bit pixels are binned to, 16-bit ones being integers from min to max
+     */
+    static ImageProcessor getReferenceLevels(ImageProcessor image) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (int pixelIndex = 0; pixelIndex < image.getPixelCount(); pixelIndex++) {
+            double value = image.getf(pixelIndex);
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        if (image.getBitDepth() == 16) {
+            max += 1;
+        }
+
+        ByteProcessor levels = new ByteProcessor(image.getWidth(), image.getHeight());
+        for (int pixelIndex = 0; pixelIndex < image.getPixelCount(); pixelIndex++) {
+            double value = image.getf(pixelIndex);
+            int level = Double.isNaN(value) || max <= min ? 0 : (int) Math.max(0, Math.min(255,
+                    Math.floor((value - min) * 256 / (max - min))));
+            levels.set(pixelIndex, level);
+        }
+        return levels;
+    }
+
+    /**
+     * Binary image of the original implementation, thresholded at the Otsu threshold of its int histogram
+     */
+    static ImageProcessor getReferenceBinaryImage(ImageProcessor image) {
+        return new ByteProcessor(image.getWidth(), image.getHeight(),
+                PackedBinaryImageTest.getReferenceBinaryImage(image, getReferenceThreshold(image.getHistogram(),
+                        image.getWidth() * image.getHeight())));
+    }
+
+    /**
+     * Otsu threshold of the original implementation
+     */
+    static int getReferenceThreshold(int[] histogram, long total) {
+        int sum = 0;
+        for (int i = 1; i < 256; ++i) {
+            sum += i * histogram[i];
+        }
+
+        int sumB = 0;
+        int wB = 0;
+        double max = 0.0;
+        int threshold1 = 0;
+        int threshold2 = 0;
+        for (int i = 0; i < 256; ++i) {
+            wB += histogram[i];
+            if (wB == 0) {
+                continue;
+            }
+
+            long wF = total - wB;
+            if (wF == 0) {
+                break;
+            }
+
+            sumB += i * histogram[i];
+            double mB = (double) sumB / wB;
+            double mF = (double) (sum - sumB) / wF;
+            double between = wB * wF * Math.pow(mB - mF, 2);
+            if (between >= max) {
+                threshold1 = i;
+                if (between > max) {
+                    threshold2 = i;
+                }
+                max = between;
+            }
+        }
+        return (threshold1 + threshold2) / 2;
+    }
+
+    /**
+     * Edge image of the original implementation, the network is evaluated on every 2x2 window
+     */
+    static ImageProcessor getReferenceEdgeImage(ImageProcessor binaryImageProcessor, FeedforwardNetwork network) {
+        int width = binaryImageProcessor.getWidth();
+        int height = binaryImageProcessor.getHeight();
+        ImageProcessor edgeImageProcessor = new ByteProcessor(width, height);
+
+        for (int y = 0; y < height - 1; y += 1) {
+            for (int x = 0; x < width - 1; x += 1) {
+                double[] values = {
+                        (binaryImageProcessor.get(x, y)) / 255.0,
+                        (binaryImageProcessor.get(x + 1, y)) / 255.0,
+                        (binaryImageProcessor.get(x, y + 1)) / 255.0,
+                        (binaryImageProcessor.get(x + 1, y + 1)) / 255.0
+                };
+
+                double[] output = network.computeOutputs(values);
+
+                double[][] outputValues = {{output[0], output[1]}, {output[2], output[3]}};
+                for (int y1 = 0; y1 < 2; y1++) {
+                    for (int x1 = 0; x1 < 2; x1++) {
+                        int pixelValue = (int) (Math.round(outputValues[y1][x1]) * 255);
+                        if (pixelValue == 255) {
+                            edgeImageProcessor.set(x + x1, y + y1, pixelValue);
+                        }
+                    }
+                }
+            }
+        }
+
+        return edgeImageProcessor;
+    }
+
+    /**
+     * Edges of the network evaluated on every NxN window of grey levels scaled to 0..1, one window at a time
+     */
+    private static byte[] getReferenceGreyscaleEdges(ImageProcessor image, FeedforwardNetwork network,
+                                                     int windowSize) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteProcessor edgeImage = new ByteProcessor(width, height);
+        for (int y = 0; y + windowSize <= height; y++) {
+            for (int x = 0; x + windowSize <= width; x++) {
+                double[] values = new double[windowSize * windowSize];
+                for (int relativeY = 0; relativeY < windowSize; relativeY++) {
+                    for (int relativeX = 0; relativeX < windowSize; relativeX++) {
+                        values[relativeY * windowSize + relativeX] = image.get(x + relativeX, y + relativeY) / 255.0;
+                    }
+                }
+                double[] output = network.computeOutputs(values);
+                for (int outputIndex = 0; outputIndex < output.length; outputIndex++) {
+                    if (output[outputIndex] >= 0.5) {
+                        edgeImage.set(x + outputIndex % windowSize, y + outputIndex / windowSize, 255);
+                    }
+                }
+            }
+        }
+        return (byte[]) edgeImage.getPixels();
+    }
+
+    /**
+     * Isolated pixels removal of the original implementation
+     */
+    static byte[] getReferenceFinalImage(ImageProcessor edgeImageProcessor) {
+        int width = edgeImageProcessor.getWidth();
+        int height = edgeImageProcessor.getHeight();
+        byte[] finalPixels = new byte[width * height];
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                if (edgeImageProcessor.get(columnIndex, rowIndex) != 255) {
+                    continue;
+                }
+                boolean isNeighbourWhite = false;
+                for (int y = Math.max(rowIndex - 1, 0); y <= Math.min(rowIndex + 1, height - 1); y++) {
+                    for (int x = Math.max(columnIndex - 1, 0); x <= Math.min(columnIndex + 1, width - 1); x++) {
+                        if ((y != rowIndex || x != columnIndex) && edgeImageProcessor.get(x, y) == 255) {
+                            isNeighbourWhite = true;
+                        }
+                    }
+                }
+                finalPixels[rowIndex * width + columnIndex] = (byte) (isNeighbourWhite ? 255 : 0);
+            }
+        }
+        return finalPixels;
+    }
+}
@@ -0,0 +1,64 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Names of the results in the output directory, the filter just copies the images
+ */
+public class BatchProcessorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sourceExtensionsKeepResultsApart() throws Exception {
+        Path inputDirectory = folder.newFolder("in").toPath();
+        Path outputDirectory = folder.newFolder("out").toPath();
+        Path png = save(inputDirectory.resolve("a.png"), 10);
+        Path tiff = save(inputDirectory.resolve("a.tif"), 20);
+
+        BatchProcessor batchProcessor = new BatchProcessor(imageProcessor -> imageProcessor.duplicate(),
+                outputDirectory, 2, 1);
+        assertEquals(2, batchProcessor.process(Arrays.asList(png, tiff)));
+        assertEquals(10, IJ.openImage(outputDirectory.resolve("a.png.tif").toString()).getProcessor().get(0, 0));
+        assertEquals(20, IJ.openImage(outputDirectory.resolve("a.tif").toString()).getProcessor().get(0, 0));
+    }
+
+    @Test
+    public void imageOverwritingAnEarlierResultFails() throws Exception {
+        Path inputDirectory = folder.newFolder("in").toPath();
+        Path outputDirectory = folder.newFolder("out").toPath();
+        Path tiff = save(inputDirectory.resolve("b.tif"), 30);
+        //b gets .tif appended
+        Path withoutExtension = Files.copy(tiff, inputDirectory.resolve("b"));
+        Path upperCaseTiff = save(inputDirectory.resolve("B.TIF"), 40);
+
+        BatchProcessor batchProcessor = new BatchProcessor(imageProcessor -> imageProcessor.duplicate(),
+                outputDirectory, 2, 1);
+        assertEquals(1, batchProcessor.process(Arrays.asList(tiff, withoutExtension, upperCaseTiff)));
+        assertEquals(30, IJ.openImage(outputDirectory.resolve("b.tif").toString()).getProcessor().get(0, 0));
+        assertFalse(Files.exists(outputDirectory.resolve("B.TIF")));
+    }
+
+    private static Path save(Path path, int value) throws IOException {
+        ByteProcessor imageProcessor = new ByteProcessor(4, 3);
+        imageProcessor.setValue(value);
+        imageProcessor.fill();
+        FileSaver fileSaver = new FileSaver(new ImagePlus("image", imageProcessor));
+        assertTrue(path.toString().endsWith(".png") ? fileSaver.saveAsPng(path.toString()) :
+                fileSaver.saveAsTiff(path.toString()));
+        return path;
+    }
+}
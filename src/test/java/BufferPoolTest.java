@@ -0,0 +1,45 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Pool of its own with room for all the arrays of the tests
+ */
+public class BufferPoolTest {
+    @Test
+    public void releasedArraysAreReused() {
+        BufferPool bufferPool = new BufferPool(1 << 20);
+        byte[] bytes = bufferPool.getBytes(100);
+        int[][] ints = bufferPool.getInts(3, 5);
+        bufferPool.release(bytes);
+        bufferPool.release(ints);
+        assertEquals(100 + 3 * (16 + 4 * 5), bufferPool.getRetainedBytes());
+        assertSame(bytes, bufferPool.getBytes(100));
+        assertSame(ints, bufferPool.getInts(3, 5));
+        assertNotSame(bytes, bufferPool.getBytes(100));
+        assertEquals(0, bufferPool.getRetainedBytes());
+    }
+
+    /**
+     * An array released twice would be taken by two callers at once
+     */
+    @Test
+    public void arraysReleasedTwiceFail() {
+        BufferPool bufferPool = new BufferPool(1 << 20);
+        long[] longs = bufferPool.getLongs(10);
+        long[] otherLongs = bufferPool.getLongs(10);
+        bufferPool.release(longs);
+        bufferPool.release(otherLongs);
+        try {
+            bufferPool.release(longs);
+            fail("Array was released twice");
+        } catch (IllegalStateException e) {
+            assertEquals("Array was released twice", e.getMessage());
+        }
+        assertEquals(2 * 8 * 10, bufferPool.getRetainedBytes());
+        assertNotSame(bufferPool.getLongs(10), bufferPool.getLongs(10));
+    }
+}
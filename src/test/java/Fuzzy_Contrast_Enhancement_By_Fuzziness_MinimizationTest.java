@@ -0,0 +1,242 @@
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the contrast plugin with a copy of its original implementation, which fuzzified, intensified and
+ * defuzzified every pixel with Math.pow and stored the results with ByteProcessor.set
+ */
+public class Fuzzy_Contrast_Enhancement_By_Fuzziness_MinimizationTest {
+    private static final double[] EXPONENTS = {0.5, 1, 2, 3, 7.5, -2, 0, 1e-3, 1e3};
+
+    @Test
+    public void lookupTableMatchesTheReference() {
+        Random random = new Random(1);
+        for (int[] range : new int[][]{{0, 255}, {17, 201}, {100, 101}, {50, 50}, {0, 0}, {255, 255}}) {
+            ImageProcessor image = getImage(64, 37, range[0], range[1], random);
+            for (double fuzzyExponent : EXPONENTS) {
+                assertArrayEquals("range " + range[0] + "-" + range[1] + " exponent " + fuzzyExponent,
+                        getReferencePixels(image, fuzzyExponent),
+                        (byte[]) new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization()
+                                .process(image, fuzzyExponent).getPixels());
+            }
+        }
+    }
+
+    /**
+     * Entries of the table are the levels of the chain wrapped to the bit depth, the way ByteProcessor.set wrapped
+     * them, for 16-bit tables too
+     */
+    @Test
+    public void lookupTableWrapsLevelsToTheBitDepth() {
+        Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization plugin =
+                new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+        for (double fuzzyExponent : EXPONENTS) {
+            for (int[] range : new int[][]{{0, 255}, {3, 250}, {128, 128}, {0, 65535}, {1000, 40000}}) {
+                for (int levels : new int[]{256, 65536}) {
+                    if (range[1] >= levels) {
+                        continue;
+                    }
+                    int[] lookupTable = plugin.getLookupTable(range[0], range[1], fuzzyExponent, levels);
+                    for (int value = range[0]; value <= range[1]; value++) {
+                        int expected = getReferenceLevel(value, range[0], range[1], fuzzyExponent) & (levels - 1);
+                        if (lookupTable[value] != expected) {
+                            fail("range " + range[0] + "-" + range[1] + " exponent " + fuzzyExponent + " levels " +
+                                    levels + " value " + value + ": expected " + expected + " but was " +
+                                    lookupTable[value]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sixteenBitImagesMatchTheReference() {
+        Random random = new Random(2);
+        for (int[] range : new int[][]{{0, 65535}, {1000, 40000}, {300, 301}, {7, 7}}) {
+            ShortProcessor image = new ShortProcessor(53, 31);
+            for (int pixelIndex = 0; pixelIndex < image.getPixelCount(); pixelIndex++) {
+                image.set(pixelIndex, range[0] + random.nextInt(range[1] - range[0] + 1));
+            }
+            image.set(0, range[0]);
+            image.set(1, range[1]);
+            for (double fuzzyExponent : EXPONENTS) {
+                short[] expected = new short[image.getPixelCount()];
+                for (int pixelIndex = 0; pixelIndex < expected.length; pixelIndex++) {
+                    expected[pixelIndex] = (short) getReferenceLevel(image.get(pixelIndex), range[0], range[1],
+                            fuzzyExponent);
+                }
+                assertArrayEquals("range " + range[0] + "-" + range[1] + " exponent " + fuzzyExponent, expected,
+                        (short[]) new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization()
+                                .process(image, fuzzyExponent).getPixels());
+            }
+        }
+    }
+
+    @Test
+    public void thirtyTwoBitImagesMatchTheTransferFunction() {
+        Random random = new Random(3);
+        for (double[] range : new double[][]{{0, 1}, {-1000.5, 2500.25}, {1e-6, 2e-6}}) {
+            float[] pixels = new float[47 * 29];
+            for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+                pixels[pixelIndex] = (float) (range[0] + random.nextDouble() * (range[1] - range[0]));
+            }
+            pixels[0] = (float) range[0];
+            pixels[1] = (float) range[1];
+            double min = pixels[0], max = pixels[1];
+            for (double fuzzyExponent : new double[]{0.5, 1, 2, 3, 7.5}) {
+                float[] enhancedPixels = (float[]) new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization()
+                        .process(new FloatProcessor(47, 29, pixels), fuzzyExponent).getPixels();
+                for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+                    assertEquals("range " + min + "-" + max + " exponent " + fuzzyExponent,
+                            getReferenceFloatLevel(pixels[pixelIndex], min, max, fuzzyExponent),
+                            enhancedPixels[pixelIndex], (max - min) * 1e-5);
+                }
+            }
+        }
+    }
+
+    /**
+     * NaN and infinite pixels don't count in the range, so the other pixels are enhanced as if they weren't there.
+     * Infinite pixels take the ends of the enhanced range.
+     */
+    @Test
+    public void nonFinitePixelsAreIgnored() {
+        Random random = new Random(4);
+        float[] pixels = new float[40 * 20];
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            pixels[pixelIndex] = random.nextFloat() * 100;
+        }
+        float[] nonFinitePixels = pixels.clone();
+        nonFinitePixels[3] = Float.POSITIVE_INFINITY;
+        nonFinitePixels[50] = Float.NEGATIVE_INFINITY;
+        nonFinitePixels[77] = Float.NaN;
+
+        Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization plugin =
+                new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+        FloatProcessor nonFiniteImage = new FloatProcessor(40, 20, nonFinitePixels);
+        assertArrayEquals(plugin.getMinAndMax(new FloatProcessor(40, 20, pixels)),
+                plugin.getMinAndMax(nonFiniteImage), 0);
+
+        float[] expected = (float[]) plugin.process(new FloatProcessor(40, 20, pixels), 2).getPixels();
+        float[] enhancedPixels = (float[]) plugin.process(nonFiniteImage, 2).getPixels();
+        for (int pixelIndex = 0; pixelIndex < pixels.length; pixelIndex++) {
+            if (pixelIndex == 3) {
+                assertEquals(getMax(expected), enhancedPixels[pixelIndex], 0);
+            } else if (pixelIndex == 50) {
+                assertEquals(getMin(expected), enhancedPixels[pixelIndex], 0);
+            } else if (pixelIndex == 77) {
+                assertTrue(Float.isNaN(enhancedPixels[pixelIndex]));
+            } else {
+                assertEquals(expected[pixelIndex], enhancedPixels[pixelIndex], 0);
+            }
+        }
+    }
+
+    private static float getMax(float[] pixels) {
+        float max = -Float.MAX_VALUE;
+        for (float pixel : pixels) {
+            max = Math.max(max, pixel);
+        }
+        return max;
+    }
+
+    private static float getMin(float[] pixels) {
+        float min = Float.MAX_VALUE;
+        for (float pixel : pixels) {
+            min = Math.min(min, pixel);
+        }
+        return min;
+    }
+
+    /**
+     * Noise between min and max, both of them occur
+     */
+    static ImageProcessor getImage(int width, int height, int min, int max, Random random) {
+        ByteProcessor image = new ByteProcessor(width, height);
+        for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++) {
+            image.set(pixelIndex, min + random.nextInt(max - min + 1));
+        }
+        image.set(0, min);
+        image.set(1, max);
+        return image;
+    }
+
+    /**
+     * Enhanced pixels of the original implementation
+     */
+    private static byte[] getReferencePixels(ImageProcessor imageProcessor, double fuzzyExponent) {
+        int width = imageProcessor.getWidth(), height = imageProcessor.getHeight();
+        int max = Integer.MIN_VALUE, min = Integer.MAX_VALUE;
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                int value = imageProcessor.get(columnIndex, rowIndex);
+                max = Math.max(max, value);
+                min = Math.min(min, value);
+            }
+        }
+
+        ByteProcessor enhancedImageProcessor = new ByteProcessor(width, height);
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                enhancedImageProcessor.set(columnIndex, rowIndex, getReferenceLevel(
+                        imageProcessor.get(columnIndex, rowIndex), min, max, fuzzyExponent));
+            }
+        }
+        return (byte[]) enhancedImageProcessor.getPixels();
+    }
+
+    /**
+     * Fuzzification, intensification and defuzzification of a single pixel of the original implementation
+     */
+    private static int getReferenceLevel(int value, int min, int max, double fuzzyExponent) {
+        double crossoverPoint = min + ((max - min + 1) / 2);
+        double fuzzyDenominator = (max - crossoverPoint) / (Math.pow(2, (1 / fuzzyExponent)) - 1);
+        //minimum allowed membership value
+        double alpha = Math.pow(1.0 + (max - min) / fuzzyDenominator, -fuzzyExponent);
+
+        double membershipValue = (Math.pow((1 + ((max - value) / fuzzyDenominator)), -fuzzyExponent));
+
+        if (membershipValue <= 0.5) {
+            membershipValue = 2 * Math.pow(membershipValue, 2);
+        } else {
+            membershipValue = 1 - 2 * (Math.pow(1 - membershipValue, 2));
+        }
+        if (membershipValue < alpha) {
+            membershipValue = alpha;
+        }
+
+        return (int) (max - (fuzzyDenominator * ((Math.pow(membershipValue, (-1 / fuzzyExponent))) - 1)));
+    }
+
+    /**
+     * The same chain for 32-bit pixels, without rounding the crossover point and the result
+     */
+    private static double getReferenceFloatLevel(double value, double min, double max, double fuzzyExponent) {
+        double crossoverPoint = min + (max - min) / 2;
+        double fuzzyDenominator = (max - crossoverPoint) / (Math.pow(2, (1 / fuzzyExponent)) - 1);
+        double alpha = Math.pow(1.0 + (max - min) / fuzzyDenominator, -fuzzyExponent);
+
+        double membershipValue = (Math.pow((1 + ((max - value) / fuzzyDenominator)), -fuzzyExponent));
+        if (membershipValue <= 0.5) {
+            membershipValue = 2 * Math.pow(membershipValue, 2);
+        } else {
+            membershipValue = 1 - 2 * (Math.pow(1 - membershipValue, 2));
+        }
+        if (membershipValue < alpha) {
+            membershipValue = alpha;
+        }
+
+        return max - (fuzzyDenominator * ((Math.pow(membershipValue, (-1 / fuzzyExponent))) - 1));
+    }
+}
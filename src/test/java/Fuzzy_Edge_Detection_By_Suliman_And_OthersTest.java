@@ -0,0 +1,305 @@
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the Suliman plugin with a copy of its original per-pixel implementation, which computed the memberships
+ * of every pixel to every class with square roots and picked the first of the largest ones
+ */
+public class Fuzzy_Edge_Detection_By_Suliman_And_OthersTest {
+    private static final int[][] SIZES = {{1, 1}, {1, 37}, {37, 1}, {2, 2}, {3, 40}, {40, 3}, {64, 48}, {131, 77}};
+
+    @Test
+    public void eightBitImagesMatchTheReference() {
+        for (int[] size : SIZES) {
+            assertMatchesReference(getImage(8, size[0], size[1], 1), getCenters(4, 48), 240);
+        }
+    }
+
+    @Test
+    public void sixteenAndThirtyTwoBitImagesMatchTheReference() {
+        for (int bitDepth : new int[]{16, 32}) {
+            for (int[] size : SIZES) {
+                assertMatchesReference(getImage(bitDepth, size[0], size[1], 2), getCenters(4, 48), 240);
+            }
+        }
+    }
+
+    @Test
+    public void sixteenBitLevelsAreTheEightBitOnes() {
+        //pixels from 0 to 255 are binned to themselves
+        ImageProcessor byteImage = getImage(8, 64, 48, 3);
+        byteImage.set(0, 0);
+        byteImage.set(1, 255);
+        int[][] centers = getCenters(4, 48);
+        assertArrayEquals(process(byteImage, centers, 240, false, 1),
+                process(byteImage.convertToShort(false), centers, 240, false, 1));
+    }
+
+    @Test
+    public void squaredDistanceBoundsMatchTheReference() {
+        ImageProcessor image = getImage(8, 64, 48, 4);
+        //the largest parameters classified by squared distances and the smallest ones falling back to memberships
+        for (int weight : new int[]{1, 2, 65535, 65536}) {
+            assertMatchesReference(image, getCenters(4, 48), weight);
+        }
+        for (int center : new int[]{16384, 16385, -16384, -16385}) {
+            assertMatchesReference(image, getCenters(4, center), 240);
+            assertMatchesReference(image, getCenters(center, 48), 65535);
+        }
+    }
+
+    @Test
+    public void membershipFallbackMatchesTheReference() {
+        for (int[] size : SIZES) {
+            ImageProcessor image = getImage(8, size[0], size[1], 5);
+            for (int weight : new int[]{-240, 0, 100000}) {
+                assertMatchesReference(image, getCenters(4, 48), weight);
+            }
+            assertMatchesReference(image, getCenters(-20000, 20000), 240);
+            //squared distances overflowing int, the same way they did in the original implementation
+            assertMatchesReference(image, getCenters(4, 30000), 240);
+            assertMatchesReference(getImage(16, size[0], size[1], 6), getCenters(4, 20000), 70000);
+        }
+    }
+
+    @Test
+    public void firstOfEqualMembershipsWins() {
+        ImageProcessor image = getImage(8, 64, 48, 7);
+        //every membership is zero unless the input vector is a center, so almost every pixel is a tie
+        assertMatchesReference(image, getCenters(4, 48), 1);
+        //pixels whose closest center is at exactly the weight have zero memberships only
+        ImageProcessor noiseImage = getNoiseImage(64, 48, 10, 8);
+        for (int weight = 1; weight <= 6; weight++) {
+            assertMatchesReference(noiseImage, getCenters(2, 6), weight);
+        }
+        //equal centers of different classes
+        assertMatchesReference(image, getCenters(20, 20), 240);
+        assertMatchesReference(image, new int[][]{{4, 4, 4, 4}, {48, 48, 48, 4}, {48, 48, 48, 48}, {4, 48, 48, 48},
+                {48, 48, 48, 4}, {4, 48, 48, 48}}, 240);
+        assertMatchesReference(image, new int[][]{{40, 40, 40, 40}, {4, 48, 48, 48}, {48, 4, 48, 48},
+                {48, 48, 4, 48}, {48, 48, 48, 4}, {40, 40, 40, 40}}, 60000);
+    }
+
+    @Test
+    public void sweepMatchesSeparateRuns() {
+        int[][] parameterTuples = {{4, 48, 240}, {2, 30, 100}, {10, 60, 500}, {4, 48, 1}, {20, 20, 240}};
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            for (int[] size : new int[][]{{1, 1}, {3, 40}, {131, 77}}) {
+                ImageProcessor image = getImage(bitDepth, size[0], size[1], 9);
+                for (int threads : new int[]{1, 3}) {
+                    Fuzzy_Edge_Detection_By_Suliman_And_Others plugin =
+                            new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+                    plugin.threads = threads;
+                    ImagePlus[] finalImagePluses = plugin.sweep(image, parameterTuples);
+                    for (int tupleIndex = 0; tupleIndex < parameterTuples.length; tupleIndex++) {
+                        int[] parameterTuple = parameterTuples[tupleIndex];
+                        assertArrayEquals(bitDepth + "-bit " + size[0] + "x" + size[1] + " threads " + threads +
+                                        " parameters " + Arrays.toString(parameterTuple),
+                                process(image, getCenters(parameterTuple[0], parameterTuple[1]), parameterTuple[2],
+                                        false, 1),
+                                (byte[]) finalImagePluses[tupleIndex].getProcessor().getPixels());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the classes of the pixels, which the suppression and the isolated pixels removal may hide, and the
+     * final images of both modes
+     */
+    private static void assertMatchesReference(ImageProcessor image, int[][] centers, int weight) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[][][] expectedInputVector = new int[height][width][4];
+        int[][] expectedClasses = getReferenceClasses(GreyLevels.of(image), centers, weight, expectedInputVector);
+        byte[] expected = getReferenceEdges(expectedInputVector, expectedClasses);
+        for (int threads : new int[]{1, 3}) {
+            String message = image.getBitDepth() + "-bit " + width + "x" + height + " weight " + weight +
+                    " centers " + Arrays.deepToString(centers) + " threads " + threads;
+            Fuzzy_Edge_Detection_By_Suliman_And_Others plugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+            plugin.threads = threads;
+            int[][][] inputVector = new int[height][width][4];
+            int[][] classes = new int[height][width];
+            plugin.pixelClassification(image, inputVector, classes, centers, weight);
+            assertArrayEquals(message, expectedInputVector, inputVector);
+            assertArrayEquals(message, expectedClasses, classes);
+
+            for (boolean streaming : new boolean[]{false, true}) {
+                assertArrayEquals(message + " streaming " + streaming, expected,
+                        process(image, centers, weight, streaming, threads));
+            }
+        }
+    }
+
+    private static byte[] process(ImageProcessor image, int[][] centers, int weight, boolean streaming, int threads) {
+        Fuzzy_Edge_Detection_By_Suliman_And_Others plugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+        plugin.threads = threads;
+        return (byte[]) plugin.process(image, centers, weight, streaming).getPixels();
+    }
+
+    private static int[][] getCenters(int lowValue, int highValue) {
+        return new Fuzzy_Edge_Detection_By_Suliman_And_Others().getCentersOfClasses(lowValue, highValue);
+    }
+
+    /**
+     * Stripes and blocks of different contrasts with noise, so that every class occurs
+     */
+    private static ImageProcessor getImage(int bitDepth, int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int level = ((x / 7 + y / 5) % 2) * (x < width / 2 ? 60 : 20) + (x == y % 11 ? 90 : 0) + 50;
+                pixels[y * width + x] = level + random.nextInt(12);
+            }
+        }
+        FloatProcessor image = new FloatProcessor(width, height, pixels);
+        switch (bitDepth) {
+            case 8:
+                return image.convertToByte(false);
+            case 16:
+                //levels spread over the 16-bit range, so that they are binned
+                image.multiply(211);
+                return image.convertToShort(false);
+            default:
+                image.multiply(-0.37);
+                return image;
+        }
+    }
+
+    private static ImageProcessor getNoiseImage(int width, int height, int amplitude, long seed) {
+        Random random = new Random(seed);
+        ByteProcessor image = new ByteProcessor(width, height);
+        for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++) {
+            image.set(pixelIndex, 100 + random.nextInt(amplitude + 1));
+        }
+        return image;
+    }
+
+    /**
+     * Classification of the original implementation, reading the grey levels 16 and 32-bit images are binned to
+     * @param inputVector height x width x 4 array the input vectors are stored to
+     */
+    private static int[][] getReferenceClasses(GreyLevels greyLevels, int[][] centersOfClasses, int weight,
+                                               int[][][] inputVector) {
+        int width = greyLevels.getWidth();
+        int height = greyLevels.getHeight();
+        int[][] classes = new int[height][width];
+
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                int[][] neighbours = new int[3][3];
+                for (int relativeRowIndex = -1; relativeRowIndex < 2; relativeRowIndex++) {
+                    for (int relativeColumnIndex = -1; relativeColumnIndex < 2; relativeColumnIndex++) {
+                        int xCoordinate = Math.min(Math.max(columnIndex + relativeColumnIndex, 0), width - 1);
+                        int yCoordinate = Math.min(Math.max(rowIndex + relativeRowIndex, 0), height - 1);
+                        neighbours[relativeRowIndex + 1][relativeColumnIndex + 1] = greyLevels.get(xCoordinate,
+                                yCoordinate);
+                    }
+                }
+
+                int p5 = neighbours[1][1];
+                int[] vector = inputVector[rowIndex][columnIndex];
+                vector[0] = Math.abs(neighbours[0][0] - p5) + Math.abs(neighbours[2][2] - p5);
+                vector[1] = Math.abs(neighbours[0][1] - p5) + Math.abs(neighbours[2][1] - p5);
+                vector[2] = Math.abs(neighbours[0][2] - p5) + Math.abs(neighbours[2][0] - p5);
+                vector[3] = Math.abs(neighbours[1][0] - p5) + Math.abs(neighbours[1][2] - p5);
+
+                double[] membershipFunctionValuesArray = new double[6];
+                for (int centerOfClassesIndex = 0; centerOfClassesIndex < centersOfClasses.length;
+                     centerOfClassesIndex++) {
+                    int sumOfSquares = 0;
+                    for (int differencesIndex = 0; differencesIndex < 4; differencesIndex++) {
+                        int difference = vector[differencesIndex] -
+                                centersOfClasses[centerOfClassesIndex][differencesIndex];
+                        sumOfSquares += difference * difference;
+                    }
+                    membershipFunctionValuesArray[centerOfClassesIndex] = Math.max(0,
+                            1 - Math.sqrt(sumOfSquares) / weight);
+                }
+
+                int maxIndex = -1;
+                double maxValue = Integer.MIN_VALUE;
+                for (int membershipFunctionValuesIndex = 0; membershipFunctionValuesIndex <
+                        membershipFunctionValuesArray.length; membershipFunctionValuesIndex++) {
+                    if (membershipFunctionValuesArray[membershipFunctionValuesIndex] > maxValue) {
+                        maxIndex = membershipFunctionValuesIndex;
+                        maxValue = membershipFunctionValuesArray[membershipFunctionValuesIndex];
+                    }
+                }
+                classes[rowIndex][columnIndex] = maxIndex;
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Non-maximum suppression and isolated pixels removal of the original implementation
+     */
+    private static byte[] getReferenceEdges(int[][][] inputVector, int[][] classes) {
+        int width = inputVector[0].length;
+        int height = inputVector.length;
+
+        //non-maximum suppression across the edge direction of the class, class 5 is always an edge
+        int[][] edges = new int[height][width];
+        int[][] directions = {null, {-1, 1, 2}, {0, -1, 3}, {-1, -1, 0}, {-1, 0, 1}};
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                int pixelClass = classes[rowIndex][columnIndex];
+                if (pixelClass == 5) {
+                    edges[rowIndex][columnIndex] = 255;
+                } else if (pixelClass > 0) {
+                    int rowOffset = directions[pixelClass][0];
+                    int columnOffset = directions[pixelClass][1];
+                    int index = directions[pixelClass][2];
+                    int value = inputVector[rowIndex][columnIndex][index];
+                    int neighbour1Value = getComponent(inputVector, rowIndex + rowOffset, columnIndex + columnOffset,
+                            index);
+                    int neighbour2Value = getComponent(inputVector, rowIndex - rowOffset, columnIndex - columnOffset,
+                            index);
+                    edges[rowIndex][columnIndex] = value > neighbour1Value && value > neighbour2Value ? 255 : 0;
+                }
+            }
+        }
+
+        //removal of edge pixels without edge neighbours
+        byte[] finalPixels = new byte[width * height];
+        for (int rowIndex = 0; rowIndex < height; rowIndex++) {
+            for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                if (edges[rowIndex][columnIndex] != 255) {
+                    continue;
+                }
+                boolean isNeighbourWhite = false;
+                for (int y = Math.max(rowIndex - 1, 0); y <= Math.min(rowIndex + 1, height - 1); y++) {
+                    for (int x = Math.max(columnIndex - 1, 0); x <= Math.min(columnIndex + 1, width - 1); x++) {
+                        if ((y != rowIndex || x != columnIndex) && edges[y][x] == 255) {
+                            isNeighbourWhite = true;
+                        }
+                    }
+                }
+                finalPixels[rowIndex * width + columnIndex] = (byte) (isNeighbourWhite ? 255 : 0);
+            }
+        }
+        return finalPixels;
+    }
+
+    /**
+     * @return component of the input vector, Integer.MIN_VALUE beyond the image borders
+     */
+    private static int getComponent(int[][][] inputVector, int rowIndex, int columnIndex, int index) {
+        if (rowIndex < 0 || rowIndex >= inputVector.length || columnIndex < 0 ||
+                columnIndex >= inputVector[0].length) {
+            return Integer.MIN_VALUE;
+        }
+        return inputVector[rowIndex][columnIndex][index];
+    }
+}
@@ -0,0 +1,73 @@
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares batches of the perceptron with FeedforwardNetwork evaluating the inputs one by one, with the same weights
+ */
+public class MultilayerPerceptronTest {
+    private static final int[][] LAYER_SIZES = {{4, 12, 4}, {9, 5, 9}, {1, 1}, {25, 40, 10, 25}};
+    /** around multiples of the block size of the perceptron **/
+    private static final int[] BATCH_SIZES = {1, 2, 63, 64, 65, 127, 128, 129};
+
+    @Test
+    public void batchesMatchTheNetwork() {
+        Random random = new Random(1);
+        for (int[] layerSizes : LAYER_SIZES) {
+            NetworkWeights weights = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(layerSizes,
+                    random);
+            FeedforwardNetwork network = weights.toNetwork();
+            MultilayerPerceptron perceptron = new MultilayerPerceptron(weights);
+            int inputSize = perceptron.getInputSize();
+            int outputSize = perceptron.getOutputSize();
+
+            for (int batchSize : BATCH_SIZES) {
+                double[] inputs = new double[batchSize * inputSize];
+                for (int inputIndex = 0; inputIndex < inputs.length; inputIndex++) {
+                    inputs[inputIndex] = random.nextDouble();
+                }
+                double[] expected = new double[batchSize * outputSize];
+                for (int batchIndex = 0; batchIndex < batchSize; batchIndex++) {
+                    double[] input = new double[inputSize];
+                    System.arraycopy(inputs, batchIndex * inputSize, input, 0, inputSize);
+                    System.arraycopy(network.computeOutputs(input), 0, expected, batchIndex * outputSize,
+                            outputSize);
+                }
+
+                //outputs of an earlier batch are overwritten
+                double[] outputs = new double[batchSize * outputSize];
+                Arrays.fill(outputs, Double.NaN);
+                perceptron.compute(inputs, outputs, batchSize);
+                assertArrayEquals("layers " + Arrays.toString(layerSizes) + " batch " + batchSize,
+                        expected, outputs, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void shippedWeightsMatchTheNetwork() {
+        MultilayerPerceptron perceptron = NetworkCache.getPerceptron("weights.bin", "weights.txt");
+        FeedforwardNetwork network = NetworkCache.getNetwork("weights.bin", "weights.txt");
+        double[] inputs = new double[65 * perceptron.getInputSize()];
+        Random random = new Random(2);
+        for (int inputIndex = 0; inputIndex < inputs.length; inputIndex++) {
+            inputs[inputIndex] = random.nextInt(2);
+        }
+        double[] outputs = new double[65 * perceptron.getOutputSize()];
+        perceptron.compute(inputs, outputs, 65);
+
+        synchronized (network) {
+            for (int batchIndex = 0; batchIndex < 65; batchIndex++) {
+                double[] input = new double[perceptron.getInputSize()];
+                System.arraycopy(inputs, batchIndex * input.length, input, 0, input.length);
+                double[] output = new double[perceptron.getOutputSize()];
+                System.arraycopy(outputs, batchIndex * output.length, output, 0, output.length);
+                assertArrayEquals("input " + batchIndex, network.computeOutputs(input), output, 1e-12);
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the rule tables with the same operations looking at the 8 neighbours of every pixel one at a time, and the
+ * thinning with a textbook Zhang-Suen implementation, pixels beyond the borders being black for both
+ */
+public class NeighbourhoodRulesTest {
+    private static final int[] SIZES = {1, 2, 3, 17, 40};
+    private static final int[][] NEIGHBOURS = {{0, -1}, {1, -1}, {1, 0}, {1, 1}, {0, 1}, {-1, 1}, {-1, 0}, {-1, -1}};
+
+    @Test
+    public void dilationAndErosionMatchTheReference() {
+        Random random = new Random(1);
+        for (int width : SIZES) {
+            for (int height : SIZES) {
+                for (int density : new int[]{1, 2, 6, 30}) {
+                    ByteProcessor image = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getBinaryImage(width,
+                            height, density, random);
+                    for (int threads : new int[]{1, 3}) {
+                        String message = width + "x" + height + " density " + density + " threads " + threads;
+                        assertArrayEquals("dilation " + message, getReferenceResult(image, false),
+                                apply(NeighbourhoodRules.DILATION, image, threads));
+                        assertArrayEquals("erosion " + message, getReferenceResult(image, true),
+                                apply(NeighbourhoodRules.EROSION, image, threads));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void singlePixelsDilateToTheirNeighbourhoodWithinTheBorders() {
+        int width = 9, height = 7;
+        for (int[] pixel : new int[][]{{4, 3}, {0, 0}, {8, 0}, {0, 6}, {8, 6}, {4, 0}, {0, 3}}) {
+            ByteProcessor image = new ByteProcessor(width, height);
+            image.set(pixel[0], pixel[1], 255);
+            ByteProcessor expected = new ByteProcessor(width, height);
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if (pixel[0] + dx >= 0 && pixel[0] + dx < width && pixel[1] + dy >= 0 && pixel[1] + dy < height) {
+                        expected.set(pixel[0] + dx, pixel[1] + dy, 255);
+                    }
+                }
+            }
+            assertArrayEquals(pixel[0] + "," + pixel[1], (byte[]) expected.getPixels(),
+                    apply(NeighbourhoodRules.DILATION, image, 1));
+            //a single white pixel has black neighbours
+            assertArrayEquals(pixel[0] + "," + pixel[1], new byte[width * height],
+                    apply(NeighbourhoodRules.EROSION, image, 1));
+        }
+    }
+
+    @Test
+    public void erosionTreatsTheBordersAsBlack() {
+        int width = 9, height = 7;
+        ByteProcessor image = new ByteProcessor(width, height);
+        image.invert();
+        ByteProcessor expected = new ByteProcessor(width, height);
+        expected.setValue(255);
+        expected.fill(new Roi(1, 1, width - 2, height - 2));
+        assertArrayEquals((byte[]) expected.getPixels(), apply(NeighbourhoodRules.EROSION, image, 1));
+
+        //and a black pixel inside erodes its neighbourhood
+        image.set(4, 3, 0);
+        expected.setValue(0);
+        expected.fill(new Roi(3, 2, 3, 3));
+        assertArrayEquals((byte[]) expected.getPixels(), apply(NeighbourhoodRules.EROSION, image, 1));
+        assertArrayEquals(new byte[width], apply(NeighbourhoodRules.EROSION, new ByteProcessor(width, 1), 1));
+    }
+
+    @Test
+    public void thinningLeavesLinesOnePixelWide() {
+        int width = 30, height = 11;
+        ByteProcessor image = new ByteProcessor(width, height);
+        image.setValue(255);
+        image.fill(new Roi(3, 3, 24, 5));
+        byte[] thinnedPixels = NeighbourhoodRules.thin((byte[]) image.getPixels(), width, height,
+                new RowBandScheduler(1));
+        assertArrayEquals(getReferenceThinnedPixels(image), thinnedPixels);
+        //every column of the bar away from its ends is crossed by the line once
+        for (int x = 6; x < width - 6; x++) {
+            int whitePixels = 0;
+            for (int y = 0; y < height; y++) {
+                whitePixels += thinnedPixels[y * width + x] != 0 ? 1 : 0;
+            }
+            assertEquals("column " + x, 1, whitePixels);
+        }
+
+        //lines one pixel wide are kept as they are
+        ByteProcessor line = new ByteProcessor(width, height);
+        for (int x = 0; x < height; x++) {
+            line.set(x, x, 255);
+            line.set(width - 1, x, 255);
+        }
+        assertArrayEquals((byte[]) line.getPixels(), NeighbourhoodRules.thin((byte[]) line.getPixels(), width, height,
+                new RowBandScheduler(1)));
+    }
+
+    @Test
+    public void thinningMatchesTheReference() {
+        Random random = new Random(2);
+        for (int width : SIZES) {
+            for (int height : SIZES) {
+                ByteProcessor image = getBlobs(width, height, random);
+                byte[] expected = getReferenceThinnedPixels(image);
+                for (int threads : new int[]{1, 3}) {
+                    assertArrayEquals(width + "x" + height + " threads " + threads, expected, NeighbourhoodRules.thin(
+                            (byte[]) image.getPixels(), width, height, new RowBandScheduler(threads)));
+                }
+            }
+        }
+    }
+
+    private static byte[] apply(NeighbourhoodRules rules, ByteProcessor image, int threads) {
+        byte[] result = new byte[image.getPixelCount()];
+        rules.apply((byte[]) image.getPixels(), image.getWidth(), image.getHeight(), result,
+                new RowBandScheduler(threads));
+        return result;
+    }
+
+    /**
+     * White rectangles of up to 8x8 pixels, overlapping and clipped at the borders
+     */
+    private static ByteProcessor getBlobs(int width, int height, Random random) {
+        ByteProcessor image = new ByteProcessor(width, height);
+        image.setValue(255);
+        for (int blobIndex = 0; blobIndex < width * height / 40 + 1; blobIndex++) {
+            image.fill(new Roi(random.nextInt(width) - 2, random.nextInt(height) - 2,
+                    1 + random.nextInt(8), 1 + random.nextInt(8)));
+        }
+        return image;
+    }
+
+    private static boolean isWhite(ByteProcessor image, int x, int y) {
+        return x >= 0 && x < image.getWidth() && y >= 0 && y < image.getHeight() && image.get(x, y) >= 128;
+    }
+
+    /**
+     * Dilation, or erosion, of every pixel by its 8 neighbours
+     */
+    private static byte[] getReferenceResult(ByteProcessor image, boolean erosion) {
+        ByteProcessor result = new ByteProcessor(image.getWidth(), image.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                boolean white = isWhite(image, x, y);
+                for (int[] neighbour : NEIGHBOURS) {
+                    boolean neighbourWhite = isWhite(image, x + neighbour[0], y + neighbour[1]);
+                    white = erosion ? white && neighbourWhite : white || neighbourWhite;
+                }
+                result.set(x, y, white ? 255 : 0);
+            }
+        }
+        return (byte[]) result.getPixels();
+    }
+
+    /**
+     * Zhang-Suen thinning, every subiteration marks the pixels to remove and then removes them
+     */
+    private static byte[] getReferenceThinnedPixels(ByteProcessor image) {
+        int width = image.getWidth(), height = image.getHeight();
+        ByteProcessor current = new ByteProcessor(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                current.set(x, y, isWhite(image, x, y) ? 255 : 0);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int step = 0; step < 2; step++) {
+                boolean[] removed = new boolean[width * height];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (!isWhite(current, x, y)) {
+                            continue;
+                        }
+                        //P2..P9 clockwise from the top
+                        int[] p = new int[8];
+                        int whiteNeighbours = 0;
+                        for (int neighbourIndex = 0; neighbourIndex < 8; neighbourIndex++) {
+                            p[neighbourIndex] = isWhite(current, x + NEIGHBOURS[neighbourIndex][0],
+                                    y + NEIGHBOURS[neighbourIndex][1]) ? 1 : 0;
+                            whiteNeighbours += p[neighbourIndex];
+                        }
+                        int transitions = 0;
+                        for (int neighbourIndex = 0; neighbourIndex < 8; neighbourIndex++) {
+                            if (p[neighbourIndex] == 0 && p[(neighbourIndex + 1) % 8] == 1) {
+                                transitions++;
+                            }
+                        }
+                        boolean condition = step == 0 ? p[0] * p[2] * p[4] == 0 && p[2] * p[4] * p[6] == 0 :
+                                p[0] * p[2] * p[6] == 0 && p[0] * p[4] * p[6] == 0;
+                        removed[y * width + x] = whiteNeighbours >= 2 && whiteNeighbours <= 6 && transitions == 1 &&
+                                condition;
+                    }
+                }
+                for (int pixelIndex = 0; pixelIndex < removed.length; pixelIndex++) {
+                    if (removed[pixelIndex]) {
+                        current.set(pixelIndex, 0);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return (byte[]) current.getPixels();
+    }
+}
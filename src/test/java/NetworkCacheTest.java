@@ -0,0 +1,157 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Weights resources of a temporary directory, looked up by a class loader of their own
+ */
+public class NetworkCacheTest {
+    private static final int[] LAYER_SIZES = {4, 12, 4};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unchangedResourcesAreNotReadAgain() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path textPath = directory.resolve("weights.txt");
+        ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(LAYER_SIZES, new Random(1))
+                .writeText(textPath);
+        ClassLoader classLoader = getClassLoader(directory);
+
+        MultilayerPerceptron perceptron = NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt");
+        assertSame(perceptron, NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt"));
+
+        //invalid weights of the same size and modification time aren't noticed, so they aren't read
+        FileTime modificationTime = Files.getLastModifiedTime(textPath);
+        byte[] invalidWeights = new byte[(int) Files.size(textPath)];
+        Arrays.fill(invalidWeights, (byte) 'x');
+        Files.write(textPath, invalidWeights);
+        Files.setLastModifiedTime(textPath, modificationTime);
+        assertSame(perceptron, NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt"));
+
+        Files.setLastModifiedTime(textPath, FileTime.fromMillis(modificationTime.toMillis() + 2000));
+        try {
+            NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt");
+            fail("Invalid weights were read");
+        } catch (IllegalStateException e) {
+            assertNotNull(e.getCause());
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("weights.txt: "));
+        }
+    }
+
+    @Test
+    public void changedResourcesAreReadAgain() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path textPath = directory.resolve("weights.txt");
+        NetworkWeights weights = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(LAYER_SIZES,
+                new Random(2));
+        weights.writeText(textPath);
+        ClassLoader classLoader = getClassLoader(directory);
+        MultilayerPerceptron perceptron = NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt");
+        FileTime modificationTime = Files.getLastModifiedTime(textPath);
+
+        NetworkWeights retrainedWeights = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(
+                LAYER_SIZES, new Random(3));
+        retrainedWeights.writeText(textPath);
+        Files.setLastModifiedTime(textPath, FileTime.fromMillis(modificationTime.toMillis() + 2000));
+        MultilayerPerceptron retrainedPerceptron = NetworkCache.getPerceptron(classLoader, "weights.bin",
+                "weights.txt");
+        assertNotSame(perceptron, retrainedPerceptron);
+        assertEquals(NetworkWeights.getTextChecksum(ByteBuffer.wrap(Files.readAllBytes(textPath))),
+                NetworkCache.getChecksum(classLoader, "weights.bin", "weights.txt"));
+
+        //the same contents written again keep the networks
+        retrainedWeights.writeText(textPath);
+        Files.setLastModifiedTime(textPath, FileTime.fromMillis(modificationTime.toMillis() + 4000));
+        assertSame(retrainedPerceptron, NetworkCache.getPerceptron(classLoader, "weights.bin", "weights.txt"));
+    }
+
+    @Test
+    public void staleBinaryWeightsAreIgnored() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path textPath = directory.resolve("weights.txt");
+        Path binaryPath = directory.resolve("weights.bin");
+        NetworkWeights weights = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(LAYER_SIZES,
+                new Random(4));
+        weights.writeText(textPath);
+        long textChecksum = NetworkWeights.getTextChecksum(ByteBuffer.wrap(Files.readAllBytes(textPath)));
+        ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(LAYER_SIZES, new Random(5))
+                .writeBinary(binaryPath, textChecksum + 1);
+        ClassLoader classLoader = getClassLoader(directory);
+
+        assertEquals(textChecksum, NetworkCache.getChecksum(classLoader, "weights.bin", "weights.txt"));
+
+        weights.writeBinary(binaryPath, textChecksum);
+        Files.setLastModifiedTime(binaryPath, FileTime.fromMillis(Files.getLastModifiedTime(binaryPath).toMillis() +
+                2000));
+        assertEquals(NetworkWeights.getTextChecksum(ByteBuffer.wrap(Files.readAllBytes(binaryPath))),
+                NetworkCache.getChecksum(classLoader, "weights.bin", "weights.txt"));
+    }
+
+    @Test
+    public void greyscaleWeightsHaveTheirOwnResources() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path textPath = directory.resolve("weights.txt");
+        ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(LAYER_SIZES, new Random(6))
+                .writeText(textPath);
+        long textChecksum = NetworkWeights.getTextChecksum(ByteBuffer.wrap(Files.readAllBytes(textPath)));
+        ClassLoader classLoader = getClassLoader(directory);
+        String[] weights = ANN_Edge_Detection_By_Mehrara_And_Zahedinejad.WEIGHTS;
+        String[] greyscaleWeights = ANN_Edge_Detection_By_Mehrara_And_Zahedinejad.GREYSCALE_WEIGHTS;
+
+        //until greyscale weights are there, the binarised mode's ones are used
+        assertEquals(textChecksum, NetworkCache.getChecksum(classLoader, greyscaleWeights));
+
+        Path greyscaleTextPath = directory.resolve("greyscale_weights.txt");
+        NetworkWeights greyscaleNetworkWeights = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getRandomWeights(
+                LAYER_SIZES, new Random(7));
+        greyscaleNetworkWeights.writeText(greyscaleTextPath);
+        long greyscaleTextChecksum = NetworkWeights.getTextChecksum(ByteBuffer.wrap(
+                Files.readAllBytes(greyscaleTextPath)));
+        assertEquals(greyscaleTextChecksum, NetworkCache.getChecksum(classLoader, greyscaleWeights));
+        assertEquals(textChecksum, NetworkCache.getChecksum(classLoader, weights));
+        assertNotSame(NetworkCache.getPerceptron(classLoader, weights),
+                NetworkCache.getPerceptron(classLoader, greyscaleWeights));
+
+        //binary greyscale weights are checked against the greyscale text ones
+        Path greyscaleBinaryPath = directory.resolve("greyscale_weights.bin");
+        greyscaleNetworkWeights.writeBinary(greyscaleBinaryPath, textChecksum);
+        assertEquals(greyscaleTextChecksum, NetworkCache.getChecksum(classLoader, greyscaleWeights));
+        greyscaleNetworkWeights.writeBinary(greyscaleBinaryPath, greyscaleTextChecksum);
+        Files.setLastModifiedTime(greyscaleBinaryPath, FileTime.fromMillis(
+                Files.getLastModifiedTime(greyscaleBinaryPath).toMillis() + 2000));
+        assertEquals(NetworkWeights.getTextChecksum(ByteBuffer.wrap(Files.readAllBytes(greyscaleBinaryPath))),
+                NetworkCache.getChecksum(classLoader, greyscaleWeights));
+    }
+
+    @Test
+    public void missingResourcesFail() throws Exception {
+        try {
+            NetworkCache.getPerceptron(getClassLoader(folder.getRoot().toPath()), "weights.bin", "weights.txt");
+            fail("Missing weights were found");
+        } catch (IllegalStateException e) {
+            assertEquals("None of the weights resources can be read: weights.bin, weights.txt", e.getMessage());
+        }
+    }
+
+    static ClassLoader getClassLoader(Path directory) throws Exception {
+        return new URLClassLoader(new URL[]{directory.toUri().toURL()}, null);
+    }
+}
@@ -0,0 +1,114 @@
+import com.heatonresearch.book.introneuralnet.neural.feedforward.FeedforwardNetwork;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trains a small network on the edges of a bright rectangle, with a fixed seed
+ */
+public class NetworkTrainerTest {
+    private static final int[] LAYER_SIZES = {4, 6, 4};
+    private static final int EPOCHS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void trainingReducesTheErrorWhateverTheThreads() throws Exception {
+        NetworkTrainer.TrainingPatches patches = getPatches();
+        assertEquals(3000, patches.getCount());
+
+        double[] expectedErrors = null;
+        NetworkWeights expectedWeights = null;
+        for (int threads : new int[]{1, 3, 8}) {
+            double[] errors = new double[EPOCHS];
+            NetworkTrainer trainer = new NetworkTrainer(LAYER_SIZES, new Random(2), threads);
+            Random random = new Random(3);
+            try {
+                for (int epoch = 0; epoch < EPOCHS; epoch++) {
+                    errors[epoch] = trainer.train(patches, 100, 0.5, 0.9, random);
+                }
+            } finally {
+                trainer.shutdown();
+            }
+            NetworkWeights weights = trainer.getWeights();
+
+            if (expectedWeights == null) {
+                assertTrue("errors " + errors[0] + " to " + errors[EPOCHS - 1], errors[EPOCHS - 1] < errors[0]);
+                expectedErrors = errors;
+                expectedWeights = weights;
+            } else {
+                assertArrayEquals("threads " + threads, expectedErrors, errors, 0);
+                for (int matrixIndex = 0; matrixIndex < weights.getMatrices().length; matrixIndex++) {
+                    for (int rowIndex = 0; rowIndex < weights.getMatrices()[matrixIndex].length; rowIndex++) {
+                        assertArrayEquals("threads " + threads + " matrix " + matrixIndex + " row " + rowIndex,
+                                expectedWeights.getMatrices()[matrixIndex][rowIndex],
+                                weights.getMatrices()[matrixIndex][rowIndex], 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void writtenWeightsAreLoadedByThePlugin() throws Exception {
+        NetworkTrainer trainer = new NetworkTrainer(LAYER_SIZES, new Random(4), 2);
+        try {
+            trainer.train(getPatches(), 100, 0.5, 0.9, new Random(5));
+        } finally {
+            trainer.shutdown();
+        }
+        Path directory = folder.newFolder("weights").toPath();
+        trainer.getWeights().write(directory.resolve("weights.txt"));
+
+        ClassLoader classLoader = NetworkCacheTest.getClassLoader(directory);
+        FeedforwardNetwork network = NetworkCache.getNetwork(classLoader, "weights.bin", "weights.txt");
+        MultilayerPerceptron perceptron = new MultilayerPerceptron(trainer.getWeights());
+        //every binary window
+        for (int window = 0; window < 16; window++) {
+            double[] inputs = new double[4];
+            for (int inputIndex = 0; inputIndex < 4; inputIndex++) {
+                inputs[inputIndex] = (window >> (3 - inputIndex)) & 1;
+            }
+            double[] outputs = new double[4];
+            perceptron.compute(inputs, outputs, 1);
+            assertArrayEquals("window " + window, outputs, network.computeOutputs(inputs), 1e-12);
+        }
+    }
+
+    /**
+     * Windows of a gradient with a bright rectangle, whose border pixels are the edges
+     */
+    private NetworkTrainer.TrainingPatches getPatches() throws Exception {
+        Path imagesDirectory = folder.newFolder().toPath();
+        Path edgesDirectory = folder.newFolder().toPath();
+        ByteProcessor image = new ByteProcessor(48, 40);
+        ByteProcessor edges = new ByteProcessor(48, 40);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 48; x++) {
+                boolean inside = x >= 12 && x < 36 && y >= 10 && y < 30;
+                image.set(x, y, inside ? 200 + x : x);
+                if (inside && (x == 12 || x == 35 || y == 10 || y == 29)) {
+                    edges.set(x, y, 255);
+                }
+            }
+        }
+        Path imagePath = imagesDirectory.resolve("rectangle.tif");
+        assertTrue(new FileSaver(new ImagePlus("Image", image)).saveAsTiff(imagePath.toString()));
+        assertTrue(new FileSaver(new ImagePlus("Edges", edges)).saveAsTiff(
+                edgesDirectory.resolve("rectangle.tif").toString()));
+        return NetworkTrainer.samplePatches(Collections.singletonList(imagePath), edgesDirectory, 2, 3000, false,
+                new Random(1));
+    }
+}
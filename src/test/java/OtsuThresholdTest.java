@@ -0,0 +1,122 @@
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the long histograms and thresholds with the int ones of the original ANN plugin, which counted the
+ * histogram with ImageProcessor.getHistogram
+ */
+public class OtsuThresholdTest {
+    @Test
+    public void histogramsMatchImageJ() {
+        Random random = new Random(1);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            for (int[] size : new int[][]{{1, 1}, {3, 2}, {65, 17}, {130, 71}}) {
+                ImageProcessor image = getImage(bitDepth, size[0], size[1], random);
+                ImageProcessor referenceLevels = getReferenceLevels(image);
+                long[] expected = toLongs(referenceLevels.getHistogram());
+                for (int threads : new int[]{1, 3, 8}) {
+                    String message = bitDepth + "-bit " + size[0] + "x" + size[1] + " threads " + threads;
+                    byte[] levels = new byte[size[0] * size[1]];
+                    RowBandScheduler scheduler = new RowBandScheduler(threads);
+                    assertArrayEquals(message, expected, GreyLevels.of(image).getHistogram(scheduler, null));
+                    assertArrayEquals(message, expected, GreyLevels.of(image).getHistogram(scheduler, levels));
+                    assertArrayEquals(message, (byte[]) referenceLevels.getPixels(), levels);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thresholdsMatchTheIntReference() {
+        Random random = new Random(2);
+        for (int histogramIndex = 0; histogramIndex < 500; histogramIndex++) {
+            int[] histogram = new int[256];
+            //from single levels to every level
+            int occupiedLevels = 1 + random.nextInt(histogramIndex % 5 == 0 ? 3 : 256);
+            for (int index = 0; index < occupiedLevels; index++) {
+                histogram[random.nextInt(256)] += 1 + random.nextInt(1000);
+            }
+            long total = 0;
+            for (int count : histogram) {
+                total += count;
+            }
+            assertEquals("histogram " + histogramIndex,
+                    ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getReferenceThreshold(histogram, total),
+                    OtsuThreshold.getThreshold(toLongs(histogram)));
+        }
+        assertEquals(0, OtsuThreshold.getThreshold(new long[256]));
+    }
+
+    /**
+     * Scaling the counts by a power of two scales the class means exactly, so histograms of billions of pixels, which
+     * overflow the sums of the int reference, get the threshold of the scaled down ones
+     */
+    @Test
+    public void largeHistogramsDontOverflow() {
+        Random random = new Random(3);
+        for (int histogramIndex = 0; histogramIndex < 100; histogramIndex++) {
+            int[] histogram = new int[256];
+            long[] largeHistogram = new long[256];
+            long total = 0;
+            for (int level = 0; level < 256; level++) {
+                histogram[level] = random.nextInt(100);
+                largeHistogram[level] = (long) histogram[level] << 24;
+                total += histogram[level];
+            }
+            assertEquals("histogram " + histogramIndex,
+                    ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getReferenceThreshold(histogram, total),
+                    OtsuThreshold.getThreshold(largeHistogram));
+        }
+    }
+
+    @Test
+    public void binariseMatchesTheReference() {
+        Random random = new Random(4);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            for (int[] size : new int[][]{{1, 1}, {63, 5}, {64, 40}, {129, 33}}) {
+                ImageProcessor image = getImage(bitDepth, size[0], size[1], random);
+                byte[] expected = (byte[]) ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest
+                        .getReferenceBinaryImage(getReferenceLevels(image)).getPixels();
+                for (int threads : new int[]{1, 3}) {
+                    assertArrayEquals(bitDepth + "-bit " + size[0] + "x" + size[1] + " threads " + threads, expected,
+                            (byte[]) OtsuThreshold.binarise(GreyLevels.of(image), new RowBandScheduler(threads))
+                                    .toImagePlus("Binary").getProcessor().getPixels());
+                }
+            }
+        }
+    }
+
+    private static ImageProcessor getImage(int bitDepth, int width, int height, Random random) {
+        ImageProcessor image = bitDepth == 8 ? new ByteProcessor(width, height) :
+                bitDepth == 16 ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+        for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++) {
+            if (bitDepth == 32) {
+                image.setf(pixelIndex, (float) (random.nextGaussian() * 100));
+            } else {
+                image.set(pixelIndex, random.nextInt(bitDepth == 8 ? 256 : 5000));
+            }
+        }
+        return image;
+    }
+
+    private static ImageProcessor getReferenceLevels(ImageProcessor image) {
+        return image.getBitDepth() == 8 ? image :
+                ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getReferenceLevels(image);
+    }
+
+    private static long[] toLongs(int[] histogram) {
+        long[] longHistogram = new long[histogram.length];
+        for (int level = 0; level < histogram.length; level++) {
+            longHistogram[level] = histogram[level];
+        }
+        return longHistogram;
+    }
+}
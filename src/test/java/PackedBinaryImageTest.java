@@ -0,0 +1,147 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares the bit-packed operations with the same operations on 8-bit images, pixel by pixel. Widths around
+ * multiples of 64 put pixels on both sides of the word boundaries.
+ */
+public class PackedBinaryImageTest {
+    private static final int[] WIDTHS = {1, 2, 3, 63, 64, 65, 127, 128, 129, 200};
+    private static final int[] HEIGHTS = {1, 2, 3, 17, 40};
+
+    @Test
+    public void thresholdMatchesTheReference() {
+        Random random = new Random(1);
+        for (int width : WIDTHS) {
+            for (int height : HEIGHTS) {
+                ByteProcessor image = getImage(width, height, random);
+                for (int threshold : new int[]{0, 1, 100, 255, 256}) {
+                    String message = width + "x" + height + " threshold " + threshold;
+                    byte[] expected = getReferenceBinaryImage(image, threshold);
+                    assertArrayEquals(message, expected, toPixels(PackedBinaryImage.threshold(GreyLevels.of(image),
+                            threshold)));
+                    for (int threads : new int[]{1, 3}) {
+                        assertArrayEquals(message + " threads " + threads, expected,
+                                toPixels(PackedBinaryImage.threshold((byte[]) image.getPixels(), width, height,
+                                        threshold, new RowBandScheduler(threads))));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mapWindowsMatchesTheReference() {
+        Random random = new Random(2);
+        for (int tableIndex = 0; tableIndex < 8; tableIndex++) {
+            int[] lookupTable = new int[16];
+            for (int index = 0; index < lookupTable.length; index++) {
+                lookupTable[index] = random.nextInt(16);
+            }
+            //every window maps to the same pixels, including the all black one
+            if (tableIndex == 0) {
+                Arrays.fill(lookupTable, 15);
+            }
+            for (int width : WIDTHS) {
+                for (int height : HEIGHTS) {
+                    ByteProcessor binaryImage = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getBinaryImage(
+                            width, height, 2, random);
+                    assertArrayEquals(width + "x" + height, getReferenceWindows(binaryImage, lookupTable),
+                            toPixels(toPackedImage(binaryImage).mapWindows(lookupTable)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void removeIsolatedPixelsMatchesTheReference() {
+        Random random = new Random(3);
+        for (int width : WIDTHS) {
+            for (int height : HEIGHTS) {
+                for (int density : new int[]{2, 6, 20}) {
+                    ByteProcessor edgeImage = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getBinaryImage(
+                            width, height, density, random);
+                    assertArrayEquals(width + "x" + height + " density " + density,
+                            ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getReferenceFinalImage(edgeImage),
+                            toPixels(toPackedImage(edgeImage).removeIsolatedPixels()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pixelsAreSetAcrossWordBoundaries() {
+        for (int width : WIDTHS) {
+            PackedBinaryImage image = new PackedBinaryImage(width, 3);
+            ByteProcessor expected = new ByteProcessor(width, 3);
+            for (int x : new int[]{0, 62, 63, 64, 65, 127, 128, width - 1}) {
+                if (x < width) {
+                    image.set(x, 1);
+                    expected.set(x, 1, 255);
+                }
+            }
+            assertArrayEquals("width " + width, (byte[]) expected.getPixels(), toPixels(image));
+        }
+    }
+
+    private static ByteProcessor getImage(int width, int height, Random random) {
+        ByteProcessor image = new ByteProcessor(width, height);
+        for (int pixelIndex = 0; pixelIndex < width * height; pixelIndex++) {
+            image.set(pixelIndex, random.nextInt(256));
+        }
+        return image;
+    }
+
+    private static PackedBinaryImage toPackedImage(ImageProcessor binaryImage) {
+        return PackedBinaryImage.threshold(GreyLevels.of(binaryImage), 128);
+    }
+
+    private static byte[] toPixels(PackedBinaryImage image) {
+        return (byte[]) image.toImagePlus("Binary").getProcessor().getPixels();
+    }
+
+    /**
+     * Binarisation of the original ANN plugin
+     */
+    static byte[] getReferenceBinaryImage(ImageProcessor sourceImageProcessor, int threshold) {
+        int width = sourceImageProcessor.getWidth();
+        int height = sourceImageProcessor.getHeight();
+        ByteProcessor binaryImageProcessor = new ByteProcessor(width, height);
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (sourceImageProcessor.get(i, j) >= threshold) {
+                    binaryImageProcessor.set(i, j, 255);
+                }
+            }
+        }
+        return (byte[]) binaryImageProcessor.getPixels();
+    }
+
+    /**
+     * Maps every 2x2 window one at a time
+     */
+    private static byte[] getReferenceWindows(ImageProcessor binaryImage, int[] lookupTable) {
+        int width = binaryImage.getWidth();
+        int height = binaryImage.getHeight();
+        ByteProcessor result = new ByteProcessor(width, height);
+        for (int y = 0; y < height - 1; y++) {
+            for (int x = 0; x < width - 1; x++) {
+                int index = (binaryImage.get(x, y) == 255 ? 8 : 0) | (binaryImage.get(x + 1, y) == 255 ? 4 : 0) |
+                        (binaryImage.get(x, y + 1) == 255 ? 2 : 0) | (binaryImage.get(x + 1, y + 1) == 255 ? 1 : 0);
+                int edges = lookupTable[index];
+                for (int bit = 0; bit < 4; bit++) {
+                    if ((edges & (8 >> bit)) != 0) {
+                        result.set(x + (bit & 1), y + (bit >> 1), 255);
+                    }
+                }
+            }
+        }
+        return (byte[]) result.getPixels();
+    }
+}
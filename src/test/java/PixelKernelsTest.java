@@ -0,0 +1,162 @@
+import ij.process.ImageProcessor;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the vector kernels with the scalar ones, the tests are skipped when the vector kernels can't be loaded, e.g.
+ * without --add-modules jdk.incubator.vector
+ */
+public class PixelKernelsTest {
+    private static final int[] WIDTHS = {1, 2, 3, 7, 8, 15, 16, 17, 31, 64, 65, 100, 257};
+
+    private final PixelKernels scalarKernels = new PixelKernels();
+
+    @Test
+    public void classifyRowMatchesTheScalarKernel() {
+        PixelKernels vectorKernels = getVectorKernels();
+        Random random = new Random(1);
+        int[][][] centerSets = {
+                new Fuzzy_Edge_Detection_By_Suliman_And_Others().getCentersOfClasses(4, 48),
+                new Fuzzy_Edge_Detection_By_Suliman_And_Others().getCentersOfClasses(20, 20),
+                new Fuzzy_Edge_Detection_By_Suliman_And_Others().getCentersOfClasses(-16384, 16384)};
+        for (int width : WIDTHS) {
+            for (int[][] centers : centerSets) {
+                for (long squaredWeight : new long[]{1, 240 * 240, 65535L * 65535}) {
+                    int[][] rows = new int[3][width];
+                    for (int[] row : rows) {
+                        for (int columnIndex = 0; columnIndex < width; columnIndex++) {
+                            row[columnIndex] = random.nextInt(4) == 0 ? random.nextInt(256) : 100 + random.nextInt(8);
+                        }
+                    }
+                    int[] expected = new int[width];
+                    int[] actual = new int[width];
+                    scalarKernels.classifyRow(rows[0], rows[1], rows[2], width, centers, squaredWeight, expected);
+                    vectorKernels.classifyRow(rows[0], rows[1], rows[2], width, centers, squaredWeight, actual);
+                    assertArrayEquals("width " + width + " squared weight " + squaredWeight, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thresholdRowMatchesTheScalarKernel() {
+        PixelKernels vectorKernels = getVectorKernels();
+        Random random = new Random(2);
+        for (int width : WIDTHS) {
+            byte[] levels = new byte[width + 5];
+            random.nextBytes(levels);
+            for (int threshold : new int[]{0, 1, 128, 255, 256}) {
+                int wordsPerRow = (width + 63) >>> 6;
+                long[] expected = new long[wordsPerRow + 1];
+                long[] actual = new long[wordsPerRow + 1];
+                scalarKernels.thresholdRow(levels, 5, width, threshold, expected, 1);
+                vectorKernels.thresholdRow(levels, 5, width, threshold, actual, 1);
+                assertArrayEquals("width " + width + " threshold " + threshold, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void mapPixelsMatchesTheScalarKernel() {
+        PixelKernels vectorKernels = getVectorKernels();
+        Random random = new Random(3);
+        int[] lookupTable = new int[256];
+        for (int level = 0; level < lookupTable.length; level++) {
+            lookupTable[level] = random.nextInt(256);
+        }
+        for (int width : WIDTHS) {
+            byte[] pixels = new byte[width * 3];
+            random.nextBytes(pixels);
+            byte[] expected = new byte[pixels.length];
+            byte[] actual = new byte[pixels.length];
+            scalarKernels.mapPixels(pixels, lookupTable, expected);
+            vectorKernels.mapPixels(pixels, lookupTable, actual);
+            assertArrayEquals("width " + width, expected, actual);
+        }
+    }
+
+    /**
+     * Tiles of a reference image at every offset of the vector lanes, binarised the way the original ANN plugin did
+     * and mapped through a lookup table pixel by pixel, rows being read in place like the plugins read tile rows
+     */
+    @Test
+    public void tilesMatchTheReference() {
+        PixelKernels vectorKernels = getVectorKernels();
+        Random random = new Random(4);
+        ImageProcessor image = ANN_Edge_Detection_By_Mehrara_And_ZahedinejadTest.getImage(300, 40, random);
+        byte[] pixels = (byte[]) image.getPixels();
+        int[] lookupTable = new int[256];
+        for (int level = 0; level < lookupTable.length; level++) {
+            lookupTable[level] = random.nextInt(256);
+        }
+
+        for (int x : new int[]{0, 1, 7, 31, 63, 64, 65}) {
+            for (int tileWidth : new int[]{1, 17, 64, 129, 235}) {
+                if (x + tileWidth > image.getWidth()) {
+                    continue;
+                }
+                image.setRoi(x, 3, tileWidth, 30);
+                ImageProcessor tile = image.crop();
+                String message = "tile at " + x + " width " + tileWidth;
+
+                int threshold = 100 + random.nextInt(50);
+                int wordsPerRow = (tileWidth + 63) >>> 6;
+                long[] words = new long[wordsPerRow * tile.getHeight()];
+                for (int rowIndex = 0; rowIndex < tile.getHeight(); rowIndex++) {
+                    vectorKernels.thresholdRow(pixels, (3 + rowIndex) * image.getWidth() + x, tileWidth, threshold,
+                            words, rowIndex * wordsPerRow);
+                }
+                byte[] expected = PackedBinaryImageTest.getReferenceBinaryImage(tile, threshold);
+                for (int pixelIndex = 0; pixelIndex < expected.length; pixelIndex++) {
+                    int columnIndex = pixelIndex % tileWidth;
+                    long word = words[pixelIndex / tileWidth * wordsPerRow + (columnIndex >>> 6)];
+                    assertEquals(message + " pixel " + pixelIndex, expected[pixelIndex] != 0,
+                            (word >>> (columnIndex & 63) & 1) != 0);
+                }
+
+                byte[] mappedPixels = new byte[tile.getPixelCount()];
+                vectorKernels.mapPixels((byte[]) tile.getPixels(), lookupTable, mappedPixels);
+                for (int pixelIndex = 0; pixelIndex < mappedPixels.length; pixelIndex++) {
+                    assertEquals(message + " pixel " + pixelIndex, lookupTable[tile.get(pixelIndex)],
+                            mappedPixels[pixelIndex] & 0xff);
+                }
+            }
+        }
+    }
+
+    /**
+     * The plugin, tile and ROI tests run with the kernels PixelKernels.get returns, they should be the vector ones
+     * unless they are disabled
+     */
+    @Test
+    public void pluginsUseTheVectorKernels() {
+        getVectorKernels();
+        if (Boolean.parseBoolean(System.getProperty("neuralfuzzy.vector", "true"))) {
+            assertTrue(PixelKernels.get().getName(), PixelKernels.get().isVectorized());
+        }
+    }
+
+    @Test
+    public void disabledVectorKernelsAreScalar() {
+        if (!Boolean.parseBoolean(System.getProperty("neuralfuzzy.vector", "true"))) {
+            assertEquals("scalar", PixelKernels.get().getName());
+        }
+    }
+
+    private static PixelKernels getVectorKernels() {
+        PixelKernels kernels;
+        try {
+            kernels = (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            kernels = null;
+        }
+        Assume.assumeTrue("vector kernels aren't available", kernels != null && kernels.isSupported());
+        return kernels;
+    }
+}
@@ -0,0 +1,120 @@
+import ij.process.ByteProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Server of a single worker and a queue of one request on an ephemeral port, without warm-up
+ */
+public class ProcessingServerTest {
+    private static final int SIZE = 64;
+
+    private ProcessingServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ProcessingServer(0, 1, 1, 8);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void framesMatchThePlugin() throws Exception {
+        byte[] frames = new byte[2 * SIZE * SIZE];
+        new Random(1).nextBytes(frames);
+        HttpURLConnection connection = post("algorithm=contrast&frames=2", frames.length);
+        try (OutputStream body = connection.getOutputStream()) {
+            body.write(frames);
+        }
+        assertEquals(200, connection.getResponseCode());
+        byte[] results = read(connection.getInputStream());
+
+        Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization plugin =
+                new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+        for (int frameIndex = 0; frameIndex < 2; frameIndex++) {
+            byte[] pixels = new byte[SIZE * SIZE];
+            System.arraycopy(frames, frameIndex * pixels.length, pixels, 0, pixels.length);
+            byte[] result = new byte[pixels.length];
+            System.arraycopy(results, frameIndex * pixels.length, result, 0, pixels.length);
+            assertArrayEquals("frame " + frameIndex, (byte[]) plugin.process(
+                    new ByteProcessor(SIZE, SIZE, pixels), 2).getPixels(), result);
+        }
+    }
+
+    /**
+     * Requests whose bodies are still being sent hold the slots, so a further one is rejected without sending its body,
+     * and the slots are given back when the uploads are dropped
+     */
+    @Test
+    public void requestsBeyondTheSlotsAreRejectedBeforeTheirBodies() throws Exception {
+        HttpURLConnection[] uploads = new HttpURLConnection[2];
+        for (int uploadIndex = 0; uploadIndex < uploads.length; uploadIndex++) {
+            uploads[uploadIndex] = post("algorithm=contrast", SIZE * SIZE);
+            OutputStream body = uploads[uploadIndex].getOutputStream();
+            body.write(new byte[SIZE]);
+            body.flush();
+        }
+
+        //the handlers of the uploads take the slots once they have the headers
+        HttpURLConnection rejected = null;
+        for (int attempt = 0; attempt < 100; attempt++) {
+            rejected = post("algorithm=contrast", SIZE * SIZE);
+            rejected.setFixedLengthStreamingMode(0);
+            if (rejected.getResponseCode() == 503) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(503, rejected.getResponseCode());
+        assertEquals("1", rejected.getHeaderField("Retry-After"));
+
+        for (HttpURLConnection upload : uploads) {
+            upload.disconnect();
+        }
+        int status = 0;
+        for (int attempt = 0; attempt < 100 && status != 200; attempt++) {
+            HttpURLConnection connection = post("algorithm=contrast", SIZE * SIZE);
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(new byte[SIZE * SIZE]);
+            }
+            status = connection.getResponseCode();
+            if (status != 200) {
+                Thread.sleep(50);
+            }
+        }
+        assertEquals(200, status);
+    }
+
+    private HttpURLConnection post(String query, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() +
+                "/process?width=" + SIZE + "&height=" + SIZE + "&" + query).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        return connection;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = inputStream.read(buffer)) >= 0; ) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
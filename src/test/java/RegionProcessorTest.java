@@ -0,0 +1,191 @@
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Images of a few tiles with rectangular and oval ROIs, compared with the plugins run on the whole image
+ */
+public class RegionProcessorTest {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 530;
+    private static final int[][] CENTERS_OF_CLASSES = new Fuzzy_Edge_Detection_By_Suliman_And_Others()
+            .getCentersOfClasses(4, 48);
+
+    @Test
+    public void regionsMatchTheWholeImage() {
+        Random random = new Random(1);
+        for (int bitDepth : new int[]{8, 16}) {
+            ImageProcessor image = getImage(bitDepth, random);
+            ANN_Edge_Detection_By_Mehrara_And_Zahedinejad annPlugin =
+                    new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+            annPlugin.edgeLookupTable = annPlugin.getEdgeLookupTable(annPlugin.getNetwork());
+            Fuzzy_Edge_Detection_By_Suliman_And_Others sulimanPlugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+            Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization contrastPlugin =
+                    new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization();
+            ImageProcessor annImage = annPlugin.process(image);
+            ImageProcessor sulimanImage = sulimanPlugin.process(image, CENTERS_OF_CLASSES, 240, false);
+            ImageProcessor contrastImage = contrastPlugin.process(image, 2);
+
+            for (String roi : new String[]{"rectangle", "oval", "corner"}) {
+                setRoi(image, roi);
+                ImageProcessor mask = image.getMask();
+                Rectangle region = image.getRoi();
+                String message = bitDepth + "-bit " + roi;
+                assertRegionEquals(message + " ann", annImage, new ByteProcessor(WIDTH, HEIGHT), region, mask,
+                        annPlugin.processRegion(image, null));
+                assertRegionEquals(message + " suliman", sulimanImage, new ByteProcessor(WIDTH, HEIGHT), region,
+                        mask, sulimanPlugin.processRegion(image, CENTERS_OF_CLASSES, 240, null));
+                //the source pixels are kept outside the ROI
+                assertRegionEquals(message + " contrast", contrastImage, image, region, mask,
+                        contrastPlugin.processRegion(image, 2, null));
+                image.resetRoi();
+            }
+        }
+    }
+
+    /**
+     * Only the tiles whose halo contains the edited pixel are filtered again, the image is 3x3 tiles
+     */
+    @Test
+    public void editedTilesAreFilteredAgain() {
+        ImageProcessor image = getImage(8, new Random(2));
+        AtomicInteger filteredTiles = new AtomicInteger();
+        TiledFilter filter = getCountingFilter(image, "suliman", filteredTiles);
+        RegionProcessor.Result result = RegionProcessor.processReusing(image, filter,
+                new ByteProcessor(WIDTH, HEIGHT), 3, null);
+        assertEquals(9, result.getTiles());
+        assertEquals(0, result.getReusedTiles());
+        assertEquals(9, filteredTiles.get());
+
+        //{x, y, tiles containing the pixel in their halo of 3}
+        for (int[] edit : new int[][]{{100, 100, 1}, {256, 10, 2}, {254, 258, 4}, {599, 529, 1}, {40, 1, 1}}) {
+            image.set(edit[0], edit[1], image.get(edit[0], edit[1]) ^ 0x55);
+            filteredTiles.set(0);
+            result = RegionProcessor.processReusing(image, filter, new ByteProcessor(WIDTH, HEIGHT), 3, result);
+            String message = "pixel " + edit[0] + "," + edit[1];
+            assertEquals(message, edit[2], filteredTiles.get());
+            assertEquals(message, 9 - edit[2], result.getReusedTiles());
+            assertArrayEquals(message, (byte[]) RegionProcessor.processReusing(image, filter,
+                    new ByteProcessor(WIDTH, HEIGHT), 3, null).getImageProcessor().getPixels(),
+                    (byte[]) result.getImageProcessor().getPixels());
+        }
+
+        //nothing changed
+        filteredTiles.set(0);
+        result = RegionProcessor.processReusing(image, filter, new ByteProcessor(WIDTH, HEIGHT), 3, result);
+        assertEquals(0, filteredTiles.get());
+        assertEquals(9, result.getReusedTiles());
+    }
+
+    @Test
+    public void changedFilterKeyFiltersAllTiles() {
+        ImageProcessor image = getImage(8, new Random(3));
+        AtomicInteger filteredTiles = new AtomicInteger();
+        RegionProcessor.Result result = RegionProcessor.processReusing(image,
+                getCountingFilter(image, "suliman", filteredTiles), new ByteProcessor(WIDTH, HEIGHT), 3, null);
+
+        filteredTiles.set(0);
+        TiledFilter otherFilter = getCountingFilter(image, "ann", filteredTiles);
+        result = RegionProcessor.processReusing(image, otherFilter, new ByteProcessor(WIDTH, HEIGHT), 3, result);
+        assertEquals(0, result.getReusedTiles());
+        assertEquals(9, filteredTiles.get());
+        assertArrayEquals((byte[]) RegionProcessor.processReusing(image, otherFilter,
+                new ByteProcessor(WIDTH, HEIGHT), 3, null).getImageProcessor().getPixels(),
+                (byte[]) result.getImageProcessor().getPixels());
+    }
+
+    @Test
+    public void changedRegionFiltersAllTiles() {
+        ImageProcessor image = getImage(8, new Random(4));
+        AtomicInteger filteredTiles = new AtomicInteger();
+        TiledFilter filter = getCountingFilter(image, "suliman", filteredTiles);
+        setRoi(image, "rectangle");
+        RegionProcessor.Result result = RegionProcessor.processReusing(image, filter,
+                new ByteProcessor(WIDTH, HEIGHT), 3, null);
+
+        //the same bounds with a mask
+        for (String roi : new String[]{"oval", "rectangle", "corner"}) {
+            setRoi(image, roi);
+            filteredTiles.set(0);
+            result = RegionProcessor.processReusing(image, filter, new ByteProcessor(WIDTH, HEIGHT), 3, result);
+            assertEquals(roi, 0, result.getReusedTiles());
+            assertEquals(roi, result.getTiles(), filteredTiles.get());
+        }
+    }
+
+    /**
+     * The filter of the plugin for the whole image which counts the tiles it filters
+     */
+    private static TiledFilter getCountingFilter(ImageProcessor image, String algorithm,
+                                                 AtomicInteger filteredTiles) {
+        double[] range = GreyLevels.getRange(image.getPixels());
+        TiledFilter filter;
+        if (algorithm.equals("ann")) {
+            ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin = new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+            plugin.edgeLookupTable = plugin.getEdgeLookupTable(plugin.getNetwork());
+            filter = plugin.getTiledFilter(range, GreyLevels.of(image, range).getHistogram(new RowBandScheduler(1),
+                    null));
+        } else {
+            filter = new Fuzzy_Edge_Detection_By_Suliman_And_Others().getTiledFilter(range, CENTERS_OF_CLASSES, 240);
+        }
+        return new TiledFilter(filter.getHalo(), filter.getBitDepth(), filter.getKey(), tile -> {
+            filteredTiles.incrementAndGet();
+            return filter.process(tile);
+        });
+    }
+
+    /**
+     * Rectangle and oval inside the image with the same bounds, and a rectangle at its bottom right corner
+     */
+    private static void setRoi(ImageProcessor image, String roi) {
+        switch (roi) {
+            case "rectangle":
+                image.setRoi(new Roi(37, 20, 500, 490));
+                break;
+            case "oval":
+                image.setRoi(new OvalRoi(37, 20, 500, 490));
+                break;
+            default:
+                image.setRoi(new Roi(WIDTH - 70, HEIGHT - 300, 70, 300));
+        }
+    }
+
+    private static void assertRegionEquals(String message, ImageProcessor wholeImage, ImageProcessor background,
+                                           Rectangle region, ImageProcessor mask, ImageProcessor result) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean inside = region.contains(x, y) && (mask == null || mask.get(x - region.x, y - region.y) != 0);
+                int expected = inside ? wholeImage.get(x, y) : background.get(x, y);
+                if (result.get(x, y) != expected) {
+                    assertEquals(message + " pixel " + x + "," + y + (inside ? " inside" : " outside"), expected,
+                            result.get(x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Bright discs on a gradient with noise
+     */
+    private static ImageProcessor getImage(int bitDepth, Random random) {
+        ImageProcessor image = bitDepth == 8 ? new ByteProcessor(WIDTH, HEIGHT) : new ShortProcessor(WIDTH, HEIGHT);
+        int scale = bitDepth == 8 ? 1 : 37;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean disc = (x % 150 - 75) * (x % 150 - 75) + (y % 130 - 65) * (y % 130 - 65) < 1600;
+                image.set(x, y, ((disc ? 160 : 20) + x / 10 + random.nextInt(30)) * scale);
+            }
+        }
+        return image;
+    }
+}
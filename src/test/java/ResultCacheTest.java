@@ -0,0 +1,182 @@
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Caches of their own in a temporary directory, the computation inverts the pixels and counts its calls
+ */
+public class ResultCacheTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger computations = new AtomicInteger();
+
+    @Test
+    public void secondRunReturnsTheSamePixels() {
+        ResultCache cache = new ResultCache(1 << 20, folder.getRoot().toPath(), 1 << 20);
+        Random random = new Random(1);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            ImageProcessor image = getImage(bitDepth, random);
+            ImageProcessor result = cache.process(image, "invert", this::invert);
+            assertEquals(1, computations.getAndSet(0));
+            Object expectedPixels = copyPixels(result);
+            //results are copies, changing one doesn't change the cached one
+            result.invert();
+
+            ImageProcessor cachedResult = cache.process(image, "invert", this::invert);
+            assertEquals(bitDepth + "-bit", 0, computations.get());
+            assertPixelsEqual(bitDepth + "-bit", expectedPixels, cachedResult);
+        }
+        assertTrue(cache.getStatistics(), cache.getStatistics().contains("\"memoryHits\":3,\"diskHits\":0," +
+                "\"misses\":3"));
+    }
+
+    @Test
+    public void evictedResultsAreReadFromDisk() {
+        Path directory = folder.getRoot().toPath();
+        //room for one 8-bit result in memory
+        ResultCache cache = new ResultCache(WIDTH * HEIGHT, directory, 1 << 20);
+        Random random = new Random(2);
+        ImageProcessor image = getImage(8, random);
+        ImageProcessor otherImage = getImage(8, random);
+        Object expectedPixels = copyPixels(cache.process(image, "invert", this::invert));
+        cache.process(otherImage, "invert", this::invert);
+        assertEquals(2, computations.getAndSet(0));
+
+        assertPixelsEqual("evicted", expectedPixels, cache.process(image, "invert", this::invert));
+        assertEquals(0, computations.get());
+        assertTrue(cache.getStatistics(), cache.getStatistics().contains("\"memoryHits\":0,\"diskHits\":1"));
+
+        //another process reads the same directory
+        ResultCache restartedCache = new ResultCache(1 << 20, directory, 1 << 20);
+        for (int bitDepth : new int[]{16, 32}) {
+            ImageProcessor deepImage = getImage(bitDepth, random);
+            Object expectedDeepPixels = copyPixels(cache.process(deepImage, "invert", this::invert));
+            computations.set(0);
+            assertPixelsEqual(bitDepth + "-bit restarted", expectedDeepPixels,
+                    restartedCache.process(deepImage, "invert", this::invert));
+            assertEquals(0, computations.get());
+        }
+    }
+
+    @Test
+    public void changedKeysMiss() {
+        ResultCache cache = new ResultCache(1 << 20, folder.getRoot().toPath(), 1 << 20);
+        ImageProcessor image = getImage(8, new Random(3));
+        cache.process(image, "invert", this::invert);
+
+        cache.process(image, "invert weights 2", this::invert);
+        assertEquals(2, computations.get());
+
+        ImageProcessor editedImage = image.duplicate();
+        editedImage.set(WIDTH - 1, HEIGHT - 1, editedImage.get(WIDTH - 1, HEIGHT - 1) ^ 1);
+        assertPixelsEqual("edited", invert(editedImage).getPixels(), cache.process(editedImage, "invert",
+                this::invert));
+        //one computation by the reference
+        assertEquals(4, computations.get());
+
+        //same pixels of another size
+        ImageProcessor transposedImage = new ByteProcessor(HEIGHT, WIDTH, (byte[]) image.getPixels());
+        cache.process(transposedImage, "invert", this::invert);
+        assertEquals(5, computations.get());
+        assertTrue(cache.getStatistics(), cache.getStatistics().contains("\"memoryHits\":0,\"diskHits\":0," +
+                "\"misses\":4"));
+    }
+
+    @Test
+    public void corruptFilesMiss() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ImageProcessor image = getImage(16, new Random(4));
+        Object expectedPixels = copyPixels(new ResultCache(1 << 20, directory, 1 << 20).process(image, "invert",
+                this::invert));
+        List<Path> files = listFiles(directory);
+        assertEquals(1, files.size());
+        byte[] file = Files.readAllBytes(files.get(0));
+
+        byte[] garbage = new byte[file.length];
+        new Random(5).nextBytes(garbage);
+        byte[] flippedByte = file.clone();
+        flippedByte[file.length / 2] ^= 0x40;
+        for (byte[] corruptFile : new byte[][]{Arrays.copyOf(file, file.length / 2), Arrays.copyOf(file, 3), garbage,
+                flippedByte, new byte[0]}) {
+            Files.write(files.get(0), corruptFile);
+            computations.set(0);
+            ResultCache cache = new ResultCache(1 << 20, directory, 1 << 20);
+            assertPixelsEqual("corrupt file of " + corruptFile.length + " bytes", expectedPixels,
+                    cache.process(image, "invert", this::invert));
+            assertEquals(1, computations.get());
+            assertTrue(cache.getStatistics(), cache.getStatistics().contains("\"diskHits\":0,\"misses\":1"));
+
+            //the result was written again
+            assertArrayEquals(file, Files.readAllBytes(files.get(0)));
+        }
+    }
+
+    private ImageProcessor invert(ImageProcessor image) {
+        computations.incrementAndGet();
+        ImageProcessor result = image.duplicate();
+        if (result.getBitDepth() == 32) {
+            result.multiply(-1);
+        } else {
+            result.invert();
+        }
+        return result;
+    }
+
+    private static ImageProcessor getImage(int bitDepth, Random random) {
+        ImageProcessor image = bitDepth == 8 ? new ByteProcessor(WIDTH, HEIGHT) :
+                bitDepth == 16 ? new ShortProcessor(WIDTH, HEIGHT) : new FloatProcessor(WIDTH, HEIGHT);
+        for (int pixelIndex = 0; pixelIndex < WIDTH * HEIGHT; pixelIndex++) {
+            if (bitDepth == 32) {
+                image.setf(pixelIndex, (float) random.nextGaussian());
+            } else {
+                image.set(pixelIndex, random.nextInt(bitDepth == 8 ? 256 : 65536));
+            }
+        }
+        return image;
+    }
+
+    private static Object copyPixels(ImageProcessor image) {
+        return image.duplicate().getPixels();
+    }
+
+    private static void assertPixelsEqual(String message, Object expectedPixels, ImageProcessor image) {
+        if (expectedPixels instanceof byte[]) {
+            assertArrayEquals(message, (byte[]) expectedPixels, (byte[]) image.getPixels());
+        } else if (expectedPixels instanceof short[]) {
+            assertArrayEquals(message, (short[]) expectedPixels, (short[]) image.getPixels());
+        } else {
+            assertArrayEquals(message, (float[]) expectedPixels, (float[]) image.getPixels(), 0);
+        }
+    }
+
+    private static List<Path> listFiles(Path directory) throws Exception {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.nfc")) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+}
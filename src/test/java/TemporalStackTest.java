@@ -0,0 +1,105 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time-lapse stack of a static noisy background and one bright disc moving across the tile boundaries, processed
+ * slice by slice by the edge detection plugins in the temporal mode
+ */
+public class TemporalStackTest {
+    private static final int WIDTH = 700;
+    private static final int HEIGHT = 520;
+    private static final int SLICES = 8;
+    private static final int[][] CENTERS_OF_CLASSES = new Fuzzy_Edge_Detection_By_Suliman_And_Others()
+            .getCentersOfClasses(4, 48);
+
+    @Test
+    public void slicesMatchSeparateRuns() {
+        ImageProcessor[] slices = getSlices(new Random(1));
+        for (String algorithm : new String[]{"ann", "suliman"}) {
+            ANN_Edge_Detection_By_Mehrara_And_Zahedinejad annPlugin =
+                    new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+            annPlugin.edgeLookupTable = annPlugin.getEdgeLookupTable(annPlugin.getNetwork());
+            Fuzzy_Edge_Detection_By_Suliman_And_Others sulimanPlugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+            //the halo of the tiles of the plugin
+            int halo = algorithm.equals("ann") ? 2 : 3;
+
+            int expectedReusedTiles = 0;
+            for (int sliceIndex = 0; sliceIndex < SLICES; sliceIndex++) {
+                ImageProcessor slice = slices[sliceIndex];
+                int reusedTiles = algorithm.equals("ann") ? annPlugin.reusedTiles : sulimanPlugin.reusedTiles;
+                ImageProcessor result = algorithm.equals("ann") ? annPlugin.processNextSlice(slice) :
+                        sulimanPlugin.processNextSlice(slice, CENTERS_OF_CLASSES, 240);
+                ImageProcessor expected = algorithm.equals("ann") ? annPlugin.process(slice) :
+                        sulimanPlugin.process(slice, CENTERS_OF_CLASSES, 240, false);
+
+                String message = algorithm + " slice " + sliceIndex;
+                assertArrayEquals(message, (byte[]) expected.getPixels(), (byte[]) result.getPixels());
+                int sliceReusedTiles = sliceIndex > 0 ? getUnchangedTiles(slices[sliceIndex - 1], slice, halo) : 0;
+                assertEquals(message, sliceReusedTiles,
+                        (algorithm.equals("ann") ? annPlugin.reusedTiles : sulimanPlugin.reusedTiles) - reusedTiles);
+                expectedReusedTiles += sliceReusedTiles;
+            }
+
+            //the disc covers a few of the 3x3 tiles of every slice
+            assertTrue(algorithm + " reused " + expectedReusedTiles, expectedReusedTiles >= (SLICES - 1) * 5);
+            assertEquals(algorithm, SLICES * 9, algorithm.equals("ann") ? annPlugin.tiles : sulimanPlugin.tiles);
+        }
+    }
+
+    /**
+     * @return number of tiles whose pixels, halo included, are the same in both slices
+     */
+    private static int getUnchangedTiles(ImageProcessor previousSlice, ImageProcessor slice, int halo) {
+        int unchangedTiles = 0;
+        Rectangle bounds = new Rectangle(WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y += RegionProcessor.TILE_SIZE) {
+            for (int x = 0; x < WIDTH; x += RegionProcessor.TILE_SIZE) {
+                Rectangle haloTile = new Rectangle(x - halo, y - halo, RegionProcessor.TILE_SIZE + 2 * halo,
+                        RegionProcessor.TILE_SIZE + 2 * halo).intersection(bounds);
+                boolean unchanged = true;
+                for (int pixelY = haloTile.y; pixelY < haloTile.y + haloTile.height && unchanged; pixelY++) {
+                    for (int pixelX = haloTile.x; pixelX < haloTile.x + haloTile.width && unchanged; pixelX++) {
+                        unchanged = previousSlice.get(pixelX, pixelY) == slice.get(pixelX, pixelY);
+                    }
+                }
+                if (unchanged) {
+                    unchangedTiles++;
+                }
+            }
+        }
+        return unchangedTiles;
+    }
+
+    /**
+     * Background levels are 0 to 100 and the disc's 220, so the Otsu threshold and the range are the same in every
+     * slice. The disc moves 40 pixels a slice along a diagonal crossing tile boundaries.
+     */
+    private static ImageProcessor[] getSlices(Random random) {
+        ByteProcessor background = new ByteProcessor(WIDTH, HEIGHT);
+        for (int pixelIndex = 0; pixelIndex < WIDTH * HEIGHT; pixelIndex++) {
+            background.set(pixelIndex, random.nextInt(101));
+        }
+        ImageProcessor[] slices = new ImageProcessor[SLICES];
+        for (int sliceIndex = 0; sliceIndex < SLICES; sliceIndex++) {
+            ImageProcessor slice = background.duplicate();
+            int centerX = 150 + 40 * sliceIndex, centerY = 180 + 20 * sliceIndex;
+            for (int y = centerY - 25; y <= centerY + 25; y++) {
+                for (int x = centerX - 25; x <= centerX + 25; x++) {
+                    if ((x - centerX) * (x - centerX) + (y - centerY) * (y - centerY) <= 625) {
+                        slice.set(x, y, 220);
+                    }
+                }
+            }
+            slices[sliceIndex] = slice;
+        }
+        return slices;
+    }
+}
@@ -0,0 +1,194 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the plugins over small raw and TIFF files in tiles much smaller than the image, down to single pixels, and
+ * compares the results with the ones of the plugins run on the whole image in memory byte by byte
+ */
+public class TiledProcessorTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+    private static final int[] TILE_SIZES = {2, 5, 16, 64};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tilesMatchTheWholeImage() throws Exception {
+        Random random = new Random(1);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            ImageProcessor image = getImage(bitDepth, random);
+            Path rawPath = folder.newFile().toPath();
+            Files.write(rawPath, toBytes(image, ByteOrder.BIG_ENDIAN));
+            Path tiffPath = folder.getRoot().toPath().resolve("source" + bitDepth + ".tif");
+            try (MappedImage tiff = MappedImage.create(tiffPath, WIDTH, HEIGHT, bitDepth)) {
+                tiff.setTile(tiff.mapRows(0, HEIGHT), 0, 0, 0, image, 0, 0, WIDTH, HEIGHT);
+            }
+
+            for (String algorithm : new String[]{"ann", "ann greyscale", "suliman", "contrast"}) {
+                byte[] expected = toBytes(getWholeImageResult(algorithm, image), ByteOrder.LITTLE_ENDIAN);
+                Map<String, String> parameters = new HashMap<>();
+                parameters.put("greyscale", String.valueOf(algorithm.endsWith("greyscale")));
+                parameters.put("width", String.valueOf(WIDTH));
+                parameters.put("height", String.valueOf(HEIGHT));
+                parameters.put("bits", String.valueOf(bitDepth));
+
+                for (Path sourcePath : new Path[]{rawPath, tiffPath}) {
+                    for (int tileIndex = 0; tileIndex < TILE_SIZES.length; tileIndex++) {
+                        int tileSize = TILE_SIZES[tileIndex];
+                        //raw and TIFF outputs in turn
+                        Path outputPath = folder.getRoot().toPath().resolve(tileIndex % 2 == 0 ? "output.raw" :
+                                "output.tif");
+                        int outputBitDepth;
+                        try (MappedImage source = TiledProcessor.openSource(sourcePath, parameters)) {
+                            TiledProcessor tiledProcessor = new TiledProcessor(source, tileSize, 3);
+                            TiledFilter filter = tiledProcessor.getFilter(algorithm.split(" ")[0], parameters);
+                            outputBitDepth = filter.getBitDepth();
+                            try (MappedImage output = MappedImage.create(outputPath, WIDTH, HEIGHT, outputBitDepth)) {
+                                tiledProcessor.process(filter, output);
+                            }
+                        }
+                        assertArrayEquals(algorithm + " " + bitDepth + "-bit " + sourcePath.getFileName() +
+                                        " tile " + tileSize + " " + outputPath.getFileName(), expected,
+                                toBytes(read(outputPath, outputBitDepth), ByteOrder.LITTLE_ENDIAN));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parts of tiles set at offsets of the image are read back, and the TIFF files opened by ImageJ
+     */
+    @Test
+    public void tilesRoundTrip() throws Exception {
+        Random random = new Random(2);
+        for (int bitDepth : new int[]{8, 16, 32}) {
+            for (String fileName : new String[]{"image.raw", "image.tif"}) {
+                Path path = folder.getRoot().toPath().resolve(fileName);
+                ImageProcessor expected = getImage(bitDepth, random);
+                try (MappedImage image = MappedImage.create(path, WIDTH, HEIGHT, bitDepth)) {
+                    assertEquals(bitDepth, image.getBitDepth());
+                    //a 10x10 grid of tiles with a halo of 2, only the part without the halo is set
+                    for (int y = 0; y < HEIGHT; y += 10) {
+                        for (int x = 0; x < WIDTH; x += 10) {
+                            int fromX = Math.max(0, x - 2), fromY = Math.max(0, y - 2);
+                            int toX = Math.min(WIDTH, x + 12), toY = Math.min(HEIGHT, y + 12);
+                            expected.setRoi(fromX, fromY, toX - fromX, toY - fromY);
+                            ImageProcessor tile = expected.crop();
+                            int partWidth = Math.min(10, WIDTH - x), partHeight = Math.min(10, HEIGHT - y);
+                            image.setTile(image.mapRows(y, y + partHeight), y, x, y, tile, x - fromX, y - fromY,
+                                    partWidth, partHeight);
+                        }
+                    }
+                    ByteBuffer rows = image.mapRows(3, HEIGHT);
+                    expected.setRoi(5, 7, 20, 13);
+                    assertArrayEquals(bitDepth + "-bit " + fileName,
+                            toBytes(expected.crop(), ByteOrder.LITTLE_ENDIAN),
+                            toBytes(image.getTile(rows, 3, 5, 7, 20, 13), ByteOrder.LITTLE_ENDIAN));
+                }
+                expected.resetRoi();
+
+                byte[] expectedBytes = toBytes(expected, ByteOrder.LITTLE_ENDIAN);
+                assertArrayEquals(bitDepth + "-bit " + fileName, expectedBytes,
+                        toBytes(read(path, bitDepth), ByteOrder.LITTLE_ENDIAN));
+                if (fileName.endsWith(".tif")) {
+                    ImagePlus imagePlus = IJ.openImage(path.toString());
+                    assertEquals(bitDepth, imagePlus.getBitDepth());
+                    assertArrayEquals(bitDepth + "-bit opened by ImageJ", expectedBytes,
+                            toBytes(imagePlus.getProcessor(), ByteOrder.LITTLE_ENDIAN));
+                    try (MappedImage image = MappedImage.openTiff(path)) {
+                        assertEquals(WIDTH, image.getWidth());
+                        assertEquals(HEIGHT, image.getHeight());
+                        assertEquals(bitDepth, image.getBitDepth());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of the plugin run on the whole image with the parameters TiledProcessor defaults to
+     */
+    private static ImageProcessor getWholeImageResult(String algorithm, ImageProcessor image) {
+        switch (algorithm) {
+            case "ann": {
+                ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                        new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                plugin.edgeLookupTable = plugin.getEdgeLookupTable(plugin.getNetwork());
+                return plugin.process(image);
+            }
+            case "ann greyscale": {
+                ANN_Edge_Detection_By_Mehrara_And_Zahedinejad plugin =
+                        new ANN_Edge_Detection_By_Mehrara_And_Zahedinejad();
+                plugin.perceptron = plugin.getPerceptron();
+                return plugin.process(image);
+            }
+            case "suliman": {
+                Fuzzy_Edge_Detection_By_Suliman_And_Others plugin = new Fuzzy_Edge_Detection_By_Suliman_And_Others();
+                return plugin.process(image, plugin.getCentersOfClasses(4, 48), 240, false);
+            }
+            default:
+                return new Fuzzy_Contrast_Enhancement_By_Fuzziness_Minimization().process(image, 2);
+        }
+    }
+
+    /**
+     * Whole image of a raw little-endian or TIFF file written by MappedImage.create
+     */
+    private static ImageProcessor read(Path path, int bitDepth) throws Exception {
+        try (MappedImage image = path.toString().endsWith(".tif") ? MappedImage.openTiff(path) :
+                MappedImage.open(path, WIDTH, HEIGHT, bitDepth, ByteOrder.LITTLE_ENDIAN, 0)) {
+            return image.getTile(image.mapRows(0, HEIGHT), 0, 0, 0, WIDTH, HEIGHT);
+        }
+    }
+
+    /**
+     * Bright disc on a gradient with noise, so that there are edges to detect
+     */
+    private static ImageProcessor getImage(int bitDepth, Random random) {
+        ImageProcessor image = bitDepth == 8 ? new ByteProcessor(WIDTH, HEIGHT) :
+                bitDepth == 16 ? new ShortProcessor(WIDTH, HEIGHT) : new FloatProcessor(WIDTH, HEIGHT);
+        double scale = bitDepth == 8 ? 1 : bitDepth == 16 ? 40 : 0.37;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean disc = (x - 20) * (x - 20) + (y - 13) * (y - 13) < 64;
+                double value = (disc ? 180 : 20) + x + random.nextInt(40);
+                image.putPixelValue(x, y, bitDepth == 32 ? value * scale - 30 : Math.round(value * scale));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] toBytes(ImageProcessor image, ByteOrder byteOrder) {
+        Object pixels = image.getPixels();
+        if (pixels instanceof byte[]) {
+            return ((byte[]) pixels).clone();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(image.getPixelCount() * image.getBitDepth() / 8).order(byteOrder);
+        if (pixels instanceof short[]) {
+            bytes.asShortBuffer().put((short[]) pixels);
+        } else {
+            bytes.asFloatBuffer().put((float[]) pixels);
+        }
+        return bytes.array();
+    }
+}